@@ -0,0 +1,103 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import weave.Settings;
+
+/**
+ * Fixtures shared by the benchmarks.
+ */
+class BenchmarkUtils
+{
+	private static final long SEED = 0x5EEDL;
+	
+	/**
+	 * Point the directories the utilities write to at a new temporary directory,
+	 * so a benchmark never touches a real Weave installation.
+	 * 
+	 * @return The temporary root directory
+	 * @throws IOException
+	 */
+	static File setupSettings() throws IOException
+	{
+		File root = Files.createTempDirectory("weave-bench").toFile();
+		
+		Settings.LOGS_DIRECTORY					= new File(root, Settings.LOGS_DIRECTORY_NAME);
+		Settings.DOWNLOADS_DIRECTORY			= new File(root, "downloads");
+		Settings.DEPLOYED_PLUGINS_DIRECTORY		= new File(root, "plugins");
+		
+		Settings.LOGS_DIRECTORY.mkdirs();
+		Settings.DOWNLOADS_DIRECTORY.mkdirs();
+		Settings.DEPLOYED_PLUGINS_DIRECTORY.mkdirs();
+		return root;
+	}
+	
+	/**
+	 * Write a file of pseudo-random bytes that do not compress.
+	 * 
+	 * @param f The file to write
+	 * @param size The size in bytes
+	 * @throws IOException
+	 */
+	static void writeRandomFile(File f, long size) throws IOException
+	{
+		Random r = new Random(SEED);
+		byte[] buffer = new byte[64 * 1024];
+		OutputStream out = new FileOutputStream(f);
+		
+		try {
+			for( long written = 0; written < size; written += buffer.length )
+			{
+				r.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Get a stream that discards everything, to keep console output out of a measurement.
+	 */
+	static PrintStream nullStream()
+	{
+		return new PrintStream(new OutputStream() {
+			@Override public void write(int b) 							{ }
+			@Override public void write(byte[] b, int off, int len) 	{ }
+		});
+	}
+	
+	static void delete(File f)
+	{
+		File[] children = f.listFiles();
+		if( children != null )
+			for( File c : children )
+				delete(c);
+		f.delete();
+	}
+}
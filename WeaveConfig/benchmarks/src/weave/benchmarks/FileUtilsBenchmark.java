@@ -0,0 +1,81 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weave.utils.FileUtils;
+import weave.utils.TransferUtils;
+
+/**
+ * {@link FileUtils#copy(File, File, int)} from a small config sized file up to an install sized archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileUtilsBenchmark
+{
+	@Param({ "4096", "1048576", "67108864" })
+	public long size;
+	
+	private File root;
+	private File source;
+	private File destination;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		root = BenchmarkUtils.setupSettings();
+		source = new File(root, "source.bin");
+		destination = new File(root, "destination.bin");
+		
+		BenchmarkUtils.writeRandomFile(source, size);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		BenchmarkUtils.delete(root);
+	}
+	
+	@Benchmark
+	public int copy() throws IOException, InterruptedException
+	{
+		return FileUtils.copy(source, destination, TransferUtils.OVERWRITE);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weave.utils.FileUtils;
+import weave.utils.ObjectUtils;
+
+/**
+ * {@link ObjectUtils#toString(Object, String)} on the shapes it formats, and the
+ * null-coalescing helpers by method name against their typed counterparts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectUtilsBenchmark
+{
+	private static final Class<?>[] SIG = { Object.class };
+	private static final Object[] KEY = { "HOST" };
+	
+	private final Map<String, Object> map = new HashMap<String, Object>();
+	private final List<String> list = new ArrayList<String>();
+	private final File file = new File("benchmark.txt");
+	private Object[] array;
+	
+	@Setup
+	public void setup()
+	{
+		for( int i = 0; i < 32; i++ )
+		{
+			map.put("KEY_" + i, "value " + i);
+			list.add("item " + i);
+		}
+		map.put("HOST", "localhost");
+		array = list.toArray();
+	}
+	
+	@Benchmark
+	public String toStringMap()
+	{
+		return ObjectUtils.toString(map);
+	}
+	
+	@Benchmark
+	public String toStringList()
+	{
+		return ObjectUtils.toString(list, ",\n\t");
+	}
+	
+	@Benchmark
+	public String toStringArray()
+	{
+		return ObjectUtils.toString(array);
+	}
+	
+	@Benchmark
+	public Object ternaryByName() throws Exception
+	{
+		return ObjectUtils.ternary(file, "getAbsolutePath", "");
+	}
+	
+	@Benchmark
+	public String ternaryAccessor() throws Exception
+	{
+		return ObjectUtils.ternary(file, FileUtils.GET_ABSOLUTE_PATH, "");
+	}
+	
+	@Benchmark
+	public Object mapByName() throws Exception
+	{
+		return ObjectUtils.ternary(map, "get", "", SIG, KEY);
+	}
+	
+	@Benchmark
+	public String mapGetOrDefault()
+	{
+		return ObjectUtils.getOrDefault(map, "HOST", "");
+	}
+}
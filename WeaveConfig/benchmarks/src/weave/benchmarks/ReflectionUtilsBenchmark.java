@@ -0,0 +1,80 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weave.utils.ObjectUtils;
+import weave.utils.ReflectionUtils;
+
+/**
+ * {@link ReflectionUtils#reflectMethod} dispatch next to calling the same member directly.
+ * <br><br>
+ * The static call resolves through the generated registry, the instance call on a
+ * JDK class through a cached method handle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReflectionUtilsBenchmark
+{
+	private static final Class<?>[] SIG = { Object.class };
+	
+	private final Object[] args = { "value" };
+	private final File file = new File("benchmark.txt");
+	
+	@Benchmark
+	public String staticDirect()
+	{
+		return ObjectUtils.toString(args[0]);
+	}
+	
+	@Benchmark
+	public Object staticReflected() throws Exception
+	{
+		return ReflectionUtils.reflectMethod("weave.utils", "ObjectUtils", "toString", SIG, args);
+	}
+	
+	@Benchmark
+	public String instanceDirect()
+	{
+		return file.getName();
+	}
+	
+	@Benchmark
+	public Object instanceReflected() throws Exception
+	{
+		return ReflectionUtils.reflectMethod(file, "getName");
+	}
+}
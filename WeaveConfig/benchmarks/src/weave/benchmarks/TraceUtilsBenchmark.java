@@ -0,0 +1,94 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weave.utils.TraceUtils;
+import weave.utils.TraceUtils.LEVEL;
+
+/**
+ * {@link TraceUtils#traceln(int, LEVEL, String)} throughput with one and with eight
+ * threads logging at once. Console output is discarded, the log files are written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceUtilsBenchmark
+{
+	private static final String MESSAGE = "Benchmark log line with a little bit of context 0123456789";
+	
+	private File root;
+	private PrintStream out;
+	private PrintStream err;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		root = BenchmarkUtils.setupSettings();
+		out = System.out;
+		err = System.err;
+		
+		System.setOut(BenchmarkUtils.nullStream());
+		System.setErr(BenchmarkUtils.nullStream());
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		TraceUtils.flush();
+		System.setOut(out);
+		System.setErr(err);
+		BenchmarkUtils.delete(root);
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public boolean traceUncontended()
+	{
+		return TraceUtils.traceln(TraceUtils.STDOUT, LEVEL.INFO, MESSAGE);
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public boolean traceContended()
+	{
+		return TraceUtils.traceln(TraceUtils.STDOUT, LEVEL.INFO, MESSAGE);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weave.utils.TransferUtils;
+import weave.utils.ZipUtils;
+
+/**
+ * {@link ZipUtils#extract(File, File, int, weave.async.AsyncObserver, int, int)} on synthetic archives.
+ * <br><br>
+ * <code>SMALL_FILES</code> looks like a webapp, thousands of small compressible entries.
+ * <code>LARGE_FILES</code> looks like a bundled server, a few large entries that do not compress.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipUtilsBenchmark
+{
+	@Param({ "SMALL_FILES", "LARGE_FILES" })
+	public String layout;
+	
+	@Param({ "1", "4" })
+	public int threads;
+	
+	private File root;
+	private File zip;
+	private File destination;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		root = BenchmarkUtils.setupSettings();
+		zip = new File(root, "archive.zip");
+		destination = new File(root, "extracted");
+		
+		if( layout.equals("SMALL_FILES") )
+			writeZip(zip, 2000, 4 * TransferUtils.KB, true);
+		else
+			writeZip(zip, 4, 16 * TransferUtils.MB, false);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		BenchmarkUtils.delete(root);
+	}
+	
+	@Benchmark
+	public int extract() throws IOException, InterruptedException
+	{
+		return ZipUtils.extract(zip, destination, TransferUtils.OVERWRITE, null, 0, threads);
+	}
+	
+	private static void writeZip(File f, int entries, int entrySize, boolean compressible) throws IOException
+	{
+		Random r = new Random(entries);
+		byte[] data = new byte[entrySize];
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(f));
+		
+		try {
+			// Directory entries first, the way zip tools write them
+			for( int i = 0; i < Math.min(entries, 16); i++ )
+			{
+				out.putNextEntry(new ZipEntry("dir" + i + "/"));
+				out.closeEntry();
+			}
+			
+			for( int i = 0; i < entries; i++ )
+			{
+				if( compressible )
+					for( int j = 0; j < data.length; j++ )
+						data[j] = (byte) ('a' + r.nextInt(8));
+				else
+					r.nextBytes(data);
+				
+				out.putNextEntry(new ZipEntry("dir" + (i % 16) + "/entry" + i + ".bin"));
+				out.write(data);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.reflect.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the companion classes read by <code>weave.reflect.ReflectableRegistry</code>.
+ * <br><br>
+ * For every class that has <code>@Reflectable</code> members, or is <code>@Reflectable</code>
+ * itself, a class named <code>&lt;Class&gt;_Reflectables</code> is written to the same package.
+ * It registers an invoker per member that casts the arguments and calls the member directly.
+ * Only public members of public classes are called from the companion, everything else
+ * is left to reflection so the companion never reaches past the declared access.
+ * <br><br>
+ * Run with <code>javac -processorpath &lt;processor classes&gt; -processor weave.reflect.processor.ReflectableProcessor</code>.
+ */
+public class ReflectableProcessor extends AbstractProcessor
+{
+	private static final String ANNOTATION = "weave.reflect.Reflectable";
+	private static final String REGISTRY = "weave.reflect.ReflectableRegistry";
+	private static final String SUFFIX = "_Reflectables";
+
+	private final Set<String> generated = new HashSet<String>();
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes()
+	{
+		return Collections.singleton(ANNOTATION);
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		Map<TypeElement, Set<Element>> owners = new LinkedHashMap<TypeElement, Set<Element>>();
+
+		for( TypeElement a : annotations )
+		{
+			for( Element e : roundEnv.getElementsAnnotatedWith(a) )
+			{
+				if( e.getKind().isClass() || e.getKind().isInterface() )
+				{
+					for( Element m : e.getEnclosedElements() )
+						if( m.getKind() == ElementKind.METHOD || m.getKind() == ElementKind.FIELD )
+							add(owners, (TypeElement) e, m);
+				}
+				else if( e.getKind() == ElementKind.METHOD || e.getKind() == ElementKind.FIELD )
+					add(owners, (TypeElement) e.getEnclosingElement(), e);
+			}
+		}
+
+		for( Map.Entry<TypeElement, Set<Element>> entry : owners.entrySet() )
+		{
+			TypeElement owner = entry.getKey();
+			String name = processingEnv.getElementUtils().getBinaryName(owner) + SUFFIX;
+
+			if( !isAccessible(owner) || !generated.add(name) )
+				continue;
+
+			try {
+				write(owner, name, entry.getValue());
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + name + ": " + e.getMessage(), owner);
+			}
+		}
+		// Nothing else handles @Reflectable
+		return true;
+	}
+
+	private void add(Map<TypeElement, Set<Element>> owners, TypeElement owner, Element member)
+	{
+		if( !member.getModifiers().contains(Modifier.PUBLIC) || !canThrow(member) )
+			return;
+
+		Set<Element> members = owners.get(owner);
+		if( members == null )
+			owners.put(owner, members = new LinkedHashSet<Element>());
+		members.add(member);
+	}
+
+	/**
+	 * Check to see if a class and every class enclosing it are public.
+	 */
+	private boolean isAccessible(TypeElement owner)
+	{
+		Element e = owner;
+		while( e instanceof TypeElement )
+		{
+			NestingKind k = ((TypeElement) e).getNestingKind();
+			if( !e.getModifiers().contains(Modifier.PUBLIC) || k == NestingKind.LOCAL || k == NestingKind.ANONYMOUS )
+				return false;
+			e = e.getEnclosingElement();
+		}
+		return true;
+	}
+
+	/**
+	 * Check to see if everything a method throws fits <code>Invoker.invoke() throws Exception</code>.
+	 */
+	private boolean canThrow(Element member)
+	{
+		if( member.getKind() != ElementKind.METHOD )
+			return true;
+
+		TypeMirror exception = processingEnv.getElementUtils().getTypeElement("java.lang.Exception").asType();
+		TypeMirror error = processingEnv.getElementUtils().getTypeElement("java.lang.Error").asType();
+
+		for( TypeMirror t : ((ExecutableElement) member).getThrownTypes() )
+			if( !processingEnv.getTypeUtils().isAssignable(t, exception) && !processingEnv.getTypeUtils().isAssignable(t, error) )
+				return false;
+		return true;
+	}
+
+	private void write(TypeElement owner, String name, Set<Element> members) throws IOException
+	{
+		String pkg = ((PackageElement) packageOf(owner)).getQualifiedName().toString();
+		String simpleName = pkg.isEmpty() ? name : name.substring(pkg.length() + 1);
+		String type = owner.getQualifiedName().toString();
+
+		StringBuilder sb = new StringBuilder();
+		if( !pkg.isEmpty() )
+			sb.append("package ").append(pkg).append(";\n\n");
+
+		sb.append("/**\n");
+		sb.append(" * Direct calls to the reflectable members of {@link ").append(type).append("}.<br>\n");
+		sb.append(" * Generated by ").append(getClass().getName()).append(", do not edit.\n");
+		sb.append(" */\n");
+		sb.append("@SuppressWarnings(\"all\")\n");
+		sb.append("public final class ").append(simpleName).append(" extends ").append(REGISTRY).append(".Table\n");
+		sb.append("{\n");
+		sb.append("\tpublic ").append(simpleName).append("()\n");
+		sb.append("\t{\n");
+
+		for( Element m : members )
+		{
+			boolean isStatic = m.getModifiers().contains(Modifier.STATIC);
+			String target = isStatic ? type : "((" + type + ") instance)";
+			String key;
+			String body;
+
+			if( m.getKind() == ElementKind.FIELD )
+			{
+				key = m.getSimpleName().toString();
+				body = "return " + target + "." + key + ";";
+			}
+			else
+			{
+				ExecutableElement method = (ExecutableElement) m;
+				List<? extends VariableElement> params = method.getParameters();
+				StringBuilder sig = new StringBuilder(method.getSimpleName()).append('(');
+				StringBuilder call = new StringBuilder(target).append('.').append(method.getSimpleName()).append('(');
+
+				for( int i = 0; i < params.size(); i++ )
+				{
+					TypeMirror t = params.get(i).asType();
+					if( i > 0 ) {
+						sig.append(',');
+						call.append(", ");
+					}
+					sig.append(className(t));
+					call.append(cast(t)).append("args[").append(i).append(']');
+				}
+				key = sig.append(')').toString();
+				call.append(')');
+
+				body = ( method.getReturnType().getKind() == TypeKind.VOID ) ?
+						call + "; return null;" :
+						"return " + call + ";";
+			}
+
+			sb.append("\t\tput(\"").append(key).append("\", new ").append(REGISTRY).append(".Invoker() {\n");
+			sb.append("\t\t\tpublic Object invoke(Object instance, Object[] args) throws Exception {\n");
+			sb.append("\t\t\t\t").append(body).append("\n");
+			sb.append("\t\t\t}\n");
+			sb.append("\t\t});\n");
+		}
+
+		sb.append("\t}\n");
+		sb.append("}\n");
+
+		Writer w = processingEnv.getFiler().createSourceFile(name, owner).openWriter();
+		try {
+			w.write(sb.toString());
+		} finally {
+			w.close();
+		}
+	}
+
+	private static Element packageOf(Element e)
+	{
+		while( e.getKind() != ElementKind.PACKAGE )
+			e = e.getEnclosingElement();
+		return e;
+	}
+
+	/**
+	 * Get the cast for an argument, primitives are cast to their wrapper so they unbox.
+	 * Arguments that are already an <code>Object</code> are not cast.
+	 */
+	private String cast(TypeMirror t)
+	{
+		String name;
+		if( t.getKind().isPrimitive() )
+			name = processingEnv.getTypeUtils().boxedClass(processingEnv.getTypeUtils().getPrimitiveType(t.getKind())).getQualifiedName().toString();
+		else
+			name = processingEnv.getTypeUtils().erasure(t).toString();
+		return name.equals("java.lang.Object") ? "" : "(" + name + ") ";
+	}
+
+	/**
+	 * Get the name {@link Class#getName()} returns for a type.
+	 */
+	private String className(TypeMirror t)
+	{
+		t = processingEnv.getTypeUtils().erasure(t);
+
+		if( t.getKind().isPrimitive() )
+			return t.getKind().name().toLowerCase();
+		if( t.getKind() == TypeKind.ARRAY )
+			return "[" + descriptor(((ArrayType) t).getComponentType());
+		return processingEnv.getElementUtils().getBinaryName((TypeElement) ((DeclaredType) t).asElement()).toString();
+	}
+
+	private String descriptor(TypeMirror t)
+	{
+		t = processingEnv.getTypeUtils().erasure(t);
+
+		switch( t.getKind() )
+		{
+			case BOOLEAN:	return "Z";
+			case BYTE:		return "B";
+			case CHAR:		return "C";
+			case SHORT:		return "S";
+			case INT:		return "I";
+			case LONG:		return "J";
+			case FLOAT:		return "F";
+			case DOUBLE:	return "D";
+			case ARRAY:		return "[" + descriptor(((ArrayType) t).getComponentType());
+			default:		return "L" + className(t) + ";";
+		}
+	}
+}
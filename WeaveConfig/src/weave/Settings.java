@@ -32,12 +32,9 @@ import static weave.utils.TraceUtils.LEVEL.WARN;
 
 import java.awt.Font;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
@@ -58,12 +55,15 @@ import weave.managers.TrayManager;
 import weave.reflect.Reflectable;
 import weave.server.ServerListener;
 import weave.utils.BugReportUtils;
+import weave.utils.DownloadUtils;
 import weave.utils.FileUtils;
 import weave.utils.ProcessUtils;
 import weave.utils.RegistryUtils;
 import weave.utils.RemoteUtils;
+import weave.utils.SettingsStore;
 import weave.utils.StringUtils;
 import weave.utils.SyscallCreatorUtils;
+import weave.utils.TraceUtils;
 
 public class Settings extends Globals
 {
@@ -137,8 +137,12 @@ public class Settings extends Globals
 	public static final String WEAVE_ROOT_DIRECTORY_NAME		= ".weave";
 	public static final String LOGS_DIRECTORY_NAME				= "logs";
 	public static final String BIN_DIRECTORY_NAME 				= "bin";
-	public static final String SETTINGS_FILE_NAME 				= "settings.save";
-	public static final String CONFIG_FILE_NAME 				= "configs.save";
+	public static final String SETTINGS_FILE_NAME 				= "settings.dat";
+	public static final String CONFIG_FILE_NAME 				= "configs.dat";
+	public static final String LEGACY_SETTINGS_FILE_NAME		= "settings.save";
+	public static final String LEGACY_CONFIG_FILE_NAME			= "configs.save";
+	public static final String CONFIG_MANIFEST_FILE_NAME		= "config.manifest";
+	public static final String FILES_MANIFEST_FILE_NAME			= "files.manifest";
 	public static final String SLOCK_FILE_NAME					= "s.lock";
 	public static final String ULOCK_FILE_NAME					= "u.lock";
 	public static final String ICON_FILE_NAME					= "icon.ico";
@@ -146,6 +150,7 @@ public class Settings extends Globals
 	public static final String DOWNLOADS_DIRECTORY_NAME 		= "downloads";
 	public static final String DOWNLOADS_TMP_DIRECTORY_NAME		= "tmp";
 	public static final String WEAVE_BINARIES_DIRECTORY_NAME 	= "weave-binaries";
+	public static final String REVISION_STORE_DIRECTORY_NAME	= ".store";
 	public static final String ANALYST_BINARIES_DIRECTORY_NAME	= "analyst-binaries";
 	public static final String DEPLOYED_PLUGINS_DIRECTORY_NAME	= "plugins";
 	public static final String UNZIP_DIRECTORY_NAME 			= "unzip";
@@ -159,11 +164,16 @@ public class Settings extends Globals
 	public static File LIBS_DIRECTORY					= null;
 	public static File LOGS_DIRECTORY					= null;
 	public static File WEAVE_BINARIES_DIRECTORY 		= null;
+	public static File REVISION_STORE_DIRECTORY			= null;
 	public static File ANALYST_BINARIES_DIRECTORY		= null;
 	public static File UNZIP_DIRECTORY 					= null;
 	public static File DEPLOYED_PLUGINS_DIRECTORY		= null;
 	public static File SETTINGS_FILE 					= null;
 	public static File CONFIG_FILE						= null;
+	public static File LEGACY_SETTINGS_FILE				= null;
+	public static File LEGACY_CONFIG_FILE				= null;
+	public static File CONFIG_MANIFEST_FILE				= null;
+	public static File FILES_MANIFEST_FILE				= null;
 	public static File SLOCK_FILE						= null;
 	public static File ULOCK_FILE						= null;
 	public static File ICON_FILE						= null;
@@ -179,6 +189,7 @@ public class Settings extends Globals
 	 * Settings File
 	 */
 	private static Map<String, Object> SETTINGS_MAP 	= null;
+	private static SettingsStore SETTINGS_STORE			= null;
 
 	public static boolean UPDATE_OVERRIDE				= false;
 	public static boolean CONFIGURED					= false;
@@ -287,7 +298,7 @@ public class Settings extends Globals
 	 */
 	public static boolean settingsFileExists()
 	{
-		return binFileExists(SETTINGS_FILE_NAME);
+		return binFileExists(SETTINGS_FILE_NAME) || binFileExists(LEGACY_SETTINGS_FILE_NAME);
 	}
 	
 	
@@ -298,7 +309,23 @@ public class Settings extends Globals
 	 */
 	public static boolean configsFileExists()
 	{
-		return binFileExists(CONFIG_FILE_NAME);
+		return binFileExists(CONFIG_FILE_NAME) || binFileExists(LEGACY_CONFIG_FILE_NAME);
+	}
+	
+	
+	/**
+	 * Get the store the settings are saved in.<br>
+	 * The first time this is called after an upgrade, the settings
+	 * are migrated from the old serialized settings file.
+	 * 
+	 * @return The settings store
+	 * @throws IOException
+	 */
+	public static synchronized SettingsStore getSettingsStore() throws IOException
+	{
+		if( SETTINGS_STORE == null )
+			SETTINGS_STORE = SettingsStore.open(SETTINGS_FILE, LEGACY_SETTINGS_FILE);
+		return SETTINGS_STORE;
 	}
 	
 	/**
@@ -326,7 +353,8 @@ public class Settings extends Globals
 	
 	
 	/**
-	 * Write the current values of data members to the settings map.
+	 * Write the current values of data members to the settings store.<br>
+	 * Only the values that changed since the last save are written.
 	 *
 	 * @return <code>true</code> if successful write, <code>false</code> otherwise
 	 * @see load()
@@ -338,8 +366,6 @@ public class Settings extends Globals
 			
 			if( !WEAVE_ROOT_DIRECTORY.exists() )
 				WEAVE_ROOT_DIRECTORY.mkdirs();
-			if( !SETTINGS_FILE.exists() )
-				SETTINGS_FILE.createNewFile();
 			
 			SETTINGS_MAP = new HashMap<String, Object>();
 			SETTINGS_MAP.put("CONFIGURED", CONFIGURED);
@@ -351,9 +377,7 @@ public class Settings extends Globals
 			SETTINGS_MAP.put("INSTALL_MODE", INSTALL_MODE);
 			SETTINGS_MAP.put("RPC_PORT", RPC_PORT);
 			
-			ObjectOutputStream outstream = new ObjectOutputStream(new FileOutputStream(SETTINGS_FILE));
-			outstream.writeObject(SETTINGS_MAP);
-			outstream.close();
+			getSettingsStore().putAll(SETTINGS_MAP);
 			put(STDOUT, "DONE");
 		} catch (IOException e) {
 			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
@@ -372,23 +396,14 @@ public class Settings extends Globals
 	 * @return <code>true</code> if successful read, <code>false</code> otherwise
 	 * @see save()
 	 */
-	@SuppressWarnings("unchecked")
 	public static boolean load()
 	{
 		if( !settingsFileExists() ) return false;
 		
-		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
-			trace(STDERR, e); 
-		}
-		
 		try {
 			trace(STDOUT, WARN, StringUtils.rpad("Loading settings file", ".", LOG_PADDING_LENGTH));
 			
-			ObjectInputStream instream = new ObjectInputStream(new FileInputStream(SETTINGS_FILE));
-			SETTINGS_MAP = (Map<String, Object>) instream.readObject();
-			instream.close();
+			SETTINGS_MAP = getSettingsStore().getAll();
 			
 			/* Obtain the map values and assign them to data members */
 			CONFIGURED = 			(Boolean)		ternary(SETTINGS_MAP.get("CONFIGURED"), 			CONFIGURED);
@@ -396,19 +411,10 @@ public class Settings extends Globals
 			UNIQUE_ID = 			(String)		ternary(SETTINGS_MAP.get("UNIQUE_ID"), 				UNIQUE_ID);
 			LAST_UPDATE_CHECK = 	(String) 		ternary(SETTINGS_MAP.get("LAST_UPDATE_CHECK"), 		LAST_UPDATE_CHECK);
 			UPDATE_OVERRIDE	=		(Boolean)		ternary(SETTINGS_MAP.get("UPDATE_OVERRIDE"), 		UPDATE_OVERRIDE);
-			LAUNCH_MODE = 			(LAUNCH_ENUM)	ternary(SETTINGS_MAP.get("LAUNCH_MODE"), 			LAUNCH_MODE);
-			INSTALL_MODE = 			(INSTALL_ENUM)	ternary(SETTINGS_MAP.get("INSTALL_MODE"), 			INSTALL_MODE);
+			LAUNCH_MODE = 							enumValue(SETTINGS_MAP.get("LAUNCH_MODE"), 			LAUNCH_MODE);
+			INSTALL_MODE = 							enumValue(SETTINGS_MAP.get("INSTALL_MODE"), 		INSTALL_MODE);
 			RPC_PORT = 				(Integer)		ternary(SETTINGS_MAP.get("RPC_PORT"), 				RPC_PORT);
 
-		} catch (FileNotFoundException e) {
-			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
-			trace(STDERR, e);
-			JOptionPane.showMessageDialog(null, "Error reading settings file: File not found", "Error", JOptionPane.ERROR_MESSAGE);
-			return false;
-		} catch (ClassNotFoundException e) {
-			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
-			trace(STDERR, e);
-			return false;
 		} catch (IOException e) {
 			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
 			trace(STDERR, e);
@@ -419,6 +425,26 @@ public class Settings extends Globals
 		return true;
 	}
 	
+	/**
+	 * Read an enum constant saved by name.
+	 * 
+	 * @param name The saved name
+	 * @param failDefault The value to use if the name is missing or not a constant of the enum
+	 * @return The enum constant
+	 */
+	private static <E extends Enum<E>> E enumValue(Object name, E failDefault)
+	{
+		if( name instanceof String )
+		{
+			try {
+				return Enum.valueOf(failDefault.getDeclaringClass(), (String) name);
+			} catch (IllegalArgumentException e) {
+				// Saved by a version with different constants
+			}
+		}
+		return failDefault;
+	}
+	
 	
 	/**
 	 * Create appropriate file pointers to directories in the system 
@@ -469,6 +495,10 @@ public class Settings extends Globals
 		BIN_DIRECTORY				= new File(WEAVE_ROOT_DIRECTORY, 	F_S + BIN_DIRECTORY_NAME + F_S);
 		SETTINGS_FILE 				= new File(BIN_DIRECTORY, 			F_S + SETTINGS_FILE_NAME);
 		CONFIG_FILE					= new File(BIN_DIRECTORY, 			F_S + CONFIG_FILE_NAME);
+		LEGACY_SETTINGS_FILE		= new File(BIN_DIRECTORY, 			F_S + LEGACY_SETTINGS_FILE_NAME);
+		LEGACY_CONFIG_FILE			= new File(BIN_DIRECTORY, 			F_S + LEGACY_CONFIG_FILE_NAME);
+		CONFIG_MANIFEST_FILE		= new File(BIN_DIRECTORY, 			F_S + CONFIG_MANIFEST_FILE_NAME);
+		FILES_MANIFEST_FILE			= new File(BIN_DIRECTORY, 			F_S + FILES_MANIFEST_FILE_NAME);
 		SLOCK_FILE					= new File(BIN_DIRECTORY,			F_S + SLOCK_FILE_NAME);
 		ULOCK_FILE					= new File(BIN_DIRECTORY, 			F_S + ULOCK_FILE_NAME);
 		ICON_FILE					= new File(BIN_DIRECTORY,			F_S + ICON_FILE_NAME);
@@ -476,6 +506,7 @@ public class Settings extends Globals
 		DOWNLOADS_DIRECTORY 		= new File(WEAVE_ROOT_DIRECTORY, 	F_S + DOWNLOADS_DIRECTORY_NAME + F_S);
 		DOWNLOADS_TMP_DIRECTORY		= new File(DOWNLOADS_DIRECTORY, 	F_S + DOWNLOADS_TMP_DIRECTORY_NAME + F_S);
 		WEAVE_BINARIES_DIRECTORY 	= new File(DOWNLOADS_DIRECTORY, 	F_S + WEAVE_BINARIES_DIRECTORY_NAME + F_S);
+		REVISION_STORE_DIRECTORY	= new File(WEAVE_BINARIES_DIRECTORY,	F_S + REVISION_STORE_DIRECTORY_NAME + F_S);
 		ANALYST_BINARIES_DIRECTORY	= new File(DOWNLOADS_DIRECTORY,		F_S + ANALYST_BINARIES_DIRECTORY_NAME + F_S);
 		DEPLOYED_PLUGINS_DIRECTORY	= new File(WEAVE_ROOT_DIRECTORY, 	F_S + DEPLOYED_PLUGINS_DIRECTORY_NAME + F_S);
 		UNZIP_DIRECTORY 			= new File(WEAVE_ROOT_DIRECTORY, 	F_S + UNZIP_DIRECTORY_NAME + F_S);
@@ -955,6 +986,7 @@ public class Settings extends Globals
 	/**
 	 * Removes any temporary directories created by the tool
 	 * This should be run before each shutdown just as a precaution.
+	 * Unfinished downloads that can still be resumed are kept.
 	 * 
 	 * @throws InterruptedException
 	 */
@@ -968,7 +1000,7 @@ public class Settings extends Globals
 		if( DOWNLOADS_TMP_DIRECTORY.exists() )
 		{
 			do {
-				success = FileUtils.recursiveDelete(Settings.DOWNLOADS_TMP_DIRECTORY);
+				success = DownloadUtils.deleteStaleDownloads(Settings.DOWNLOADS_TMP_DIRECTORY);
 				Thread.sleep(50);
 			} while( success == false && loop < 3 );
 		}
@@ -1028,6 +1060,7 @@ public class Settings extends Globals
 			releaseLock();
 		
 		traceln(STDOUT, INFO, "=== " + Settings.CURRENT_PROGRAM_NAME + " Shutting Down ===");
+		TraceUtils.flush();
 		System.exit(errno);
 	}
 }
@@ -19,10 +19,14 @@
 
 package weave.async;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import weave.core.Function;
 
@@ -30,17 +34,20 @@ public class AsyncFunction extends Function<Object, Function<Object, Object>>
 {
 	private String description = "";
 	private List<AsyncCallback> callbacks = null;
-	private Thread t = null;
+	private final List<Runnable> cancelListeners = new CopyOnWriteArrayList<Runnable>();
+	private volatile AsyncTask task = null;
+	private volatile Future<?> future = null;
+	private volatile boolean longRunning = false;
 	
 	public AsyncFunction()
 	{
 		description = "";
-		callbacks = Collections.synchronizedList(new ArrayList<AsyncCallback>());
+		callbacks = new CopyOnWriteArrayList<AsyncCallback>();
 	}
 	public AsyncFunction(String desc)
 	{
 		description = desc;
-		callbacks = Collections.synchronizedList(new ArrayList<AsyncCallback>());
+		callbacks = new CopyOnWriteArrayList<AsyncCallback>();
 	}
 	
 	protected Object doInBackground() 
@@ -66,34 +73,103 @@ public class AsyncFunction extends Function<Object, Function<Object, Object>>
 				}
 			};
 			
-		AsyncCallback c = new AsyncCallback() {
-			@Override
-			public void run(Object o) {
-				AsyncTaskManager.removeTask(AsyncFunction.this);
-			}
-		};
-		addCallback(c);
-		
-		AsyncTaskManager.addTask(this);
+		final AsyncTask handle = AsyncTaskManager.register(this);
+		task = handle;
 		
-		t = new Thread(new Runnable() {
+		try {
+			future = submit(handle, backgroundTask);
+		} catch (RejectedExecutionException e) {
+			// The pool is full, the task never ran
+			if( handle.cancel() )
+				AsyncTaskManager.unregister(handle);
+			throw e;
+		}
+		return this;
+	}
+	
+	private Future<?> submit(final AsyncTask handle, final Function<Object, Object> backgroundTask)
+	{
+		return AsyncTaskManager.submit(new Runnable() {
 			@Override
 			public void run() {
-				Object o = backgroundTask.call();
+				// Cancelled while it was queued
+				if( !handle.start() )
+					return;
 				
-				runCallbacks(o);
+				AsyncTask.State state = AsyncTask.State.FAILED;
+				try {
+					Object o = backgroundTask.call();
+					
+					runCallbacks(o);
+					state = AsyncTask.State.DONE;
+				} catch (RuntimeException e) {
+					// The pool would otherwise swallow this in the Future
+					trace(STDERR, e);
+				} finally {
+					handle.finish(state);
+					AsyncTaskManager.unregister(handle);
+				}
 			}
-		});
-		t.start();
-		return this;
+		}, longRunning);
 	}
 	
 	public void cancel()
 	{
-		AsyncTaskManager.removeTask(this);
+		AsyncTask t = task;
+		Future<?> f = future;
+		
 		removeAllCallbacks();
-		t.interrupt();
-		t = null;
+		if( t != null && t.cancel() )
+			AsyncTaskManager.unregister(t);
+		if( f != null )
+			f.cancel(true);
+		
+		for( Runnable r : cancelListeners )
+			r.run();
+	}
+	
+	/**
+	 * Run something whenever this function is cancelled.<br>
+	 * Unlike callbacks, cancel listeners are not removed by {@link #cancel()}.
+	 * 
+	 * @param r The listener
+	 * @return This function
+	 */
+	public AsyncFunction addCancelListener(Runnable r) {
+		cancelListeners.add(r);
+		return this;
+	}
+	public AsyncFunction removeCancelListener(Runnable r) {
+		cancelListeners.remove(r);
+		return this;
+	}
+	
+	/**
+	 * Get the handle of the most recent call of this function.
+	 * 
+	 * @return The task handle, or <code>null</code> if it was never called
+	 */
+	public AsyncTask getTask()
+	{
+		return task;
+	}
+	
+	/**
+	 * Mark this function as long running, like a download or a server process.
+	 * Long running functions get their own thread instead of a place in the
+	 * shared pool, so they don't keep short functions waiting.
+	 * 
+	 * @param longRunning <code>true</code> if this function runs for a long time
+	 * @return This function
+	 */
+	public AsyncFunction setLongRunning(boolean longRunning)
+	{
+		this.longRunning = longRunning;
+		return this;
+	}
+	public boolean isLongRunning()
+	{
+		return longRunning;
 	}
 	
 	public String toString()
@@ -111,9 +187,7 @@ public class AsyncFunction extends Function<Object, Function<Object, Object>>
 		return this;
 	}
 	public AsyncFunction removeAllCallbacks() {
-		Iterator<AsyncCallback> it = callbacks.iterator();
-		while( it.hasNext() )
-			removeCallback(it.next());
+		callbacks.clear();
 		return this;
 	}
 	
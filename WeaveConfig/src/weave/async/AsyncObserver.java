@@ -2,12 +2,12 @@ package weave.async;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.zip.ZipException;
 
 import weave.Globals;
 import weave.utils.FileUtils;
+import weave.utils.RemoteMetadata;
 import weave.utils.ZipUtils;
 
 public abstract class AsyncObserver extends Globals
@@ -32,7 +32,15 @@ public abstract class AsyncObserver extends Globals
 		info.min = 0;
 		info.cur = 0;
 		info.percent = 0;
-		info.max = ((HttpURLConnection)url.openConnection()).getContentLengthLong();
+		
+		info.max = -1;
+		try {
+			RemoteMetadata metadata = RemoteMetadata.probe(url);
+			if( metadata != null )
+				info.max = metadata.getLength();
+		} catch (IOException e) {
+			// The server refused the probe, the length stays unknown
+		}
 	}
 	
 	public class AsyncObserverObject
@@ -1,6 +1,497 @@
 package weave.async;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weave.core.Function;
+
+/**
+ * The eventual result of one or more {@link AsyncFunction}s.
+ * <br><br>
+ * A promise is settled exactly once, either fulfilled with a value, rejected with
+ * a {@link Throwable}, or cancelled. Functions added with {@link #then(Function)}
+ * run on the thread that settles the promise, so chaining stages does not need
+ * any threads besides the ones the stages themselves run on.
+ * <br><br>
+ * Example Usage:
+ * <code>
+ * <pre>
+ * 	AsyncPromise.all(AsyncPromise.run(a), AsyncPromise.run(b))
+ * 		.then(new Function&lt;Object, Object&gt;() {
+ * 			public Object call(Object... results) {
+ * 				return AsyncPromise.run(c);
+ * 			}
+ * 		})
+ * 		.timeout(30, TimeUnit.SECONDS);
+ * </pre>
+ * </code>
+ *
+ * Cancelling a promise cancels whatever it is waiting on, the running
+ * {@link AsyncFunction} or the promises it was derived from, and every
+ * promise derived from it is cancelled as well.
+ */
 public class AsyncPromise
 {
-	
+	public static enum State {
+		PENDING, FULFILLED, REJECTED, CANCELLED
+	};
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "AsyncPromise-Timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private State state = State.PENDING;
+	private Object value = null;
+	private Throwable error = null;
+
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+	private List<Runnable> cancellers = new ArrayList<Runnable>();
+
+
+	/**
+	 * Call an {@link AsyncFunction} and get a promise of its result.<br>
+	 * The promise is rejected if the function throws, or with a {@link CancellationException}
+	 * if the function is cancelled directly. Cancelling the promise cancels the function.
+	 *
+	 * @param f The function to call
+	 * @return The promise of the function's result
+	 */
+	public static AsyncPromise run(final AsyncFunction f)
+	{
+		final AsyncPromise p = new AsyncPromise();
+
+		p.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				f.cancel();
+			}
+		});
+		final AsyncCallback callback = new AsyncCallback() {
+			@Override
+			public void run(Object o) {
+				p.resolve(o);
+			}
+		};
+		// Cancelling f drops its callbacks, so the promise would never settle
+		final Runnable cancelled = new Runnable() {
+			@Override
+			public void run() {
+				p.reject(new CancellationException("The function was cancelled"));
+			}
+		};
+		f.addCallback(callback);
+		f.addCancelListener(cancelled);
+		p.addListener(new Runnable() {
+			@Override
+			public void run() {
+				// Later calls of f should not settle this promise again
+				f.removeCallback(callback);
+				f.removeCancelListener(cancelled);
+			}
+		});
+		f.call(new Function<Object, Object>() {
+			@Override
+			public Object call(Object... arguments) {
+				try {
+					return f.doInBackground();
+				} catch (RuntimeException e) {
+					p.reject(e);
+					throw e;
+				}
+			}
+		});
+		return p;
+	}
+
+	public static AsyncPromise resolved(Object value)
+	{
+		AsyncPromise p = new AsyncPromise();
+		p.resolve(value);
+		return p;
+	}
+
+	public static AsyncPromise rejected(Throwable error)
+	{
+		AsyncPromise p = new AsyncPromise();
+		p.reject(error);
+		return p;
+	}
+
+	/**
+	 * Get a promise that is fulfilled once all the given promises are fulfilled.<br>
+	 * The value is an <code>Object[]</code> of their values in the same order.
+	 * If any of them is rejected or cancelled, the rest are cancelled and the
+	 * returned promise settles the same way.
+	 *
+	 * @param promises The promises to wait for
+	 * @return The combined promise
+	 */
+	public static AsyncPromise all(final AsyncPromise ...promises)
+	{
+		final AsyncPromise p = new AsyncPromise();
+		final Object[] values = new Object[promises.length];
+		final AtomicInteger remaining = new AtomicInteger(promises.length);
+
+		if( promises.length == 0 )
+		{
+			p.resolve(values);
+			return p;
+		}
+
+		p.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				for( AsyncPromise q : promises )
+					q.cancel();
+			}
+		});
+
+		for( int i = 0; i < promises.length; i++ )
+		{
+			final int index = i;
+			final AsyncPromise q = promises[i];
+			q.addListener(new Runnable() {
+				@Override
+				public void run() {
+					if( q.isFulfilled() ) {
+						values[index] = q.value;
+						if( remaining.decrementAndGet() == 0 )
+							p.resolve(values);
+					}
+					else if( p.settleFrom(q) )
+						for( AsyncPromise other : promises )
+							other.cancel();
+				}
+			});
+		}
+		return p;
+	}
+
+	/**
+	 * Get a promise that is fulfilled with the value of the first of the given
+	 * promises to be fulfilled. The others are then cancelled.
+	 * If all of them are rejected, it is rejected with the last error.
+	 *
+	 * @param promises The promises to wait for
+	 * @return The combined promise
+	 */
+	public static AsyncPromise any(final AsyncPromise ...promises)
+	{
+		final AsyncPromise p = new AsyncPromise();
+		final AtomicInteger remaining = new AtomicInteger(promises.length);
+
+		if( promises.length == 0 )
+		{
+			p.reject(new IllegalArgumentException("No promises to wait for"));
+			return p;
+		}
+
+		p.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				for( AsyncPromise q : promises )
+					q.cancel();
+			}
+		});
+
+		for( final AsyncPromise q : promises )
+		{
+			q.addListener(new Runnable() {
+				@Override
+				public void run() {
+					if( q.isFulfilled() ) {
+						if( p.resolve(q.value) )
+							for( AsyncPromise other : promises )
+								other.cancel();
+					}
+					else if( remaining.decrementAndGet() == 0 )
+						p.settleFrom(q);
+				}
+			});
+		}
+		return p;
+	}
+
+
+	/**
+	 * Fulfill the promise.<br>
+	 * If the value is another promise, this one settles when that one does.
+	 *
+	 * @param v The value
+	 * @return <code>true</code> if this call settled the promise, <code>false</code> if it was
+	 * 			already settled or now waits on the promise <code>v</code>
+	 */
+	public boolean resolve(Object v)
+	{
+		if( v instanceof AsyncPromise )
+		{
+			adopt((AsyncPromise) v);
+			return false;
+		}
+		return settle(State.FULFILLED, v, null);
+	}
+
+	/**
+	 * Reject the promise.
+	 *
+	 * @param e The reason
+	 * @return <code>true</code> if this call settled the promise, <code>false</code> if it was already settled
+	 */
+	public boolean reject(Throwable e)
+	{
+		return settle(State.REJECTED, null, e);
+	}
+
+	/**
+	 * Cancel the promise and whatever it is waiting on.
+	 *
+	 * @return <code>true</code> if the promise was cancelled, <code>false</code> if it was already settled
+	 */
+	public boolean cancel()
+	{
+		if( !settle(State.CANCELLED, null, new CancellationException()) )
+			return false;
+
+		runCancellers();
+		return true;
+	}
+
+	/**
+	 * Get a promise of the result of calling <code>onFulfilled</code> with this promise's value.
+	 *
+	 * @see #then(Function, Function)
+	 */
+	public AsyncPromise then(Function<Object, Object> onFulfilled)
+	{
+		return then(onFulfilled, null);
+	}
+
+	/**
+	 * Get a promise of the result of handling this promise's outcome.
+	 * <br><br>
+	 * If this promise is fulfilled, <code>onFulfilled</code> is called with its value.
+	 * If it is rejected, <code>onRejected</code> is called with the error. Either
+	 * function may return another promise to continue with. A missing handler passes
+	 * the outcome through, a handler that throws rejects the returned promise.
+	 *
+	 * @param onFulfilled Called with the value, may be <code>null</code>
+	 * @param onRejected Called with the error, may be <code>null</code>
+	 * @return The derived promise
+	 */
+	public AsyncPromise then(final Function<Object, Object> onFulfilled, final Function<Object, Object> onRejected)
+	{
+		final AsyncPromise next = new AsyncPromise();
+
+		next.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				AsyncPromise.this.cancel();
+			}
+		});
+
+		addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if( isFulfilled() && onFulfilled != null )
+						next.resolve(onFulfilled.call(value));
+					else if( getState() == State.REJECTED && onRejected != null )
+						next.resolve(onRejected.call(error));
+					else
+						next.settleFrom(AsyncPromise.this);
+				} catch (RuntimeException e) {
+					next.reject(e);
+				}
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Cancel the promise if it is not settled within the given time.<br>
+	 * Promises derived from it are rejected with a {@link TimeoutException}.
+	 *
+	 * @param time The time to wait
+	 * @param unit The unit of <code>time</code>
+	 * @return A promise that settles like this one or times out
+	 */
+	public AsyncPromise timeout(long time, TimeUnit unit)
+	{
+		final AsyncPromise next = then(null, null);
+		final ScheduledFuture<?> task = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if( next.reject(new TimeoutException("Promise timed out")) )
+					AsyncPromise.this.cancel();
+			}
+		}, time, unit);
+
+		next.addListener(new Runnable() {
+			@Override
+			public void run() {
+				task.cancel(false);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Block until the promise is settled.
+	 *
+	 * @return The value
+	 * @throws InterruptedException
+	 * @throws ExecutionException If the promise was rejected
+	 * @throws CancellationException If the promise was cancelled
+	 */
+	public Object get() throws InterruptedException, ExecutionException
+	{
+		synchronized( this )
+		{
+			while( state == State.PENDING )
+				wait();
+		}
+		return outcome();
+	}
+
+	/**
+	 * Block until the promise is settled or the time runs out.
+	 *
+	 * @param time The time to wait
+	 * @param unit The unit of <code>time</code>
+	 * @return The value
+	 * @throws InterruptedException
+	 * @throws ExecutionException If the promise was rejected
+	 * @throws TimeoutException If the promise did not settle in time
+	 * @throws CancellationException If the promise was cancelled
+	 */
+	public Object get(long time, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(time);
+		synchronized( this )
+		{
+			while( state == State.PENDING )
+			{
+				long remaining = deadline - System.nanoTime();
+				if( remaining <= 0 )
+					throw new TimeoutException();
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		}
+		return outcome();
+	}
+
+	synchronized public State getState()	{	return state;						}
+	public boolean isDone()					{	return getState() != State.PENDING;	}
+	public boolean isFulfilled()			{	return getState() == State.FULFILLED;	}
+	public boolean isCancelled()			{	return getState() == State.CANCELLED;	}
+
+
+	private Object outcome() throws ExecutionException
+	{
+		switch( getState() )
+		{
+			case FULFILLED:
+				return value;
+			case CANCELLED:
+				throw (CancellationException) new CancellationException().initCause(error);
+			default:
+				throw new ExecutionException(error);
+		}
+	}
+
+	private void adopt(final AsyncPromise other)
+	{
+		onCancel(new Runnable() {
+			@Override
+			public void run() {
+				other.cancel();
+			}
+		});
+		other.addListener(new Runnable() {
+			@Override
+			public void run() {
+				settleFrom(other);
+			}
+		});
+	}
+
+	private boolean settleFrom(AsyncPromise other)
+	{
+		return settle(other.getState(), other.value, other.error);
+	}
+
+	private boolean settle(State s, Object v, Throwable e)
+	{
+		List<Runnable> toRun;
+		synchronized( this )
+		{
+			if( state != State.PENDING )
+				return false;
+
+			state = s;
+			value = v;
+			error = e;
+			toRun = listeners;
+			listeners = null;
+
+			if( s != State.CANCELLED )
+				cancellers = null;
+
+			notifyAll();
+		}
+
+		for( Runnable r : toRun )
+			r.run();
+		return true;
+	}
+
+	private void addListener(Runnable r)
+	{
+		synchronized( this )
+		{
+			if( state == State.PENDING ) {
+				listeners.add(r);
+				return;
+			}
+		}
+		r.run();
+	}
+
+	private void onCancel(Runnable r)
+	{
+		synchronized( this )
+		{
+			if( state == State.PENDING ) {
+				cancellers.add(r);
+				return;
+			}
+		}
+	}
+
+	private void runCancellers()
+	{
+		List<Runnable> toRun;
+		synchronized( this )
+		{
+			toRun = cancellers;
+			cancellers = null;
+		}
+		if( toRun != null )
+			for( Runnable r : toRun )
+				r.run();
+	}
 }
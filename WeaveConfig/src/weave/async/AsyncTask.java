@@ -0,0 +1,124 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.async;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The handle {@link AsyncTaskManager} keeps for one call of an {@link AsyncFunction}.
+ * <br><br>
+ * State changes are atomic so a task that is cancelled while it waits in the
+ * queue never starts, and a task that already finished can not be cancelled.
+ */
+public class AsyncTask
+{
+	public static enum State {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED
+	};
+
+	private final long id;
+	private final AsyncFunction function;
+	private final AtomicReference<State> state = new AtomicReference<State>(State.QUEUED);
+
+	private final long queuedAt;
+	private volatile long startedAt = 0L;
+	private volatile long endedAt = 0L;
+
+	AsyncTask(long id, AsyncFunction function)
+	{
+		this.id = id;
+		this.function = function;
+		this.queuedAt = System.currentTimeMillis();
+	}
+
+	boolean start()
+	{
+		if( !state.compareAndSet(State.QUEUED, State.RUNNING) )
+			return false;
+
+		startedAt = System.currentTimeMillis();
+		return true;
+	}
+
+	boolean finish(State s)
+	{
+		if( !state.compareAndSet(State.RUNNING, s) )
+			return false;
+
+		endedAt = System.currentTimeMillis();
+		return true;
+	}
+
+	boolean cancel()
+	{
+		State s = state.get();
+		while( s == State.QUEUED || s == State.RUNNING )
+		{
+			if( state.compareAndSet(s, State.CANCELLED) ) {
+				endedAt = System.currentTimeMillis();
+				return true;
+			}
+			s = state.get();
+		}
+		return false;
+	}
+
+	public long getId()						{	return id;									}
+	public AsyncFunction getFunction()		{	return function;							}
+	public State getState()					{	return state.get();							}
+	public long getQueuedAt()				{	return queuedAt;							}
+	public long getStartedAt()				{	return startedAt;							}
+	public long getEndedAt()				{	return endedAt;								}
+	public boolean isFinished()				{	return endedAt != 0L;						}
+
+	/**
+	 * Get how long the task waited for a thread.
+	 *
+	 * @return The wait time in milliseconds, up to now if the task has not started yet
+	 */
+	public long getWaitTime()
+	{
+		long start = startedAt;
+		if( start == 0L )
+			return ( isFinished() ? endedAt : System.currentTimeMillis() ) - queuedAt;
+		return start - queuedAt;
+	}
+
+	/**
+	 * Get how long the task has been running.
+	 *
+	 * @return The run time in milliseconds, up to now if the task is still running
+	 */
+	public long getDuration()
+	{
+		long start = startedAt;
+		if( start == 0L )
+			return 0L;
+		return ( isFinished() ? endedAt : System.currentTimeMillis() ) - start;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "#" + id + " " + getState() +
+				" (waited " + getWaitTime() + " ms, ran " + getDuration() + " ms) " +
+				function.toString();
+	}
+}
@@ -1,79 +1,297 @@
 package weave.async;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import weave.Settings;
+import weave.core.Function;
 import weave.reflect.Reflectable;
 
 @Reflectable
 public class AsyncTaskManager 
 {
-	private static List<AsyncFunction> tasks = new ArrayList<AsyncFunction>();
+	/**
+	 * Tasks that are queued or running, by id.
+	 */
+	private static final ConcurrentMap<Long, AsyncTask> tasks = new ConcurrentHashMap<Long, AsyncTask>();
 	
+	/**
+	 * The most recently finished tasks, oldest first.
+	 */
+	private static final ConcurrentLinkedQueue<AsyncTask> history = new ConcurrentLinkedQueue<AsyncTask>();
+	private static final AtomicInteger historySize = new AtomicInteger(0);
+	private static final int HISTORY_SIZE = 50;
+	
+	private static final AtomicLong nextId = new AtomicLong(1L);
+	
+	/**
+	 * The number of threads kept for running {@link AsyncFunction}s.<br>
+	 * Can be set with the <code>weave.async.poolSize</code> system property.
+	 */
+	public static final int DEFAULT_POOL_SIZE = Integer.getInteger("weave.async.poolSize", Math.max(4, Runtime.getRuntime().availableProcessors()));
+	
+	/**
+	 * The number of threads kept for running long {@link AsyncFunction}s.<br>
+	 * Can be set with the <code>weave.async.longPoolSize</code> system property.
+	 */
+	public static final int DEFAULT_LONG_POOL_SIZE = Integer.getInteger("weave.async.longPoolSize", 16);
+	
+	/**
+	 * The number of tasks each pool holds waiting for a thread.<br>
+	 * Can be set with the <code>weave.async.queueSize</code> system property.
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = Integer.getInteger("weave.async.queueSize", 1024);
+	
+	private static final int KEEP_ALIVE = 30;
+	
+	/**
+	 * The pool short {@link AsyncFunction}s run on.
+	 * <br><br>
+	 * It has exactly {@link #DEFAULT_POOL_SIZE} threads and a queue of
+	 * {@link #DEFAULT_QUEUE_SIZE} tasks. A task that does not fit is rejected with a
+	 * {@link RejectedExecutionException}, it never runs on the calling thread,
+	 * which may be the event dispatch thread.
+	 * Idle threads exit after {@value #KEEP_ALIVE} seconds.
+	 */
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			DEFAULT_POOL_SIZE, DEFAULT_POOL_SIZE,
+			KEEP_ALIVE, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE),
+			new NamedThreadFactory("AsyncFunction-"),
+			new ThreadPoolExecutor.AbortPolicy());
+	
+	/**
+	 * The pool long running {@link AsyncFunction}s run on, like downloads or
+	 * server processes.
+	 * <br><br>
+	 * It has its own {@link #DEFAULT_LONG_POOL_SIZE} threads, so long tasks can't
+	 * hold up the short tasks queued on {@link #executor}. Past that, long tasks
+	 * wait in a queue of {@link #DEFAULT_QUEUE_SIZE} and are rejected like short ones.
+	 * Idle threads exit after {@value #KEEP_ALIVE} seconds.
+	 * 
+	 * @see AsyncFunction#setLongRunning(boolean)
+	 */
+	private static final ThreadPoolExecutor longExecutor = new ThreadPoolExecutor(
+			DEFAULT_LONG_POOL_SIZE, DEFAULT_LONG_POOL_SIZE,
+			KEEP_ALIVE, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(DEFAULT_QUEUE_SIZE),
+			new NamedThreadFactory("AsyncFunction-Long-"),
+			new ThreadPoolExecutor.AbortPolicy());
+	
+	static {
+		executor.allowCoreThreadTimeOut(true);
+		longExecutor.allowCoreThreadTimeOut(true);
+	}
+	
+	private static class NamedThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger(0);
+		
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		@Override
+		public Thread newThread(Runnable r) {
+			// Pool threads don't keep the application from exiting
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
+	/**
+	 * @throws RejectedExecutionException If the pool's queue is full
+	 */
+	static Future<?> submit(Runnable r, boolean longRunning)
+	{
+		return ( longRunning ? longExecutor : executor ).submit(r);
+	}
+	
+	/**
+	 * Change the number of threads kept for running short tasks.
+	 * 
+	 * @param size The new pool size
+	 */
+	public static void setPoolSize(Integer size)
+	{
+		if( size < 1 )
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		
+		if( size > executor.getMaximumPoolSize() ) {
+			executor.setMaximumPoolSize(size);
+			executor.setCorePoolSize(size);
+		} else {
+			executor.setCorePoolSize(size);
+			executor.setMaximumPoolSize(size);
+		}
+	}
+	
+	public static Integer getPoolSize()				{	return executor.getPoolSize();				}
+	public static Integer getCorePoolSize()			{	return executor.getCorePoolSize();			}
+	public static Integer getMaximumPoolSize()		{	return executor.getMaximumPoolSize();		}
+	public static Integer getLargestPoolSize()		{	return executor.getLargestPoolSize();		}
+	public static Integer getActiveCount()			{	return executor.getActiveCount();			}
+	public static Integer getQueuedCount()			{	return executor.getQueue().size();			}
+	public static Long getCompletedCount()			{	return executor.getCompletedTaskCount();	}
+	public static Integer getLongPoolSize()			{	return longExecutor.getPoolSize();			}
+	public static Integer getLongActiveCount()		{	return longExecutor.getActiveCount();		}
+	public static Integer getLongQueuedCount()		{	return longExecutor.getQueue().size();		}
+	
+	/**
+	 * Get a one line summary of both pools.
+	 * 
+	 * @return The pool statistics
+	 */
+	public static String getPoolStats()
+	{
+		return "threads:" + getPoolSize() + "/" + getMaximumPoolSize() + ", " +
+				"active:" + getActiveCount() + ", " +
+				"queued:" + getQueuedCount() + ", " +
+				"largest:" + getLargestPoolSize() + ", " +
+				"completed:" + getCompletedCount() + ", " +
+				"long threads:" + getLongPoolSize() + "/" + DEFAULT_LONG_POOL_SIZE + ", " +
+				"long active:" + getLongActiveCount() + ", " +
+				"long queued:" + getLongQueuedCount();
+	}
+	
+	static AsyncTask register(AsyncFunction f)
+	{
+		AsyncTask t = new AsyncTask(nextId.getAndIncrement(), f);
+		tasks.put(t.getId(), t);
+		return t;
+	}
+	
+	static void unregister(AsyncTask t)
+	{
+		if( tasks.remove(t.getId()) == null )
+			return;
+		
+		history.offer(t);
+		if( historySize.incrementAndGet() > HISTORY_SIZE && history.poll() != null )
+			historySize.decrementAndGet();
+	}
+	
+	/**
+	 * Get the functions of all queued and running tasks.
+	 * 
+	 * @return A snapshot of the functions
+	 */
 	public static List<AsyncFunction> getTaskList()
 	{
-		return tasks;
+		List<AsyncFunction> list = new ArrayList<AsyncFunction>();
+		for( AsyncTask t : tasks.values() )
+			list.add(t.getFunction());
+		return list;
+	}
+	
+	/**
+	 * Get all queued and running tasks.
+	 * 
+	 * @return A snapshot of the tasks
+	 */
+	public static List<AsyncTask> getTasks()
+	{
+		return new ArrayList<AsyncTask>(tasks.values());
+	}
+	
+	/**
+	 * Get the most recently finished tasks, oldest first.
+	 * 
+	 * @return A snapshot of the finished tasks
+	 */
+	public static List<AsyncTask> getHistory()
+	{
+		return new ArrayList<AsyncTask>(history);
 	}
 	
-	public static Boolean addTask(AsyncFunction t)
+	public static AsyncTask getTask(Long id)
 	{
-		return tasks.add(t);
+		return tasks.get(id);
 	}
-	public static Boolean stopTask(Integer i)
+	public static Integer getTaskCount()
 	{
-		tasks.get(i).cancel();
+		return tasks.size();
+	}
+	
+	public static Boolean stopTask(Long id)
+	{
+		AsyncTask t = tasks.get(id);
+		if( t == null )
+			return false;
+		
+		t.getFunction().cancel();
 		return true;
 	}
-	public static Boolean stopTask(AsyncFunction t)
+	public static Boolean stopTask(AsyncFunction f)
 	{
-		Iterator<AsyncFunction> it = tasks.iterator();
-		while( it.hasNext() ) 
+		for( AsyncTask t : tasks.values() )
 		{
-			AsyncFunction itt = it.next();
-			if( itt.equals(t) ) {
-				itt.cancel();
+			if( t.getFunction().equals(f) ) {
+				f.cancel();
 				return true;
 			}
 		}
 		return false;
 	}
-	public static Boolean removeTask(Integer i)
-	{
-		return tasks.remove(i);
-	}
-	public static Boolean removeTask(AsyncFunction t)
-	{
-		return tasks.remove(t);
-	}
 	
-	public static void serialize(AsyncFunction ...functions)
+	/**
+	 * Run the functions one after the other, each one starting once the previous
+	 * one and its callbacks are done.
+	 * 
+	 * @param functions The functions to run in order
+	 * @return A promise of the last function's result, cancelling it stops the chain
+	 */
+	public static AsyncPromise serialize(AsyncFunction ...functions)
 	{
-		_serialize(0, functions);
+		AsyncPromise p = AsyncPromise.run(functions[0]);
+		
+		for( int i = 1; i < functions.length; i++ )
+		{
+			final AsyncFunction f = functions[i];
+			p = p.then(new Function<Object, Object>() {
+				@Override public Object call(Object... arguments) {
+					return AsyncPromise.run(f);
+				}
+			});
+		}
+		return p;
 	}
-	private static void _serialize(final int i, final AsyncFunction ...functions)
+	
+	/**
+	 * Run the functions at the same time.
+	 * 
+	 * @param functions The functions to run
+	 * @return A promise of all their results as an <code>Object[]</code>
+	 */
+	public static AsyncPromise parallelize(AsyncFunction ...functions)
 	{
-		AsyncFunction f = functions[i];
+		AsyncPromise[] promises = new AsyncPromise[functions.length];
 		
-		AsyncCallback c = new AsyncCallback() {
-			@Override public void run(Object o) {
-				if( i < functions.length - 1 )
-					_serialize(i + 1, functions);
-			}
-		};
+		for( int i = 0; i < functions.length; i++ )
+			promises[i] = AsyncPromise.run(functions[i]);
 		
-		f.addCallback(c).call();
+		return AsyncPromise.all(promises);
 	}
 	
 	public static String _toString()
 	{
-		String ret = "";
+		StringBuilder ret = new StringBuilder();
 		
-		Iterator<AsyncFunction> it = tasks.iterator();
-		while( it.hasNext() )
-			ret += it.next().toString() + Settings.N_L;
+		for( AsyncTask t : tasks.values() )
+			ret.append(t.toString()).append(Settings.N_L);
 		
-		return ret;
+		return ret.toString();
 	}
 }
@@ -2,14 +2,23 @@ package weave.compiler;
 
 import static weave.utils.TraceUtils.*;
 
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import weave.Settings;
 import weave.core.Function;
+import weave.reflect.Reflectable;
 import weave.utils.ReflectionUtils;
 
 public class Compiler
@@ -153,6 +162,90 @@ public class Compiler
 		OP_ASSN_LOG_LSHIFTEQ, OP_ASSN_LOG_RSHIFTEQ
 	};
 	
+	/**
+	 * The binary operators of {@link #OP_PRECEDENCE} grouped into levels that bind equally tight,
+	 * from the tightest to the loosest. Assignments are right associative, everything else is left associative.
+	 */
+	private static final String[][] BINARY_PRECEDENCE = {
+		{ OP_MULT, OP_DIV, OP_MOD },
+		{ OP_ADD, OP_SUB },
+		{ OP_BITWISE_LSHIFT, OP_BITWISE_RSHIFT, OP_LOGICAL_LSHIFT, OP_LOGICAL_RSHIFT },
+		{ OP_COMPARE_LT, OP_COMPARE_LTEQ, OP_COMPARE_GT, OP_COMPARE_GTEQ },
+		{ OP_INSTANCEOF },
+		{ OP_COMPARE_EQ, OP_COMPARE_EQMC, OP_COMPARE_NEQ, OP_COMPARE_NEQMC },
+		{ OP_BITWISE_AND },
+		{ OP_BITWISE_XOR },
+		{ OP_BITWISE_OR },
+		{ OP_LOGICAL_AND },
+		{ OP_LOGICAL_OR },
+		{ OP_ASSN_EQ, OP_ASSN_MULTEQ, OP_ASSN_DIVEQ, OP_ASSN_ADDEQ, OP_ASSN_SUBEQ, OP_ASSN_MODEQ,
+		  OP_ASSN_BIT_ANDEQ, OP_ASSN_BIT_NOTEQ, OP_ASSN_BIT_XOREQ, OP_ASSN_BIT_OREQ, OP_ASSN_BIT_LSHIFTEQ, OP_ASSN_BIT_RSHIFTEQ,
+		  OP_ASSN_LOG_LSHIFTEQ, OP_ASSN_LOG_RSHIFTEQ }
+	};
+	private static final int ASSIGNMENT_PRECEDENCE = 1;
+	private static final int PREFIX_PRECEDENCE = BINARY_PRECEDENCE.length + 1;
+	
+	private static final Map<String, Integer> BINDING = new HashMap<String, Integer>();
+	private static final Map<String, Integer> OPCODES = new HashMap<String, Integer>();
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+		STMT_IMPORT, STMT_VAR, STMT_IF, STMT_ELSE, STMT_FOR, STMT_FOREACH, STMT_IN, STMT_DO, STMT_WHILE
+	));
+	private static final List<String> SYMBOLS = new ArrayList<String>();
+	
+	static
+	{
+		for( int i = 0; i < BINARY_PRECEDENCE.length; i++ )
+			for( String op : BINARY_PRECEDENCE[i] )
+				BINDING.put(op, BINARY_PRECEDENCE.length - i);
+		
+		String[][] opcodes = {
+			{ OP_ADD, OP_ASSN_ADDEQ },					{ OP_SUB, OP_ASSN_SUBEQ },
+			{ OP_MULT, OP_ASSN_MULTEQ },				{ OP_DIV, OP_ASSN_DIVEQ },
+			{ OP_MOD, OP_ASSN_MODEQ },					{ OP_BITWISE_AND, OP_ASSN_BIT_ANDEQ },
+			{ OP_BITWISE_OR, OP_ASSN_BIT_OREQ },		{ OP_BITWISE_XOR, OP_ASSN_BIT_XOREQ },
+			{ OP_BITWISE_LSHIFT, OP_ASSN_BIT_LSHIFTEQ,	OP_LOGICAL_LSHIFT, OP_ASSN_LOG_LSHIFTEQ },
+			{ OP_BITWISE_RSHIFT, OP_ASSN_BIT_RSHIFTEQ },	{ OP_LOGICAL_RSHIFT, OP_ASSN_LOG_RSHIFTEQ },
+			{ OP_COMPARE_LT }, { OP_COMPARE_LTEQ }, { OP_COMPARE_GT }, { OP_COMPARE_GTEQ },
+			{ OP_COMPARE_EQ }, { OP_COMPARE_EQMC }, { OP_COMPARE_NEQ }, { OP_COMPARE_NEQMC }
+		};
+		int[] codes = {
+			Node.ADD, Node.SUB, Node.MUL, Node.DIV, Node.MOD, Node.AND, Node.OR, Node.XOR, Node.SHL, Node.SHR, Node.USHR,
+			Node.LT, Node.LE, Node.GT, Node.GE, Node.EQ, Node.EQS, Node.NE, Node.NES
+		};
+		for( int i = 0; i < opcodes.length; i++ )
+			for( String op : opcodes[i] )
+				OPCODES.put(op, codes[i]);
+		
+		for( String token : TOKEN_ARRAY )
+			if( !token.equals(OP_SPACE) && !token.equals(OP_QUOTE) && !Character.isLetter(token.charAt(0)) )
+				SYMBOLS.add(token);
+		
+		// Longest match first, so ">>>=" is not read as ">>" "> " "="
+		Collections.sort(SYMBOLS, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return b.length() - a.length();
+			}
+		});
+	}
+	
+	/**
+	 * The most compiled expressions kept by {@link #compile(String)}.
+	 */
+	public static final int CACHE_SIZE = 256;
+	
+	// Compiled expressions keyed by their source, least recently used first
+	private static final Map<String, Expression> cache = new LinkedHashMap<String, Expression>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong cacheMisses = new AtomicLong();
+	
 	public Map<String, Function<Object, Object>> OPERATIONS = null;
 	
 	public static void main(String ...args)
@@ -173,20 +266,304 @@ public class Compiler
 		initialize();
 	}
 	
-	public List<Token> parseTokens(String expr)
+	/**
+	 * Split a script into tokens.
+	 *
+	 * @param expr The script
+	 * @return The tokens, ending with a {@link Token#TYPE_EOF} token
+	 * @throws ParseException If the script contains a character that does not start a token
+	 */
+	public List<Token> parseTokens(String expr) throws ParseException
 	{
-		int len = expr.length();
 		List<Token> tokenList = new ArrayList<Token>();
+		Token t = parseToken(expr, 0);
 		
-		for( int i = 0; i < len; i++ )
-			tokenList.add(parseToken(expr, i));
+		tokenList.add(t);
+		while( t.type != Token.TYPE_EOF )
+			tokenList.add(t = parseToken(expr, t.end));
 		
 		return tokenList;
 	}
 	
-	public Token parseToken(String expr, int index)
+	/**
+	 * Read the token that starts at or after the given index, skipping whitespace and comments.
+	 *
+	 * @param expr The script
+	 * @param index The index to start reading at
+	 * @return The token, use {@link Token#end} to read the next one
+	 * @throws ParseException If the characters at the index do not form a token
+	 */
+	public Token parseToken(String expr, int index) throws ParseException
+	{
+		int len = expr.length();
+		int i = skipWhitespace(expr, index);
+		
+		if( i >= len )
+			return new Token(Token.TYPE_EOF, null, len, len);
+		
+		char c = expr.charAt(i);
+		
+		if( Character.isDigit(c) || (c == '.' && i + 1 < len && Character.isDigit(expr.charAt(i + 1))) )
+			return parseNumber(expr, i);
+		
+		if( c == '"' || c == '\'' )
+			return parseString(expr, i);
+		
+		if( Character.isJavaIdentifierStart(c) )
+		{
+			int end = i + 1;
+			while( end < len && (Character.isJavaIdentifierPart(expr.charAt(end)) ||
+					(expr.charAt(end) == '.' && end + 1 < len && Character.isJavaIdentifierStart(expr.charAt(end + 1)))) )
+				end++;
+			
+			String word = expr.substring(i, end);
+			
+			if( word.equals("true") || word.equals("false") )
+				return new Token(Token.TYPE_VALUE, Boolean.valueOf(word), i, end);
+			if( word.equals("null") )
+				return new Token(Token.TYPE_VALUE, null, i, end);
+			if( word.equals(OP_NEW) || word.equals(OP_INSTANCEOF) )
+				return new Token(Token.TYPE_OPERATOR, word, i, end);
+			if( KEYWORDS.contains(word) )
+				return new Token(Token.TYPE_KEYWORD, word, i, end);
+			return new Token(Token.TYPE_VARIABLE, word, i, end);
+		}
+		
+		for( String op : SYMBOLS )
+			if( expr.startsWith(op, i) )
+				return new Token(Token.TYPE_OPERATOR, op, i, i + op.length());
+		
+		throw new ParseException("Unexpected character '" + c + "'", i);
+	}
+	
+	/**
+	 * Compile a script into an {@link Expression} that can be evaluated many times.
+	 * <br><br>
+	 * Operators bind as listed in {@link #OP_PRECEDENCE}. Statements are
+	 * <code>var</code>, <code>if</code> / <code>else</code>, <code>while</code>,
+	 * <code>do</code> / <code>while</code>, <code>for</code> and <code>{ }</code> blocks,
+	 * semicolons between statements are optional. The script evaluates to the value of its last statement.
+	 * <br><br>
+	 * The last {@value #CACHE_SIZE} scripts compiled are kept, so compiling the same
+	 * script again returns the same {@link Expression} without parsing it.
+	 *
+	 * @param source The script
+	 * @return The compiled expression
+	 * @throws ParseException If the script is not valid
+	 */
+	public Expression compile(String source) throws ParseException
+	{
+		Expression e;
+		synchronized( cache ) {
+			e = cache.get(source);
+		}
+		if( e != null ) {
+			cacheHits.incrementAndGet();
+			return e;
+		}
+		
+		cacheMisses.incrementAndGet();
+		List<Token> tokens = parseTokens(source);
+		Parser p = new Parser(source, tokens, null);
+		Node root = p.parse();
+		e = new Expression(source, tokens, root, p.getNames(), p.getAssigned(), p.getInputs());
+		synchronized( cache ) {
+			cache.put(source, e);
+		}
+		return e;
+	}
+	
+	/**
+	 * Compile a script again with its variables typed.
+	 * <br><br>
+	 * Variables the script reads before assigning them get the kind of the value they
+	 * were given. The others are typed from what the script assigns to them: a variable
+	 * that is only ever assigned <code>int</code>s, or only <code>double</code>s, keeps
+	 * its value unboxed, anything else stays an <code>Object</code>.
+	 *
+	 * @param source The script
+	 * @param tokens The tokens of the script
+	 * @param kinds The kind of the value of each variable the script reads before assigning it.
+	 * 			Set to the kind every variable was typed as on return.
+	 * @return The typed expression tree
+	 */
+	static Node specialise(String source, List<Token> tokens, int[] kinds)
+	{
+		int[] inputKinds = kinds.clone();
+		boolean[] untyped = new boolean[kinds.length];
+		
+		try {
+			while( true )
+			{
+				// Assume every variable is an int and widen the ones that are assigned something else until nothing changes
+				int[] assumed = new int[kinds.length];
+				for( int i = 0; i < assumed.length; i++ )
+					assumed[i] = untyped[i] ? Node.OBJECT : Node.INT;
+				
+				Parser p;
+				Node root;
+				while( true )
+				{
+					p = new Parser(source, tokens, assumed);
+					root = p.parse();
+					
+					int[] inferred = p.inferKinds(inputKinds, untyped);
+					if( Arrays.equals(inferred, assumed) )
+						break;
+					assumed = inferred;
+				}
+				
+				// A variable given both ints and doubles stays an Object, so each value keeps its own type
+				boolean changed = false;
+				for( int i = 0; i < assumed.length; i++ )
+					if( assumed[i] == Node.DOUBLE && p.isGiven(i, Node.INT, inputKinds) )
+						changed = untyped[i] = true;
+				
+				if( !changed ) {
+					System.arraycopy(assumed, 0, kinds, 0, kinds.length);
+					return root;
+				}
+			}
+		} catch (ParseException e) {
+			// The same tokens already compiled untyped
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Get how many calls to {@link #compile(String)} reused a compiled expression.
+	 */
+	@Reflectable
+	public static long getCacheHits()
 	{
-		return null;
+		return cacheHits.get();
+	}
+	
+	/**
+	 * Get how many calls to {@link #compile(String)} had to parse the script.
+	 */
+	@Reflectable
+	public static long getCacheMisses()
+	{
+		return cacheMisses.get();
+	}
+	
+	@Reflectable
+	public static int getCacheSize()
+	{
+		synchronized( cache ) {
+			return cache.size();
+		}
+	}
+	
+	/**
+	 * Forget every compiled expression and reset the counters.
+	 */
+	@Reflectable
+	public static void clearCache()
+	{
+		synchronized( cache ) {
+			cache.clear();
+		}
+		cacheHits.set(0);
+		cacheMisses.set(0);
+	}
+	
+	private static int skipWhitespace(String expr, int i)
+	{
+		int len = expr.length();
+		while( i < len )
+		{
+			char c = expr.charAt(i);
+			if( Character.isWhitespace(c) )
+				i++;
+			else if( expr.startsWith("//", i) ) {
+				int end = expr.indexOf('\n', i);
+				i = ( end < 0 ) ? len : end + 1;
+			}
+			else if( expr.startsWith("/*", i) ) {
+				int end = expr.indexOf("*/", i + 2);
+				i = ( end < 0 ) ? len : end + 2;
+			}
+			else
+				break;
+		}
+		return i;
+	}
+	
+	private static Token parseNumber(String expr, int start)
+	{
+		int len = expr.length();
+		int i = start;
+		boolean decimal = false;
+		
+		while( i < len && Character.isDigit(expr.charAt(i)) ) i++;
+		if( i < len && expr.charAt(i) == '.' ) {
+			decimal = true;
+			i++;
+			while( i < len && Character.isDigit(expr.charAt(i)) ) i++;
+		}
+		if( i < len && (expr.charAt(i) == 'e' || expr.charAt(i) == 'E') )
+		{
+			int j = i + 1;
+			if( j < len && (expr.charAt(j) == '+' || expr.charAt(j) == '-') ) j++;
+			if( j < len && Character.isDigit(expr.charAt(j)) ) {
+				decimal = true;
+				i = j;
+				while( i < len && Character.isDigit(expr.charAt(i)) ) i++;
+			}
+		}
+		
+		String text = expr.substring(start, i);
+		if( !decimal )
+		{
+			try {
+				return new Token(Token.TYPE_VALUE, Integer.valueOf(text), start, i);
+			} catch (NumberFormatException e) {
+				// Too large for an int
+			}
+		}
+		return new Token(Token.TYPE_VALUE, Double.valueOf(text), start, i);
+	}
+	
+	private static Token parseString(String expr, int start) throws ParseException
+	{
+		int len = expr.length();
+		char quote = expr.charAt(start);
+		StringBuilder sb = new StringBuilder();
+		
+		for( int i = start + 1; i < len; i++ )
+		{
+			char c = expr.charAt(i);
+			if( c == quote )
+				return new Token(Token.TYPE_VALUE, sb.toString(), start, i + 1);
+			
+			if( c == '\\' && i + 1 < len )
+			{
+				c = expr.charAt(++i);
+				switch( c )
+				{
+					case 'n':	c = '\n';	break;
+					case 't':	c = '\t';	break;
+					case 'r':	c = '\r';	break;
+					case 'b':	c = '\b';	break;
+					case 'f':	c = '\f';	break;
+					case '0':	c = '\0';	break;
+					case 'u':
+						if( i + 4 >= len )
+							throw new ParseException("Invalid unicode escape", i - 1);
+						try {
+							c = (char) Integer.parseInt(expr.substring(i + 1, i + 5), 16);
+						} catch (NumberFormatException e) {
+							throw new ParseException("Invalid unicode escape", i - 1);
+						}
+						i += 4;
+						break;
+				}
+			}
+			sb.append(c);
+		}
+		throw new ParseException("Unterminated string", start);
 	}
 	
 	public Boolean isToken(String str)
@@ -327,4 +704,508 @@ public class Compiler
 			}
 		});
 	}
+	
+	/**
+	 * A Pratt parser over the tokens of one script.
+	 * <br><br>
+	 * While parsing it tracks which variables are certainly assigned at each point,
+	 * so it knows which ones the script reads before assigning them.
+	 */
+	private static class Parser
+	{
+		private final String source;
+		private final List<Token> tokens;
+		private final int[] kinds;
+		private final Map<String, Integer> slots = new HashMap<String, Integer>();
+		private final List<String> names = new ArrayList<String>();
+		private final List<Integer> stores = new ArrayList<Integer>();
+		private final BitSet inputs = new BitSet();
+		private BitSet definite = new BitSet();
+		private int pos = 0;
+		
+		/**
+		 * @param kinds The kind of each variable, or <code>null</code> to leave every variable untyped
+		 */
+		Parser(String source, List<Token> tokens, int[] kinds)
+		{
+			this.source = source;
+			this.tokens = tokens;
+			this.kinds = kinds;
+		}
+		
+		Node parse() throws ParseException
+		{
+			List<Node> statements = new ArrayList<Node>();
+			while( peek().type != Token.TYPE_EOF )
+				statements.add(parseStatement());
+			
+			return ( statements.size() == 1 ) ? statements.get(0) : new Node.Block(statements.toArray(new Node[statements.size()]));
+		}
+		
+		String[] getNames()
+		{
+			return names.toArray(new String[names.size()]);
+		}
+		
+		boolean[] getAssigned()
+		{
+			boolean[] a = new boolean[stores.size()];
+			for( int i = 0; i < a.length; i++ )
+				a[i] = stores.get(i) != 0;
+			return a;
+		}
+		
+		/**
+		 * Get the variables that may be read before the script assigns them.
+		 */
+		boolean[] getInputs()
+		{
+			boolean[] a = new boolean[names.size()];
+			for( int i = 0; i < a.length; i++ )
+				a[i] = inputs.get(i);
+			return a;
+		}
+		
+		/**
+		 * Get the kind each variable needs to hold every value it is given, an input or an assignment.
+		 */
+		int[] inferKinds(int[] inputKinds, boolean[] untyped)
+		{
+			int[] inferred = new int[names.size()];
+			for( int i = 0; i < inferred.length; i++ )
+			{
+				if( untyped[i] || isGiven(i, Node.OBJECT, inputKinds) || isGiven(i, Node.BOOLEAN, inputKinds) )
+					inferred[i] = Node.OBJECT;
+				else if( isGiven(i, Node.DOUBLE, inputKinds) )
+					inferred[i] = Node.DOUBLE;
+				else if( isGiven(i, Node.INT, inputKinds) )
+					inferred[i] = Node.INT;
+				else
+					inferred[i] = Node.OBJECT;
+			}
+			return inferred;
+		}
+		
+		boolean isGiven(int slot, int kind, int[] inputKinds)
+		{
+			return (stores.get(slot) & 1 << kind) != 0 || (inputs.get(slot) && inputKinds[slot] == kind);
+		}
+		
+		
+		//============================================================================================================
+		// Statements
+		//============================================================================================================
+		
+		private Node parseStatement() throws ParseException
+		{
+			Token t = peek();
+			
+			if( t.is(Token.TYPE_OPERATOR, OP_OPEN_BRACKET) )
+			{
+				next();
+				List<Node> statements = new ArrayList<Node>();
+				while( !peek().is(Token.TYPE_OPERATOR, OP_CLOSE_BRACKET) )
+				{
+					if( peek().type == Token.TYPE_EOF )
+						throw error("Expected '" + OP_CLOSE_BRACKET + "'", peek());
+					statements.add(parseStatement());
+				}
+				next();
+				return new Node.Block(statements.toArray(new Node[statements.size()]));
+			}
+			if( t.is(Token.TYPE_OPERATOR, OP_SEMICOLON) )
+			{
+				next();
+				return new Node.Block(new Node[0]);
+			}
+			if( t.type != Token.TYPE_KEYWORD )
+			{
+				Node n = parseExpression(0);
+				skipSemicolon();
+				return n;
+			}
+			
+			next();
+			String keyword = (String) t.value;
+			
+			if( keyword.equals(STMT_VAR) )
+			{
+				Node n = parseVar();
+				skipSemicolon();
+				return n;
+			}
+			if( keyword.equals(STMT_IF) )
+			{
+				Node condition = parseCondition();
+				BitSet before = mark();
+				Node then = parseStatement();
+				BitSet afterThen = mark();
+				Node otherwise = null;
+				
+				restore(before);
+				if( peek().is(Token.TYPE_KEYWORD, STMT_ELSE) ) {
+					next();
+					otherwise = parseStatement();
+					definite.and(afterThen);
+				}
+				return new Node.If(condition, then, otherwise);
+			}
+			if( keyword.equals(STMT_WHILE) )
+			{
+				Node condition = parseCondition();
+				BitSet before = mark();
+				Node body = parseStatement();
+				restore(before);
+				return new Node.Loop(null, condition, null, body, true);
+			}
+			if( keyword.equals(STMT_DO) )
+			{
+				Node body = parseStatement();
+				expect(Token.TYPE_KEYWORD, STMT_WHILE);
+				Node condition = parseCondition();
+				skipSemicolon();
+				return new Node.Loop(null, condition, null, body, false);
+			}
+			if( keyword.equals(STMT_FOR) )
+			{
+				Node init = null, condition = null, step = null;
+				
+				expect(Token.TYPE_OPERATOR, OP_OPEN_PAREN);
+				if( !peek().is(Token.TYPE_OPERATOR, OP_SEMICOLON) )
+				{
+					if( peek().is(Token.TYPE_KEYWORD, STMT_VAR) ) {
+						next();
+						init = parseVar();
+					}
+					else
+						init = parseExpression(0);
+				}
+				expect(Token.TYPE_OPERATOR, OP_SEMICOLON);
+				if( !peek().is(Token.TYPE_OPERATOR, OP_SEMICOLON) )
+					condition = parseExpression(0);
+				expect(Token.TYPE_OPERATOR, OP_SEMICOLON);
+				
+				// The step runs after the body, so nothing either of them assigns is certain before it
+				BitSet before = mark();
+				if( !peek().is(Token.TYPE_OPERATOR, OP_CLOSE_PAREN) )
+					step = parseExpression(0);
+				expect(Token.TYPE_OPERATOR, OP_CLOSE_PAREN);
+				Node body = parseStatement();
+				restore(before);
+				
+				return new Node.Loop(init, condition, step, body, true);
+			}
+			throw error("'" + keyword + "' is not supported", t);
+		}
+		
+		private Node parseVar() throws ParseException
+		{
+			List<Node> declarations = new ArrayList<Node>();
+			do {
+				Token name = expect(Token.TYPE_VARIABLE, null);
+				Node value = new Node.Literal(Node.OBJECT, null);
+				if( peek().is(Token.TYPE_OPERATOR, OP_ASSN_EQ) ) {
+					next();
+					value = parseExpression(ASSIGNMENT_PRECEDENCE);
+				}
+				declarations.add(store(slot((String) name.value), value));
+			} while( accept(OP_COMMA) );
+			
+			if( declarations.size() == 1 )
+				return declarations.get(0);
+			return new Node.Block(declarations.toArray(new Node[declarations.size()]));
+		}
+		
+		private Node parseCondition() throws ParseException
+		{
+			expect(Token.TYPE_OPERATOR, OP_OPEN_PAREN);
+			Node n = parseExpression(0);
+			expect(Token.TYPE_OPERATOR, OP_CLOSE_PAREN);
+			return n;
+		}
+		
+		
+		//============================================================================================================
+		// Expressions
+		//============================================================================================================
+		
+		/**
+		 * Parse operators that bind tighter than <code>precedence</code>.
+		 */
+		private Node parseExpression(int precedence) throws ParseException
+		{
+			Node left = parsePrefix();
+			
+			while( true )
+			{
+				Token t = peek();
+				if( t.type != Token.TYPE_OPERATOR )
+					break;
+				
+				String op = (String) t.value;
+				Integer binding = BINDING.get(op);
+				
+				if( binding == null || binding < precedence )
+					break;
+				next();
+				
+				// Assignments are right associative, the right side may be another assignment
+				if( binding == ASSIGNMENT_PRECEDENCE )
+					left = assignment(t, left, parseExpression(ASSIGNMENT_PRECEDENCE));
+				else if( op.equals(OP_INSTANCEOF) )
+					left = new Node.InstanceOf(left, resolveClass(expect(Token.TYPE_VARIABLE, null)));
+				else if( op.equals(OP_LOGICAL_AND) || op.equals(OP_LOGICAL_OR) )
+				{
+					// The right side may not run
+					BitSet before = mark();
+					Node right = parseExpression(binding + 1);
+					restore(before);
+					left = binary(op, left, right);
+				}
+				else
+					left = binary(op, left, parseExpression(binding + 1));
+			}
+			return left;
+		}
+		
+		private Node parsePrefix() throws ParseException
+		{
+			Token t = next();
+			
+			switch( t.type )
+			{
+				case Token.TYPE_VALUE:
+					if( t.value instanceof Integer )	return new Node.IntLiteral((Integer) t.value);
+					if( t.value instanceof Double )		return new Node.DoubleLiteral((Double) t.value);
+					if( t.value instanceof Boolean )	return new Node.Literal(Node.BOOLEAN, t.value);
+					return new Node.Literal(Node.OBJECT, t.value);
+					
+				case Token.TYPE_VARIABLE:
+					return variable((String) t.value);
+					
+				case Token.TYPE_OPERATOR:
+					String op = (String) t.value;
+					
+					if( op.equals(OP_OPEN_PAREN) ) {
+						Node n = parseExpression(0);
+						expect(Token.TYPE_OPERATOR, OP_CLOSE_PAREN);
+						return n;
+					}
+					if( op.equals(OP_SUB) && isIntMinMagnitude(peek()) ) {
+						next();
+						return new Node.IntLiteral(Integer.MIN_VALUE);
+					}
+					if( op.equals(OP_SUB) )				return Node.fold(new Node.Negate(parseExpression(PREFIX_PRECEDENCE)));
+					if( op.equals(OP_ADD) )				return parseExpression(PREFIX_PRECEDENCE);
+					if( op.equals(OP_LOGICAL_NOT) )		return Node.fold(new Node.Not(parseExpression(PREFIX_PRECEDENCE)));
+					if( op.equals(OP_BITWISE_NOT) )		return Node.fold(new Node.BitwiseNot(parseExpression(PREFIX_PRECEDENCE)));
+					if( op.equals(OP_NEW) )				return parseNew();
+					break;
+			}
+			throw error("Unexpected " + ( t.type == Token.TYPE_EOF ? "end of script" : "'" + source.substring(t.position, t.end) + "'" ), t);
+		}
+		
+		private Node parseNew() throws ParseException
+		{
+			String name = (String) expect(Token.TYPE_VARIABLE, null).value;
+			int dot = name.lastIndexOf('.');
+			String pkg = ( dot < 0 ) ? "java.lang" : name.substring(0, dot);
+			String clazz = name.substring(dot + 1);
+			
+			List<Node> args = new ArrayList<Node>();
+			if( accept(OP_OPEN_PAREN) && !accept(OP_CLOSE_PAREN) )
+			{
+				do {
+					args.add(parseExpression(ASSIGNMENT_PRECEDENCE));
+				} while( accept(OP_COMMA) );
+				expect(Token.TYPE_OPERATOR, OP_CLOSE_PAREN);
+			}
+			return new Node.New(pkg, clazz, args.toArray(new Node[args.size()]));
+		}
+		
+		/**
+		 * Check to see if a token is the literal <code>2147483648</code>, which only fits an int when negated.
+		 */
+		private boolean isIntMinMagnitude(Token t)
+		{
+			return t.type == Token.TYPE_VALUE && source.substring(t.position, t.end).equals("2147483648");
+		}
+		
+		private Node assignment(Token t, Node target, Node value) throws ParseException
+		{
+			int slot = slotOf(target);
+			if( slot < 0 )
+				throw error("Can not assign to this expression", t);
+			
+			if( t.value.equals(OP_ASSN_BIT_NOTEQ) )
+				return store(slot, Node.fold(new Node.BitwiseNot(value)));
+			if( t.value.equals(OP_ASSN_EQ) )
+				return store(slot, value);
+			
+			// The variable is read before the right side is evaluated, as in Java
+			return store(slot, binary((String) t.value, target, value));
+		}
+		
+		/**
+		 * Pick the node for a binary operator from what is known about the types of its operands.
+		 */
+		private Node binary(String op, Node left, Node right)
+		{
+			if( op.equals(OP_LOGICAL_AND) )
+				return Node.fold(new Node.Logical(Node.AND, left, right));
+			if( op.equals(OP_LOGICAL_OR) )
+				return Node.fold(new Node.Logical(Node.OR, left, right));
+			
+			int code = OPCODES.get(op);
+			boolean ints = left.kind == Node.INT && right.kind == Node.INT;
+			boolean numbers = left.isNumeric() && right.isNumeric();
+			Node n;
+			
+			if( code == Node.EQS || code == Node.NES )
+				n = ( numbers && left.kind == right.kind ) ? new Node.NumericCompare(code, left, right) : new Node.DynamicBinary(code, left, right);
+			else if( code >= Node.LT )
+				n = numbers ? new Node.NumericCompare(code, left, right) : new Node.DynamicBinary(code, left, right);
+			else if( code == Node.DIV || code == Node.ADD || code == Node.SUB || code == Node.MUL || code == Node.MOD )
+				n = ( ints && code != Node.DIV ) ? new Node.IntBinary(code, left, right) :
+					numbers ? new Node.DoubleBinary(code, left, right) :
+					new Node.DynamicBinary(code, left, right);
+			else
+				n = numbers ? new Node.IntBinary(code, left, right) : new Node.DynamicBinary(code, left, right);
+			
+			return Node.fold(n);
+		}
+		
+		private Class<?> resolveClass(Token t) throws ParseException
+		{
+			String name = (String) t.value;
+			try {
+				return Class.forName(name);
+			} catch (ClassNotFoundException e) {
+				if( name.indexOf('.') < 0 ) {
+					try {
+						return Class.forName("java.lang." + name);
+					} catch (ClassNotFoundException e2) {
+						// Reported below
+					}
+				}
+			}
+			throw error("Unknown class '" + name + "'", t);
+		}
+		
+		
+		//============================================================================================================
+		// Tokens and variables
+		//============================================================================================================
+		
+		private int slot(String name)
+		{
+			Integer slot = slots.get(name);
+			if( slot == null ) {
+				slots.put(name, slot = names.size());
+				names.add(name);
+				stores.add(0);
+			}
+			return slot;
+		}
+		
+		private int kind(int slot)
+		{
+			return ( kinds == null ) ? Node.OBJECT : kinds[slot];
+		}
+		
+		private Node variable(String name)
+		{
+			int slot = slot(name);
+			
+			// The target of a plain assignment is not read
+			if( !definite.get(slot) && !peek().is(Token.TYPE_OPERATOR, OP_ASSN_EQ) && !peek().is(Token.TYPE_OPERATOR, OP_ASSN_BIT_NOTEQ) )
+				inputs.set(slot);
+			
+			switch( kind(slot) )
+			{
+				case Node.INT:		return new Node.IntVariable(slot);
+				case Node.DOUBLE:	return new Node.DoubleVariable(slot);
+				default:			return new Node.Variable(slot, name);
+			}
+		}
+		
+		private static int slotOf(Node n)
+		{
+			if( n instanceof Node.Variable )		return ((Node.Variable) n).slot;
+			if( n instanceof Node.IntVariable )		return ((Node.IntVariable) n).slot;
+			if( n instanceof Node.DoubleVariable )	return ((Node.DoubleVariable) n).slot;
+			return -1;
+		}
+		
+		/**
+		 * Assign a value to a variable, after the value is parsed.
+		 */
+		private Node store(int slot, Node value)
+		{
+			stores.set(slot, stores.get(slot) | 1 << value.kind);
+			definite.set(slot);
+			
+			switch( kind(slot) )
+			{
+				case Node.INT:		return new Node.IntAssign(slot, value);
+				case Node.DOUBLE:	return new Node.DoubleAssign(slot, value);
+				default:			return new Node.Assign(slot, value);
+			}
+		}
+		
+		/**
+		 * Get the variables that are certainly assigned at this point.
+		 */
+		private BitSet mark()
+		{
+			return (BitSet) definite.clone();
+		}
+		
+		/**
+		 * Forget what was assigned since {@link #mark()}, at the end of code that may not run.
+		 */
+		private void restore(BitSet mark)
+		{
+			definite = mark;
+		}
+		
+		private Token peek()
+		{
+			return tokens.get(pos);
+		}
+		
+		private Token next()
+		{
+			Token t = tokens.get(pos);
+			if( t.type != Token.TYPE_EOF )
+				pos++;
+			return t;
+		}
+		
+		private boolean accept(String op)
+		{
+			if( !peek().is(Token.TYPE_OPERATOR, op) )
+				return false;
+			next();
+			return true;
+		}
+		
+		private Token expect(int type, String value) throws ParseException
+		{
+			Token t = peek();
+			if( t.type != type || (value != null && !value.equals(t.value)) )
+				throw error("Expected " + ( value != null ? "'" + value + "'" : type == Token.TYPE_VARIABLE ? "a name" : "a value" ), t);
+			return next();
+		}
+		
+		private void skipSemicolon()
+		{
+			accept(OP_SEMICOLON);
+		}
+		
+		private ParseException error(String message, Token t)
+		{
+			return new ParseException(message + " at position " + t.position, t.position);
+		}
+	}
 }
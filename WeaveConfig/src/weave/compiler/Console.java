@@ -1,5 +1,10 @@
 package weave.compiler;
 
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
+import java.text.ParseException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -15,6 +20,7 @@ public class Console
 	public Console() 
 	{
 		compiler = new Compiler();
+		ram = new HashMap<String, Object>();
 	}
 	
 	public static Console _instance = null;
@@ -25,9 +31,20 @@ public class Console
 		return _instance;
 	}
 	
-	public void exec(String script)
+	/**
+	 * Compile and run a script.<br>
+	 * Variables the script assigns are kept for the scripts that run after it.
+	 *
+	 * @param script The script to run
+	 * @return The value of the last statement, or <code>null</code> if the script could not be compiled
+	 */
+	public Object exec(String script)
 	{
-		compiler.parseTokens(script);
-		
+		try {
+			return compiler.compile(script).eval(ram);
+		} catch (ParseException e) {
+			trace(STDERR, e);
+		}
+		return null;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,246 @@
+package weave.compiler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A script compiled by {@link Compiler#compile(String)}.
+ * <br><br>
+ * An expression holds no state between evaluations, so one instance can be
+ * cached and evaluated from several threads at once.
+ * <br><br>
+ * The first time an expression is evaluated with a given combination of input
+ * types, it is compiled again with its variables typed. Later evaluations with
+ * inputs of the same types reuse that tree, so <code>int</code> and <code>double</code>
+ * variables are not boxed while the script runs.
+ * <br><br>
+ * Example Usage:
+ * <code>
+ * <pre>
+ * 	Expression e = new Compiler().compile("var total = price * count; total > 100");
+ * 	Map&lt;String, Object&gt; vars = new HashMap&lt;String, Object&gt;();
+ * 	vars.put("price", 12.5);
+ * 	vars.put("count", 10);
+ * 	e.eval(vars);			// true, and vars now contains total = 125
+ * </pre>
+ * </code>
+ */
+public class Expression
+{
+	/**
+	 * The most typed trees kept for one expression, other combinations of input types run untyped.
+	 */
+	private static final int MAX_SPECIALISATIONS = 8;
+
+	private final String source;
+	private final List<Token> tokens;
+	private final String[] names;
+	private final boolean[] assigned;
+	private final boolean[] inputs;
+	private final Specialisation untyped;
+	private final Map<Long, Specialisation> specialisations = new HashMap<Long, Specialisation>();
+	private volatile Specialisation last = null;
+
+	/**
+	 * A tree compiled for one combination of input types.
+	 */
+	private static final class Specialisation
+	{
+		final long key;
+		final int[] kinds;
+		final Node root;
+
+		Specialisation(long key, int[] kinds, Node root)
+		{
+			this.key = key;
+			this.kinds = kinds;
+			this.root = root;
+		}
+	}
+
+	Expression(String source, List<Token> tokens, Node root, String[] names, boolean[] assigned, boolean[] inputs)
+	{
+		this.source = source;
+		this.tokens = tokens;
+		this.names = names;
+		this.assigned = assigned;
+		this.inputs = inputs;
+
+		int[] kinds = new int[names.length];
+		Arrays.fill(kinds, Node.OBJECT);
+		untyped = new Specialisation(-1, kinds, root);
+	}
+
+	/**
+	 * Evaluate the expression with every variable set to <code>null</code>.
+	 *
+	 * @return The value of the last statement
+	 */
+	public Object eval()
+	{
+		return eval(null);
+	}
+
+	/**
+	 * Evaluate the expression.<br>
+	 * Variables are read from <code>vars</code> before evaluating and the ones the
+	 * script assigns are written back to it afterwards.
+	 *
+	 * @param vars The variables, may be <code>null</code>
+	 * @return The value of the last statement
+	 */
+	public Object eval(Map<String, Object> vars)
+	{
+		Node.Frame f = load(vars);
+		Specialisation sp = specialise(f);
+		Object result = sp.root.eval(f);
+		store(vars, sp, f);
+
+		if( result instanceof Double )
+		{
+			double d = (Double) result;
+			if( d % 1 == 0 && d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE )
+				return (int) d;
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluate the expression as a number.
+	 *
+	 * @see #eval(Map)
+	 */
+	public double evalDouble(Map<String, Object> vars)
+	{
+		Node.Frame f = load(vars);
+		Specialisation sp = specialise(f);
+		double result = sp.root.evalDouble(f);
+		store(vars, sp, f);
+		return result;
+	}
+
+	/**
+	 * Evaluate the expression as a condition.<br>
+	 * <code>null</code>, <code>false</code>, zero and the empty string are false, anything else is true.
+	 *
+	 * @see #eval(Map)
+	 */
+	public boolean evalBoolean(Map<String, Object> vars)
+	{
+		Node.Frame f = load(vars);
+		Specialisation sp = specialise(f);
+		boolean result = sp.root.evalBoolean(f);
+		store(vars, sp, f);
+		return result;
+	}
+
+	/**
+	 * Get the names of the variables the expression reads or assigns.
+	 *
+	 * @return The variable names in order of first use
+	 */
+	public List<String> getVariables()
+	{
+		return Collections.unmodifiableList(Arrays.asList(names));
+	}
+
+	/**
+	 * Check to see if the expression was folded into a single value when it was compiled.
+	 */
+	public boolean isConstant()
+	{
+		return untyped.root.isConstant();
+	}
+
+	public String getSource()
+	{
+		return source;
+	}
+
+	@Override
+	public String toString()
+	{
+		return source;
+	}
+
+
+	private Node.Frame load(Map<String, Object> vars)
+	{
+		Node.Frame f = new Node.Frame(names.length);
+		if( vars != null )
+			for( int i = 0; i < names.length; i++ )
+				f.objects[i] = vars.get(names[i]);
+		return f;
+	}
+
+	/**
+	 * Get the tree typed for the inputs in a frame and move the typed values out of their boxes.
+	 */
+	private Specialisation specialise(Node.Frame f)
+	{
+		// Two bits for the kind of each input
+		long key = 0;
+		for( int i = 0, shift = 0; i < names.length; i++ )
+		{
+			if( !inputs[i] )
+				continue;
+			if( shift >= 64 )
+				return untyped;
+			key |= (long) Node.kindOf(f.objects[i]) << shift;
+			shift += 2;
+		}
+
+		Specialisation sp = last;
+		if( sp == null || sp.key != key )
+		{
+			synchronized( specialisations )
+			{
+				sp = specialisations.get(key);
+				if( sp == null )
+				{
+					if( specialisations.size() >= MAX_SPECIALISATIONS )
+						return untyped;
+
+					int[] kinds = new int[names.length];
+					for( int i = 0; i < names.length; i++ )
+						kinds[i] = inputs[i] ? Node.kindOf(f.objects[i]) : Node.OBJECT;
+
+					sp = new Specialisation(key, kinds, Compiler.specialise(source, tokens, kinds));
+					specialisations.put(key, sp);
+				}
+			}
+			last = sp;
+		}
+
+		for( int i = 0; i < names.length; i++ )
+		{
+			if( sp.kinds[i] == Node.INT && f.objects[i] instanceof Integer )
+				f.ints[i] = (Integer) f.objects[i];
+			else if( sp.kinds[i] == Node.DOUBLE && f.objects[i] instanceof Double )
+				f.doubles[i] = (Double) f.objects[i];
+		}
+		return sp;
+	}
+
+	private void store(Map<String, Object> vars, Specialisation sp, Node.Frame f)
+	{
+		if( vars == null )
+			return;
+
+		for( int i = 0; i < names.length; i++ )
+		{
+			if( !assigned[i] )
+				continue;
+
+			if( sp.kinds[i] == Node.INT && f.written[i] )
+				vars.put(names[i], f.ints[i]);
+			else if( sp.kinds[i] == Node.DOUBLE && f.written[i] )
+				vars.put(names[i], f.doubles[i]);
+			else
+				vars.put(names[i], f.objects[i]);
+		}
+	}
+}
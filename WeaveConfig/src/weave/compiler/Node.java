@@ -0,0 +1,764 @@
+package weave.compiler;
+
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
+import weave.utils.ReflectionUtils;
+
+/**
+ * A compiled expression tree node.
+ * <br><br>
+ * Every node has a static result kind. Nodes that are known to produce an <code>int</code>
+ * or <code>double</code> are evaluated through {@link #evalInt(Frame)} and
+ * {@link #evalDouble(Frame)} by their parents, so an arithmetic expression over
+ * literals and typed sub-expressions never boxes an intermediate value.
+ * Only values whose type is unknown until runtime go through {@link #eval(Frame)}.
+ * <br><br>
+ * Variables are resolved to slots of a {@link Frame} when the expression is compiled,
+ * so evaluating one is an array access instead of a map lookup. A variable whose type
+ * is known keeps its value unboxed in {@link Frame#ints} or {@link Frame#doubles}.
+ */
+abstract class Node
+{
+	static final int OBJECT		= 0;
+	static final int INT		= 1;
+	static final int DOUBLE		= 2;
+	static final int BOOLEAN	= 3;
+
+	// Binary operators
+	static final int ADD	= 0;
+	static final int SUB	= 1;
+	static final int MUL	= 2;
+	static final int DIV	= 3;
+	static final int MOD	= 4;
+	static final int AND	= 5;
+	static final int OR		= 6;
+	static final int XOR	= 7;
+	static final int SHL	= 8;
+	static final int SHR	= 9;
+	static final int USHR	= 10;
+	static final int LT		= 11;
+	static final int LE		= 12;
+	static final int GT		= 13;
+	static final int GE		= 14;
+	static final int EQ		= 15;
+	static final int EQS	= 16;
+	static final int NE		= 17;
+	static final int NES	= 18;
+
+	final int kind;
+
+	Node(int kind)
+	{
+		this.kind = kind;
+	}
+
+	abstract Object eval(Frame slots);
+
+	/**
+	 * Evaluate the node for its side effects only, so typed nodes don't box a value nobody reads.
+	 */
+	void exec(Frame slots)
+	{
+		eval(slots);
+	}
+
+	int evalInt(Frame slots)
+	{
+		return ((Number) eval(slots)).intValue();
+	}
+
+	double evalDouble(Frame slots)
+	{
+		return ((Number) eval(slots)).doubleValue();
+	}
+
+	boolean evalBoolean(Frame slots)
+	{
+		return truthy(eval(slots));
+	}
+
+	/**
+	 * Check to see if the node always evaluates to the same value.
+	 */
+	boolean isConstant()
+	{
+		return false;
+	}
+
+	boolean isNumeric()
+	{
+		return kind == INT || kind == DOUBLE;
+	}
+
+
+	/**
+	 * Replace a constant node with a literal of its value.
+	 *
+	 * @param n The node to fold
+	 * @return A literal node, or <code>n</code> if it is not constant or fails to evaluate
+	 */
+	static Node fold(Node n)
+	{
+		if( !n.isConstant() || n instanceof Literal )
+			return n;
+
+		try {
+			switch( n.kind )
+			{
+				case INT:		return new IntLiteral(n.evalInt(null));
+				case DOUBLE:	return new DoubleLiteral(n.evalDouble(null));
+				case BOOLEAN:	return new Literal(BOOLEAN, n.evalBoolean(null));
+				default:		return new Literal(OBJECT, n.eval(null));
+			}
+		} catch (RuntimeException e) {
+			// Leave it to fail at runtime, e.g. division by zero
+			return n;
+		}
+	}
+
+	/**
+	 * Get the kind of a runtime value, the way a variable holding it would be typed.
+	 */
+	static int kindOf(Object o)
+	{
+		if( o instanceof Integer )		return INT;
+		if( o instanceof Double )		return DOUBLE;
+		return OBJECT;
+	}
+
+	static boolean truthy(Object o)
+	{
+		if( o == null )					return false;
+		if( o instanceof Boolean )		return (Boolean) o;
+		if( o instanceof Number )		return ((Number) o).doubleValue() != 0;
+		if( o instanceof String )		return !((String) o).isEmpty();
+		return true;
+	}
+
+	static boolean isIntegral(Object o)
+	{
+		return o instanceof Integer || o instanceof Short || o instanceof Byte;
+	}
+
+	static int intOp(int op, int x, int y)
+	{
+		switch( op )
+		{
+			case ADD:	return x + y;
+			case SUB:	return x - y;
+			case MUL:	return x * y;
+			case MOD:	return x % y;
+			case AND:	return x & y;
+			case OR:	return x | y;
+			case XOR:	return x ^ y;
+			case SHL:	return x << y;
+			case SHR:	return x >> y;
+			case USHR:	return x >>> y;
+		}
+		throw new IllegalArgumentException("Not an integer operator: " + op);
+	}
+
+	static double doubleOp(int op, double x, double y)
+	{
+		switch( op )
+		{
+			case ADD:	return x + y;
+			case SUB:	return x - y;
+			case MUL:	return x * y;
+			case DIV:	return x / y;
+			case MOD:	return x % y;
+		}
+		throw new IllegalArgumentException("Not an arithmetic operator: " + op);
+	}
+
+	static boolean compare(int op, double x, double y)
+	{
+		switch( op )
+		{
+			case LT:	return x < y;
+			case LE:	return x <= y;
+			case GT:	return x > y;
+			case GE:	return x >= y;
+			case EQ:
+			case EQS:	return x == y;
+			case NE:
+			case NES:	return x != y;
+		}
+		throw new IllegalArgumentException("Not a comparison operator: " + op);
+	}
+
+	/**
+	 * Apply a binary operator to values whose types are only known at runtime.
+	 */
+	static Object dynamicOp(int op, Object a, Object b)
+	{
+		if( op == ADD && (a instanceof String || b instanceof String) )
+			return String.valueOf(a) + String.valueOf(b);
+
+		if( op == AND || op == OR || op == XOR )
+		{
+			if( a instanceof Boolean && b instanceof Boolean )
+			{
+				boolean x = (Boolean) a, y = (Boolean) b;
+				return ( op == AND ) ? x & y : ( op == OR ) ? x | y : x ^ y;
+			}
+			return intOp(op, ((Number) a).intValue(), ((Number) b).intValue());
+		}
+		if( op == SHL || op == SHR || op == USHR )
+			return intOp(op, ((Number) a).intValue(), ((Number) b).intValue());
+
+		if( op >= LT )
+			return dynamicCompare(op, a, b);
+
+		if( op != DIV && isIntegral(a) && isIntegral(b) )
+			return intOp(op, ((Number) a).intValue(), ((Number) b).intValue());
+		return doubleOp(op, ((Number) a).doubleValue(), ((Number) b).doubleValue());
+	}
+
+	static boolean dynamicCompare(int op, Object a, Object b)
+	{
+		if( a instanceof Number && b instanceof Number && ((op != EQS && op != NES) || a.getClass() == b.getClass()) )
+			return compare(op, ((Number) a).doubleValue(), ((Number) b).doubleValue());
+
+		switch( op )
+		{
+			case EQ:	return ( a == null ) ? b == null : a.equals(b);
+			case NE:	return !dynamicCompare(EQ, a, b);
+			case EQS:	return ( a == null ) ? b == null : b != null && a.getClass() == b.getClass() && a.equals(b);
+			case NES:	return !dynamicCompare(EQS, a, b);
+		}
+
+		int c = ((String) a).compareTo((String) b);
+		return compare(op, c, 0);
+	}
+
+
+	/**
+	 * The variables of one evaluation, indexed by slot.
+	 */
+	static final class Frame
+	{
+		final Object[] objects;
+		final int[] ints;
+		final double[] doubles;
+
+		/**
+		 * Which typed slots were assigned, the others still hold their value in {@link #objects}.
+		 */
+		final boolean[] written;
+
+		Frame(int size)
+		{
+			objects = new Object[size];
+			ints = new int[size];
+			doubles = new double[size];
+			written = new boolean[size];
+		}
+	}
+
+
+	//============================================================================================================
+	// Values
+	//============================================================================================================
+
+	static class Literal extends Node
+	{
+		final Object value;
+
+		Literal(int kind, Object value)
+		{
+			super(kind);
+			this.value = value;
+		}
+
+		@Override Object eval(Frame slots)			{ return value; }
+		@Override boolean isConstant()					{ return true; }
+	}
+
+	static final class IntLiteral extends Literal
+	{
+		final int i;
+
+		IntLiteral(int i)
+		{
+			super(INT, Integer.valueOf(i));
+			this.i = i;
+		}
+
+		@Override int evalInt(Frame slots)			{ return i; }
+		@Override double evalDouble(Frame slots)		{ return i; }
+		@Override boolean evalBoolean(Frame slots)	{ return i != 0; }
+	}
+
+	static final class DoubleLiteral extends Literal
+	{
+		final double d;
+
+		DoubleLiteral(double d)
+		{
+			super(DOUBLE, Double.valueOf(d));
+			this.d = d;
+		}
+
+		@Override int evalInt(Frame slots)			{ return (int) d; }
+		@Override double evalDouble(Frame slots)		{ return d; }
+		@Override boolean evalBoolean(Frame slots)	{ return d != 0; }
+	}
+
+	static final class Variable extends Node
+	{
+		final int slot;
+		final String name;
+
+		Variable(int slot, String name)
+		{
+			super(OBJECT);
+			this.slot = slot;
+			this.name = name;
+		}
+
+		@Override Object eval(Frame slots)			{ return slots.objects[slot]; }
+	}
+
+	/**
+	 * A variable that only ever holds an <code>int</code>.
+	 */
+	static final class IntVariable extends Node
+	{
+		final int slot;
+
+		IntVariable(int slot)
+		{
+			super(INT);
+			this.slot = slot;
+		}
+
+		@Override int evalInt(Frame s)					{ return s.ints[slot]; }
+		@Override double evalDouble(Frame s)			{ return s.ints[slot]; }
+		@Override Object eval(Frame s)					{ return s.ints[slot]; }
+	}
+
+	/**
+	 * A variable that only ever holds a <code>double</code>.
+	 */
+	static final class DoubleVariable extends Node
+	{
+		final int slot;
+
+		DoubleVariable(int slot)
+		{
+			super(DOUBLE);
+			this.slot = slot;
+		}
+
+		@Override double evalDouble(Frame s)			{ return s.doubles[slot]; }
+		@Override int evalInt(Frame s)					{ return (int) s.doubles[slot]; }
+		@Override Object eval(Frame s)					{ return s.doubles[slot]; }
+	}
+
+	/**
+	 * Compound assignments are compiled to a plain assignment of the binary operation.
+	 */
+	static final class Assign extends Node
+	{
+		final int slot;
+		final Node value;
+
+		Assign(int slot, Node value)
+		{
+			super(OBJECT);
+			this.slot = slot;
+			this.value = value;
+		}
+
+		@Override Object eval(Frame s)					{ return s.objects[slot] = value.eval(s); }
+	}
+
+	static final class IntAssign extends Node
+	{
+		final int slot;
+		final Node value;
+
+		IntAssign(int slot, Node value)
+		{
+			super(INT);
+			this.slot = slot;
+			this.value = value;
+		}
+
+		@Override
+		int evalInt(Frame s)
+		{
+			s.written[slot] = true;
+			return s.ints[slot] = value.evalInt(s);
+		}
+
+		@Override double evalDouble(Frame s)			{ return evalInt(s); }
+		@Override Object eval(Frame s)					{ return evalInt(s); }
+		@Override void exec(Frame s)					{ evalInt(s); }
+	}
+
+	static final class DoubleAssign extends Node
+	{
+		final int slot;
+		final Node value;
+
+		DoubleAssign(int slot, Node value)
+		{
+			super(DOUBLE);
+			this.slot = slot;
+			this.value = value;
+		}
+
+		@Override
+		double evalDouble(Frame s)
+		{
+			s.written[slot] = true;
+			return s.doubles[slot] = value.evalDouble(s);
+		}
+
+		@Override int evalInt(Frame s)					{ return (int) evalDouble(s); }
+		@Override Object eval(Frame s)					{ return evalDouble(s); }
+		@Override void exec(Frame s)					{ evalDouble(s); }
+	}
+
+
+	//============================================================================================================
+	// Operators
+	//============================================================================================================
+
+	static abstract class Binary extends Node
+	{
+		final int op;
+		final Node left;
+		final Node right;
+
+		Binary(int kind, int op, Node left, Node right)
+		{
+			super(kind);
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override boolean isConstant()					{ return left.isConstant() && right.isConstant(); }
+	}
+
+	/**
+	 * Both operands are <code>int</code>.
+	 */
+	static final class IntBinary extends Binary
+	{
+		IntBinary(int op, Node left, Node right)		{ super(INT, op, left, right); }
+
+		@Override int evalInt(Frame s)				{ return intOp(op, left.evalInt(s), right.evalInt(s)); }
+		@Override double evalDouble(Frame s)			{ return evalInt(s); }
+		@Override Object eval(Frame s)				{ return evalInt(s); }
+	}
+
+	/**
+	 * Both operands are numeric and at least one is a <code>double</code>, or the operator is a division.
+	 */
+	static final class DoubleBinary extends Binary
+	{
+		DoubleBinary(int op, Node left, Node right)		{ super(DOUBLE, op, left, right); }
+
+		@Override double evalDouble(Frame s)			{ return doubleOp(op, left.evalDouble(s), right.evalDouble(s)); }
+		@Override int evalInt(Frame s)				{ return (int) evalDouble(s); }
+		@Override Object eval(Frame s)				{ return evalDouble(s); }
+	}
+
+	/**
+	 * Both operands are numeric.
+	 */
+	static final class NumericCompare extends Binary
+	{
+		final boolean ints;
+
+		NumericCompare(int op, Node left, Node right)
+		{
+			super(BOOLEAN, op, left, right);
+			ints = left.kind == INT && right.kind == INT;
+		}
+
+		@Override
+		boolean evalBoolean(Frame s)
+		{
+			if( ints )
+				return compare(op, left.evalInt(s), right.evalInt(s));
+			return compare(op, left.evalDouble(s), right.evalDouble(s));
+		}
+
+		@Override Object eval(Frame s)				{ return evalBoolean(s); }
+	}
+
+	/**
+	 * At least one operand is only known at runtime.
+	 */
+	static final class DynamicBinary extends Binary
+	{
+		DynamicBinary(int op, Node left, Node right)
+		{
+			super(op >= LT ? BOOLEAN : OBJECT, op, left, right);
+		}
+
+		@Override Object eval(Frame s)				{ return dynamicOp(op, left.eval(s), right.eval(s)); }
+	}
+
+	static final class Logical extends Binary
+	{
+		Logical(int op, Node left, Node right)			{ super(BOOLEAN, op, left, right); }
+
+		@Override
+		boolean evalBoolean(Frame s)
+		{
+			if( op == AND )
+				return left.evalBoolean(s) && right.evalBoolean(s);
+			return left.evalBoolean(s) || right.evalBoolean(s);
+		}
+
+		@Override Object eval(Frame s)				{ return evalBoolean(s); }
+	}
+
+	static final class Not extends Node
+	{
+		final Node operand;
+
+		Not(Node operand)
+		{
+			super(BOOLEAN);
+			this.operand = operand;
+		}
+
+		@Override boolean evalBoolean(Frame s)		{ return !operand.evalBoolean(s); }
+		@Override Object eval(Frame s)				{ return evalBoolean(s); }
+		@Override boolean isConstant()					{ return operand.isConstant(); }
+	}
+
+	static final class Negate extends Node
+	{
+		final Node operand;
+
+		Negate(Node operand)
+		{
+			super(operand.isNumeric() ? operand.kind : OBJECT);
+			this.operand = operand;
+		}
+
+		@Override int evalInt(Frame s)				{ return -operand.evalInt(s); }
+		@Override double evalDouble(Frame s)			{ return -operand.evalDouble(s); }
+		@Override boolean isConstant()					{ return operand.isConstant(); }
+
+		@Override
+		Object eval(Frame s)
+		{
+			if( kind == INT )		return evalInt(s);
+			if( kind == DOUBLE )	return evalDouble(s);
+
+			Object o = operand.eval(s);
+			if( isIntegral(o) )
+				return -((Number) o).intValue();
+			return -((Number) o).doubleValue();
+		}
+	}
+
+	static final class BitwiseNot extends Node
+	{
+		final Node operand;
+
+		BitwiseNot(Node operand)
+		{
+			super(INT);
+			this.operand = operand;
+		}
+
+		@Override int evalInt(Frame s)				{ return ~operand.evalInt(s); }
+		@Override double evalDouble(Frame s)			{ return evalInt(s); }
+		@Override Object eval(Frame s)				{ return evalInt(s); }
+		@Override boolean isConstant()					{ return operand.isConstant(); }
+	}
+
+	static final class InstanceOf extends Node
+	{
+		final Node operand;
+		final Class<?> type;
+
+		InstanceOf(Node operand, Class<?> type)
+		{
+			super(BOOLEAN);
+			this.operand = operand;
+			this.type = type;
+		}
+
+		@Override boolean evalBoolean(Frame s)		{ return type.isInstance(operand.eval(s)); }
+		@Override Object eval(Frame s)				{ return evalBoolean(s); }
+		@Override boolean isConstant()					{ return operand.isConstant(); }
+	}
+
+	static final class New extends Node
+	{
+		final String pkg;
+		final String clazz;
+		final Node[] args;
+
+		New(String pkg, String clazz, Node[] args)
+		{
+			super(OBJECT);
+			this.pkg = pkg;
+			this.clazz = clazz;
+			this.args = args;
+		}
+
+		@Override
+		Object eval(Frame s)
+		{
+			Object[] a = new Object[args.length];
+			Class<?>[] l = new Class<?>[args.length];
+
+			for( int i = 0; i < args.length; i++ )
+			{
+				a[i] = args[i].eval(s);
+				l[i] = a[i].getClass();
+			}
+
+			try {
+				return ReflectionUtils.reflectConstructor(pkg, clazz, l, a);
+			} catch (Exception e) {
+				trace(STDERR, e);
+			}
+			return null;
+		}
+	}
+
+
+	//============================================================================================================
+	// Statements
+	//============================================================================================================
+
+	/**
+	 * A sequence of statements, evaluates to the value of the last one.
+	 */
+	static final class Block extends Node
+	{
+		final Node[] statements;
+
+		Block(Node[] statements)
+		{
+			super(statements.length == 1 ? statements[0].kind : OBJECT);
+			this.statements = statements;
+		}
+
+		@Override
+		Object eval(Frame s)
+		{
+			if( statements.length == 0 )
+				return null;
+
+			int last = statements.length - 1;
+			for( int i = 0; i < last; i++ )
+				statements[i].exec(s);
+			return statements[last].eval(s);
+		}
+
+		@Override
+		void exec(Frame s)
+		{
+			for( int i = 0; i < statements.length; i++ )
+				statements[i].exec(s);
+		}
+
+		// A single statement keeps its kind, so let it skip the boxing as well
+		@Override int evalInt(Frame s)					{ return statements.length == 1 ? statements[0].evalInt(s) : super.evalInt(s); }
+		@Override double evalDouble(Frame s)			{ return statements.length == 1 ? statements[0].evalDouble(s) : super.evalDouble(s); }
+		@Override boolean evalBoolean(Frame s)			{ return statements.length == 1 ? statements[0].evalBoolean(s) : super.evalBoolean(s); }
+	}
+
+	static final class If extends Node
+	{
+		final Node condition;
+		final Node then;
+		final Node otherwise;
+
+		If(Node condition, Node then, Node otherwise)
+		{
+			super(OBJECT);
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		@Override
+		Object eval(Frame s)
+		{
+			if( condition.evalBoolean(s) )
+				return then.eval(s);
+			return ( otherwise != null ) ? otherwise.eval(s) : null;
+		}
+
+		@Override
+		void exec(Frame s)
+		{
+			if( condition.evalBoolean(s) )
+				then.exec(s);
+			else if( otherwise != null )
+				otherwise.exec(s);
+		}
+	}
+
+	/**
+	 * <code>while</code>, <code>do ... while</code> and <code>for</code> loops.
+	 */
+	static final class Loop extends Node
+	{
+		final Node init;
+		final Node condition;
+		final Node step;
+		final Node body;
+		final boolean testFirst;
+
+		Loop(Node init, Node condition, Node step, Node body, boolean testFirst)
+		{
+			super(OBJECT);
+			this.init = init;
+			this.condition = condition;
+			this.step = step;
+			this.body = body;
+			this.testFirst = testFirst;
+		}
+
+		@Override
+		Object eval(Frame s)
+		{
+			Object v = null;
+
+			if( init != null )
+				init.eval(s);
+			if( testFirst && condition != null && !condition.evalBoolean(s) )
+				return null;
+
+			do {
+				v = body.eval(s);
+				if( step != null )
+					step.eval(s);
+			} while( condition == null || condition.evalBoolean(s) );
+
+			return v;
+		}
+
+		@Override
+		void exec(Frame s)
+		{
+			if( init != null )
+				init.exec(s);
+			if( testFirst && condition != null && !condition.evalBoolean(s) )
+				return;
+
+			do {
+				body.exec(s);
+				if( step != null )
+					step.exec(s);
+			} while( condition == null || condition.evalBoolean(s) );
+		}
+	}
+}
@@ -5,9 +5,13 @@ public class Token
 	public static final int TYPE_EOF = -1;
 	public static final int TYPE_VALUE = 0;
 	public static final int TYPE_VARIABLE = (1 << 0);
+	public static final int TYPE_OPERATOR = (1 << 1);
+	public static final int TYPE_KEYWORD = (1 << 2);
 	
 	public int type = 0;
 	public Object value = null;
+	public int position = -1;
+	public int end = -1;
 	
 	public Token(int type, Object value)
 	{
@@ -15,6 +19,24 @@ public class Token
 		this.value = value;
 	}
 	
+	/**
+	 * @param type The token type
+	 * @param value The literal value, name, or operator
+	 * @param position The index of the first character in the source
+	 * @param end The index after the last character in the source
+	 */
+	public Token(int type, Object value, int position, int end)
+	{
+		this(type, value);
+		this.position = position;
+		this.end = end;
+	}
+	
+	public boolean is(int type, String value)
+	{
+		return this.type == type && value.equals(this.value);
+	}
+	
 	@Override
 	public String toString() 
 	{
@@ -27,6 +49,12 @@ public class Token
 		case TYPE_VARIABLE:
 			sb.append("VARIABLE(").append(value).append(")");
 			break;
+		case TYPE_OPERATOR:
+			sb.append("OPERATOR(").append(value).append(")");
+			break;
+		case TYPE_KEYWORD:
+			sb.append("KEYWORD(").append(value).append(")");
+			break;
 		case TYPE_EOF:
 			sb.append("END OF FILE");
 			break;
@@ -29,9 +29,12 @@ import java.util.Map;
 import javax.swing.JOptionPane;
 
 import weave.Globals;
+import weave.core.Accessor;
 import weave.managers.ConfigManager;
 import weave.reflect.Reflectable;
 import weave.utils.BugReportUtils;
+import weave.utils.EnvironmentUtils;
+import weave.utils.FileUtils;
 import weave.utils.ObjectUtils;
 
 public class Config extends Globals implements IConfig
@@ -48,6 +51,16 @@ public class Config extends Globals implements IConfig
 	public static final int _VERSION		= ( 1 << 4 );
 	public static final int _ACTIVE			= ( 1 << 5 );
 	
+	public static final Accessor<IConfig, String> GET_CONFIG_NAME = new Accessor<IConfig, String>() {
+		@Override public String get(IConfig c) 			{ return c.getConfigName(); }
+	};
+	public static final Accessor<IConfig, File> GET_WEBAPPS_DIRECTORY = new Accessor<IConfig, File>() {
+		@Override public File get(IConfig c) 			{ return c.getWebappsDirectory(); }
+	};
+	public static final Accessor<IConfig, String> GET_INSTALL_VERSION = new Accessor<IConfig, String>() {
+		@Override public String get(IConfig c) 			{ return c.getInstallVersion(); }
+	};
+	
 	protected String 	CONFIG_NAME 	= "";
 
 	protected String	_homepage		= null;
@@ -92,41 +105,20 @@ public class Config extends Globals implements IConfig
 	@Override public void initConfig(int i) {
 		Map<String, Object> savedCFG = ConfigManager.getConfigManager().getSavedConfigSettings(getConfigName());
 		
-		Class<?>[] argClasses 	= { Object.class };
-		Object[] argsWebapps 	= { WEBAPPS };
-		Object[] argsHost		= { HOST };
-		Object[] argsPort 		= { PORT };
-		Object[] argsVersion 	= { VERSION };
-		Object[] argsActive 	= { ACTIVE };
-		
 		try {
-			if( (i & _WEBAPPS) != 0 ) {
-				String d = "";
-				String s = (String)ObjectUtils.ternary(savedCFG, "get", d, argClasses, argsWebapps);
-				setWebappsDirectory((s == null) ? d : s);
-			}
-
-			if( (i & _HOST) != 0 ) {
-				String d = "localhost";
-				String s = (String)ObjectUtils.ternary(savedCFG, "get", d, argClasses, argsHost); 
-				setHost((s == null) ? d : s);
-			}
+			if( (i & _WEBAPPS) != 0 )
+				setWebappsDirectory(ObjectUtils.getOrDefault(savedCFG, WEBAPPS, ""));
+
+			if( (i & _HOST) != 0 )
+				setHost(ObjectUtils.getOrDefault(savedCFG, HOST, "localhost"));
 			
-			if( (i & _PORT) != 0 ) {
-				String d = ""+_port;
-				String s = (String)ObjectUtils.ternary(savedCFG, "get", d, argClasses, argsPort);
-				setPort((s == null) ? d : s);
-			}
-
-			if( (i & _VERSION) != 0 ) {
-				String d = "";
-				String s = (String)ObjectUtils.ternary(savedCFG, "get", d, argClasses, argsVersion);
-				setInstallVersion((s == null) ? d : s);
-			}
+			if( (i & _PORT) != 0 )
+				setPort(ObjectUtils.getOrDefault(savedCFG, PORT, "" + _port));
+
+			if( (i & _VERSION) != 0 )
+				setInstallVersion(ObjectUtils.getOrDefault(savedCFG, VERSION, ""));
 			
-			Boolean d = false;
-			Boolean b = (Boolean)ObjectUtils.ternary(savedCFG, "get", d, argClasses, argsActive); 
-			if( (b == null) ? d : b )
+			if( ObjectUtils.getOrDefault(savedCFG, ACTIVE, false) )
 				loadConfig();
 				
 		} catch (Exception e) {
@@ -165,7 +157,7 @@ public class Config extends Globals implements IConfig
 	@Reflectable
 	@Override public boolean isConfigLoaded() 			{ return 	_loaded; }
 	@Override public void setHomepageURL(String s)		{			_homepage = s; }
-	@Override public void setWebappsDirectory(File f) 	{ 			_webapps = f; }
+	@Override public void setWebappsDirectory(File f) 	{ 			_webapps = f; EnvironmentUtils.invalidate(); }
 	@Override public void setDownloadURL(String s) 		{ 			_downloadURL = s; }
 	@Override public void setInstallFile(File f) 		{ 			_install_file = f; }
 	@Override public void setInstallVersion(String s)	{			_version = s; }
@@ -206,7 +198,7 @@ public class Config extends Globals implements IConfig
 	@Override public String toString() {
 		String ret = "\nIConfig: " + getConfigName() + "\n";
 		try {
-			ret += ("\tWebapps: " + (String)ObjectUtils.ternary(getWebappsDirectory(), "getAbsolutePath", "Not Set") + "\n");
+			ret += ("\tWebapps: " + ObjectUtils.ternary(getWebappsDirectory(), FileUtils.GET_ABSOLUTE_PATH, "Not Set") + "\n");
 			ret += ("\tHost: " + getHost() + "\n");
 			ret += ("\tPort: " + getPort() + "\n");
 			ret += ("\tLoaded: " + ( isConfigLoaded() ? "TRUE" : "FALSE") + "\n");
@@ -36,6 +36,7 @@ import weave.async.AsyncFunction;
 import weave.managers.ConfigManager;
 import weave.managers.ResourceManager;
 import weave.utils.BugReportUtils;
+import weave.utils.FileUtils;
 import weave.utils.ObjectUtils;
 import weave.utils.ProcessUtils;
 import weave.utils.RemoteUtils;
@@ -131,7 +132,7 @@ public class JettyConfig extends Config
 				trace(STDOUT, INFO, StringUtils.rpad("Starting " + getConfigName() + " server", ".", Settings.LOG_PADDING_LENGTH));
 
 				try {
-					String basePath = (String)ObjectUtils.ternary(getWebappsDirectory(), "getAbsolutePath", "") + "/../";
+					String basePath = ObjectUtils.ternary(getWebappsDirectory(), FileUtils.GET_ABSOLUTE_PATH, "") + "/../";
 					File logStdout = new File(basePath + Settings.F_S + "logs" + Settings.F_S, getLogFile(STDOUT).getName());
 					File logStderr = new File(basePath + Settings.F_S + "logs" + Settings.F_S, getLogFile(STDERR).getName());
 					String cmd = 	"java -jar -Xmx1024m \"" + basePath + "start.jar\" " +
@@ -150,6 +151,9 @@ public class JettyConfig extends Config
 				return o;
 			}
 		};
+		// Runs for as long as the server process does
+		startTask.setLongRunning(true);
+		
 		AsyncCallback stopCallback = new AsyncCallback() {
 			@Override
 			public void run(Object o) {
@@ -189,7 +193,7 @@ public class JettyConfig extends Config
 		trace(STDOUT, INFO, StringUtils.rpad("Stopping " + getConfigName() + " server", ".", Settings.LOG_PADDING_LENGTH));
 
 		try {
-			String basePath = (String)ObjectUtils.ternary(getWebappsDirectory(), "getAbsolutePath", "") + "/../";
+			String basePath = ObjectUtils.ternary(getWebappsDirectory(), FileUtils.GET_ABSOLUTE_PATH, "") + "/../";
 			String cmd = 	"java -jar \"" + basePath + "start.jar\" " +
 							"jetty.base=\"" + basePath + "\" " +
 							"STOP.PORT=" + (_port+1) + " STOP.KEY=jetty --stop";
@@ -0,0 +1,16 @@
+package weave.core;
+
+/**
+ * A typed getter that reads one value from an object.<br>
+ * Use with {@link weave.utils.ObjectUtils#ternary(Object, Accessor, Object)} in place of
+ * calling a method by name, so the call is checked at compile time and made directly.
+ * <br><br>
+ * Accessors hold no state, keep them in <code>static final</code> fields and reuse them.
+ *
+ * @param <T> The type of object to read from
+ * @param <R> The type of value read
+ */
+public abstract class Accessor<T, R>
+{
+	public abstract R get(T o) throws Exception;
+}
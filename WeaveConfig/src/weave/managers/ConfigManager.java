@@ -22,10 +22,7 @@ package weave.managers;
 import static weave.utils.TraceUtils.*;
 import static weave.utils.TraceUtils.LEVEL.*;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -42,7 +39,10 @@ import weave.configs.PostgreSQLConfig;
 import weave.configs.SQLiteConfig;
 import weave.configs.TomcatConfig;
 import weave.utils.BugReportUtils;
+import weave.utils.EnvironmentUtils;
+import weave.utils.FileUtils;
 import weave.utils.ObjectUtils;
+import weave.utils.SettingsStore;
 import weave.utils.StringUtils;
 
 public class ConfigManager extends Globals
@@ -55,6 +55,7 @@ public class ConfigManager extends Globals
 	
 	private ArrayList<Map<String, IConfig>> availableConfigs = null;
 	private Map<String, Map<String, Object>> CONFIGS_MAP	= null;
+	private SettingsStore CONFIGS_STORE						= null;
 	
 
 	/////////////////////////////////////////////////////////////////////////////////////
@@ -195,6 +196,7 @@ public class ConfigManager extends Globals
 		{
 			traceln(STDOUT, INFO, StringUtils.rpad("Unloading Config Container", ".", Settings.LOG_PADDING_LENGTH) + ACTIVE_CONTAINER_PLUGIN.getConfigName());
 			ACTIVE_CONTAINER_PLUGIN = null;
+			EnvironmentUtils.invalidate();
 			return true;
 		}
 		
@@ -202,6 +204,7 @@ public class ConfigManager extends Globals
 		{
 			traceln(STDOUT, INFO, StringUtils.rpad("Loading Config Container", ".", Settings.LOG_PADDING_LENGTH) + c.getConfigName());
 			ACTIVE_CONTAINER_PLUGIN = c;
+			EnvironmentUtils.invalidate();
 			return true;
 		}
 		
@@ -233,10 +236,8 @@ public class ConfigManager extends Globals
 		try {
 			traceln(STDOUT, WARN, StringUtils.rpad("Saving config file", ".", Settings.LOG_PADDING_LENGTH));
 			
-			if( !Settings.configsFileExists() )
-				Settings.CONFIG_FILE.createNewFile();
-			
 			CONFIGS_MAP = new HashMap<String, Map<String, Object>>();
+			Map<String, Object> flat = new HashMap<String, Object>();
 			
 			for( int i = 0; i < availableConfigs.size(); ++i )
 			{
@@ -245,19 +246,19 @@ public class ConfigManager extends Globals
 					IConfig config = entry.getValue();
 					Map<String, Object> values = new HashMap<String, Object>();
 					
-					values.put(Config.WEBAPPS, 	ObjectUtils.ternary(config.getWebappsDirectory(), "getCanonicalPath", null));
+					values.put(Config.WEBAPPS, 	ObjectUtils.ternary(config.getWebappsDirectory(), FileUtils.GET_CANONICAL_PATH, null));
 					values.put(Config.HOST, 	config.getHost());
 					values.put(Config.PORT,		"" + config.getPort());
 					values.put(Config.VERSION, 	config.getInstallVersion());
 					values.put(Config.ACTIVE, 	config.isConfigLoaded());
 					
 					CONFIGS_MAP.put(config.getConfigName(), values);
+					for( Map.Entry<String, Object> v : values.entrySet() )
+						flat.put(config.getConfigName() + "/" + v.getKey(), v.getValue());
 				}
 			}
 
-			ObjectOutputStream outstream = new ObjectOutputStream(new FileOutputStream(Settings.CONFIG_FILE));
-			outstream.writeObject(CONFIGS_MAP);
-			outstream.close();
+			getConfigsStore().putAll(flat);
 		} catch (Exception e) {
 			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
 			trace(STDERR, e);
@@ -268,7 +269,6 @@ public class ConfigManager extends Globals
 		return true;
 	}
 	
-	@SuppressWarnings("unchecked")
 	public boolean load()
 	{
 		if( !Settings.configsFileExists() )
@@ -277,10 +277,19 @@ public class ConfigManager extends Globals
 		try {
 			traceln(STDOUT, WARN, StringUtils.rpad("Loading config file", ".", Settings.LOG_PADDING_LENGTH));
 
-			ObjectInputStream instream = new ObjectInputStream(new FileInputStream(Settings.CONFIG_FILE));
-			CONFIGS_MAP = (Map<String, Map<String, Object>>) instream.readObject();
-			instream.close();
-			
+			CONFIGS_MAP = new HashMap<String, Map<String, Object>>();
+			for( Map.Entry<String, Object> e : getConfigsStore().getAll().entrySet() )
+			{
+				int slash = e.getKey().lastIndexOf('/');
+				if( slash < 0 )
+					continue;
+				
+				String name = e.getKey().substring(0, slash);
+				Map<String, Object> values = CONFIGS_MAP.get(name);
+				if( values == null )
+					CONFIGS_MAP.put(name, values = new HashMap<String, Object>());
+				values.put(e.getKey().substring(slash + 1), e.getValue());
+			}
 		} catch (Exception e) {
 			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
 			trace(STDERR, e);
@@ -291,5 +300,15 @@ public class ConfigManager extends Globals
 		return true;
 	}
 	
+	/**
+	 * Get the store the configs are saved in, migrating the old serialized file the first time.
+	 */
+	private SettingsStore getConfigsStore() throws IOException
+	{
+		if( CONFIGS_STORE == null )
+			CONFIGS_STORE = SettingsStore.open(Settings.CONFIG_FILE, Settings.LEGACY_CONFIG_FILE);
+		return CONFIGS_STORE;
+	}
+	
 	/////////////////////////////////////////////////////////////////////////////////////
 }
@@ -20,6 +20,7 @@ import weave.core.Function;
 import weave.utils.BugReportUtils;
 import weave.utils.DownloadUtils;
 import weave.utils.FileUtils;
+import weave.utils.RevisionStore;
 import weave.utils.StringUtils;
 import weave.utils.TimerUtils;
 import weave.utils.TransferUtils;
@@ -31,6 +32,8 @@ public class DownloadManager
 	private String dlURLStr = "";
 	private String dlFileStr = "";
 	private String dlDestinationStr = "";
+	private String revisionStr = "";
+	private boolean pipelined = false;
 	private Function<Object, Object> callbackFunction = null;
 	
 	private JLabel label = null;
@@ -46,6 +49,8 @@ public class DownloadManager
 		_instance.dlURLStr = null;
 		_instance.dlFileStr = null;
 		_instance.dlDestinationStr = null;
+		_instance.revisionStr = null;
+		_instance.pipelined = false;
 		_instance.callbackFunction = null;
 		
 		_instance.label = null;
@@ -75,6 +80,17 @@ public class DownloadManager
 		dlFileStr = loc;
 		return this;
 	}
+	/**
+	 * Install a revision kept in the {@link RevisionStore} instead of extracting an archive.
+	 * 
+	 * @param name The name of the revision
+	 * @return This DownloadManager
+	 */
+	public DownloadManager deploy(String name)
+	{
+		revisionStr = name;
+		return this;
+	}
 	public DownloadManager installTo(String loc)
 	{
 		dlDestinationStr = loc;
@@ -85,10 +101,29 @@ public class DownloadManager
 		callbackFunction = f;
 		return this;
 	}
+	
+	/**
+	 * Extract the archive while it downloads and install it straight from a
+	 * staging directory next to the destination, instead of running the
+	 * separate download, extract and install steps.
+	 * 
+	 * @param p <code>true</code> to stream the install
+	 * @return This DownloadManager
+	 */
+	public DownloadManager pipelined(boolean p)
+	{
+		pipelined = p;
+		return this;
+	}
+	
 	public void start() throws MalformedURLException, InterruptedException
 	{
-		if( dlURLStr != null )
+		if( dlURLStr != null && pipelined )
+			downloadAndInstall();
+		else if( dlURLStr != null )
 			download();
+		else if( revisionStr != null )
+			checkout();
 		else if( dlFileStr != null )
 			extract();
 		else
@@ -100,49 +135,7 @@ public class DownloadManager
 		final URL url = new URL(dlURLStr);
 		final File file = new File(dlFileStr);
 
-		final AsyncObserver observer = new AsyncObserver() {
-			@Override
-			public void onUpdate() {
-				if( info.max == -1 ) {
-					// Unknown max size - progress unavailable
-					progressbar.setIndeterminate(true);
-					if( label != null )
-						label.setText( 
-							String.format("Downloading " + type + ".... %s @ %s",
-								FileUtils.sizeify(info.cur), 
-								DownloadUtils.speedify(info.speed)) );
-				} else {
-					// Known max size
-					progressbar.setIndeterminate(false);
-					progressbar.setValue( info.percent );
-					if( info.time > 3600 ) {
-						if( label != null )
-							label.setText(
-								String.format("Downloading - %d%% - %s - %s (%s)", 
-									info.percent, 
-									"Calculating ETA...",
-									FileUtils.sizeify(info.cur),
-									DownloadUtils.speedify(info.speed)) );
-					} else if( info.time < 60 ) {
-						if( label != null )
-							label.setText(
-								String.format("Downloading - %d%% - %s - %s (%s)", 
-									info.percent, 
-									TimerUtils.format("%s s remaining", info.time),
-									FileUtils.sizeify(info.cur),
-									DownloadUtils.speedify(info.speed)) );
-					} else {
-						if( label != null )
-							label.setText(
-								String.format("Downloading - %d%% - %s - %s (%s)",
-									info.percent, 
-									TimerUtils.format("%m:%ss remaining", info.time),
-									FileUtils.sizeify(info.cur),
-									DownloadUtils.speedify(info.speed)) );
-					}
-				}
-			}
-		};
+		final AsyncObserver observer = createDownloadObserver();
 		final AsyncCallback callback = new AsyncCallback() {
 			@Override
 			public void run(Object o) {
@@ -209,7 +202,7 @@ public class DownloadManager
 				int ret = TransferUtils.FAILED;
 				try {
 					observer.init(url);
-					ret = DownloadUtils.download(url, file, observer, 6 * TransferUtils.MB);
+					ret = DownloadUtils.download(url, file, observer, 6 * TransferUtils.MB, DownloadUtils.DEFAULT_CONNECTIONS);
 				} catch (Exception e) {
 					trace(STDERR, e);
 					BugReportUtils.showBugReportDialog(e);
@@ -234,7 +227,169 @@ public class DownloadManager
 		Settings.transferCancelled = false;
 		Settings.transferLocked = true;
 
-		task.addCallback(callback).call();
+		task.setLongRunning(true).addCallback(callback).call();
+	}
+	
+	private void downloadAndInstall() throws MalformedURLException, InterruptedException
+	{
+		final URL url = new URL(dlURLStr);
+		final File file = new File(dlFileStr);
+		final File destination = new File(dlDestinationStr);
+		
+		// Stage next to the destination so the install is a rename on the same file system
+		final File staging = new File(destination.getAbsoluteFile().getParentFile(), "." + destination.getName() + ".staging");
+		
+		final AsyncObserver observer = createDownloadObserver();
+		final AsyncCallback callback = new AsyncCallback() {
+			@Override
+			public void run(Object o) {
+				int returnCode = (Integer) o;
+
+				Settings.transferCancelled = false;
+				Settings.transferLocked = false;
+
+				try {
+					switch( returnCode )
+					{
+						case TransferUtils.COMPLETE:
+							put(STDOUT, "DONE");
+							label.setText("Install complete....");
+							
+							callbackFunction.call(returnCode, dlFileStr);
+							break;
+						case TransferUtils.CANCELLED:
+							put(STDOUT, "CANCELLED");
+							label.setText("Install Cancelled...");
+							label.setForeground(Color.BLACK);
+							
+							Thread.sleep(1000);
+							callbackFunction.call(returnCode, dlFileStr);
+							break;
+						case TransferUtils.FAILED:
+							put(STDOUT, "FAILED");
+							label.setText("Install Failed...");
+							label.setForeground(Color.RED);
+							
+							Thread.sleep(1000);
+							callbackFunction.call(returnCode, dlFileStr);
+							break;
+						case TransferUtils.OFFLINE:
+							put(STDOUT, "OFFLINE");
+							label.setText("Offline");
+							label.setForeground(Color.BLACK);
+							
+							Thread.sleep(1000);
+							callbackFunction.call(returnCode, dlFileStr);
+							break;
+					}
+				} catch (InterruptedException e) {
+					trace(STDERR, e);
+					BugReportUtils.showBugReportDialog(e);
+				}
+			}
+		};
+		AsyncFunction task = new AsyncFunction() {
+			@Override
+			public Object doInBackground() {
+				int ret = TransferUtils.FAILED;
+				try {
+					if( staging.exists() )
+						FileUtils.recursiveDelete(staging);
+					
+					observer.init(url);
+					ret = DownloadUtils.downloadAndExtract(url, file, staging, observer, 6 * TransferUtils.MB);
+					
+					if( ret == TransferUtils.COMPLETE )
+					{
+						if( label != null )
+							label.setText("Installing " + type + "....");
+						
+						// Archives with a single top level folder are installed without it, same as move()
+						File root = staging;
+						String[] staged = staging.list();
+						if( staged != null && staged.length == 1 && new File(staging, staged[0]).isDirectory() )
+							root = new File(staging, staged[0]);
+						
+						ret = FileUtils.moveContents(root, destination);
+					}
+				} catch (Exception e) {
+					trace(STDERR, e);
+					BugReportUtils.showBugReportDialog(e);
+				} finally {
+					FileUtils.recursiveDelete(staging);
+					
+					// A partial archive would look like a finished revision
+					if( ret != TransferUtils.COMPLETE )
+						file.delete();
+				}
+				return ret;
+			}
+		};
+
+		trace(STDOUT, INFO, StringUtils.rpad("Installing " + type, ".", Settings.LOG_PADDING_LENGTH));
+		
+		label.setVisible(true);
+		progressbar.setVisible(true);
+		
+		label.setText("Downloading " + type + "....");
+		progressbar.setIndeterminate(true);
+		
+		Thread.sleep(1000);
+		
+		progressbar.setValue(0);
+		progressbar.setIndeterminate(false);
+
+		Settings.transferCancelled = false;
+		Settings.transferLocked = true;
+
+		task.setLongRunning(true).addCallback(callback).call();
+	}
+	
+	private AsyncObserver createDownloadObserver()
+	{
+		return new AsyncObserver() {
+			@Override
+			public void onUpdate() {
+				if( info.max == -1 ) {
+					// Unknown max size - progress unavailable
+					progressbar.setIndeterminate(true);
+					if( label != null )
+						label.setText( 
+							String.format("Downloading " + type + ".... %s @ %s",
+								FileUtils.sizeify(info.cur), 
+								DownloadUtils.speedify(info.speed)) );
+				} else {
+					// Known max size
+					progressbar.setIndeterminate(false);
+					progressbar.setValue( info.percent );
+					if( info.time > 3600 ) {
+						if( label != null )
+							label.setText(
+								String.format("Downloading - %d%% - %s - %s (%s)", 
+									info.percent, 
+									"Calculating ETA...",
+									FileUtils.sizeify(info.cur),
+									DownloadUtils.speedify(info.speed)) );
+					} else if( info.time < 60 ) {
+						if( label != null )
+							label.setText(
+								String.format("Downloading - %d%% - %s - %s (%s)", 
+									info.percent, 
+									TimerUtils.format("%s s remaining", info.time),
+									FileUtils.sizeify(info.cur),
+									DownloadUtils.speedify(info.speed)) );
+					} else {
+						if( label != null )
+							label.setText(
+								String.format("Downloading - %d%% - %s - %s (%s)",
+									info.percent, 
+									TimerUtils.format("%m:%ss remaining", info.time),
+									FileUtils.sizeify(info.cur),
+									DownloadUtils.speedify(info.speed)) );
+					}
+				}
+			}
+		};
 	}
 	
 	private void extract() throws InterruptedException
@@ -307,7 +462,7 @@ public class DownloadManager
 				Object o = TransferUtils.FAILED;
 				try {
 					observer.init(file);
-					o = ZipUtils.extract(file, Settings.UNZIP_DIRECTORY, TransferUtils.OVERWRITE | TransferUtils.MULTIPLE_FILES, observer, 10 * TransferUtils.MB);
+					o = ZipUtils.extract(file, Settings.UNZIP_DIRECTORY, TransferUtils.OVERWRITE | TransferUtils.MULTIPLE_FILES, observer, 10 * TransferUtils.MB, ZipUtils.DEFAULT_THREADS);
 				} catch (NullPointerException e) {
 					trace(STDERR, e);
 					// No bug report
@@ -337,7 +492,7 @@ public class DownloadManager
 		Settings.transferCancelled = false;
 		Settings.transferLocked = true;
 		
-		task.addCallback(callback).call();
+		task.setLongRunning(true).addCallback(callback).call();
 	}
 	
 	private void move()
@@ -409,41 +564,114 @@ public class DownloadManager
 		AsyncFunction task = new AsyncFunction() {
 			@Override
 			public Object doInBackground() {
-				int status = TransferUtils.COMPLETE;
+				int status = TransferUtils.FAILED;
 				String[] unzip_dir_files = unzip.list();
 				try {
-					if( unzip_dir_files.length == 1 )
-					{
-						File topLevelFile = new File(unzip, unzip_dir_files[0]);
-						observer.init(topLevelFile);
-						if( topLevelFile.isDirectory() )
-						{
-							String[] topLevelFile_dir_files = topLevelFile.list();
-							for( String name : topLevelFile_dir_files )
-							{
-								File s = new File(topLevelFile, name);
-								File d = new File(destination, name);
-								status &= FileUtils.copy(s, d, TransferUtils.MULTIPLE_FILES | TransferUtils.OVERWRITE, observer, 8 * TransferUtils.MB);
-							}
-						}
-						else
-						{
-							File s = new File(unzip, topLevelFile.getName());
-							File d = new File(destination, topLevelFile.getName());
-							status &= FileUtils.copy(s, d, TransferUtils.MULTIPLE_FILES | TransferUtils.OVERWRITE, observer, 8 * TransferUtils.MB);
-						}
-					}
-					else
+					// Archives with a single top level folder are installed without it
+					File root = unzip;
+					if( unzip_dir_files.length == 1 && new File(unzip, unzip_dir_files[0]).isDirectory() )
+						root = new File(unzip, unzip_dir_files[0]);
+					
+					observer.init(root);
+					status = FileUtils.moveContents(root, destination, observer, 8 * TransferUtils.MB);
+				} catch (Exception e) {
+					trace(STDERR, e);
+					BugReportUtils.showBugReportDialog(e);
+				}
+				return status;
+			}
+		};
+
+		trace(STDOUT, INFO, StringUtils.rpad("Installing " + type, ".", Settings.LOG_PADDING_LENGTH));
+
+		label.setVisible(true);
+		progressbar.setVisible(true);
+		
+		label.setText("Installing " + type + "....");
+		progressbar.setIndeterminate(false);
+
+		Settings.transferCancelled = false;
+		Settings.transferLocked = true;
+
+		task.setLongRunning(true).addCallback(callback).call();
+	}
+
+	/**
+	 * Deploy a revision from the {@link RevisionStore}, writing only
+	 * the files that differ from the ones already installed.
+	 */
+	private void checkout()
+	{
+		final String revision = revisionStr;
+		final File destination = new File(dlDestinationStr);
+		
+		final AsyncObserver observer = new AsyncObserver() {
+			@Override
+			public void onUpdate() {
+				if( progressbar != null )
+					progressbar.setValue( info.percent );
+				
+				if( label != null )
+					label.setText( 
+						String.format(
+								"Installing " + type + ".... %d%%", 
+								info.percent ) );
+			}
+		};
+		AsyncCallback callback = new AsyncCallback() {
+			@Override
+			public void run(Object o) {
+				int returnCode = (Integer) o;
+
+				Settings.transferCancelled = false;
+				Settings.transferLocked = false;
+
+				try {
+					switch( returnCode ) 
 					{
-						observer.init(unzip);
-						
-						for( String file : unzip_dir_files )
-						{
-							File s = new File(unzip, file);
-							File d = new File(destination, file);
-							status &= FileUtils.copy(s, d, TransferUtils.MULTIPLE_FILES | TransferUtils.OVERWRITE, observer, 10 * TransferUtils.MB);
-						}
+						case TransferUtils.COMPLETE:
+							put(STDOUT, "DONE");
+							label.setText("Install complete....");
+
+							callbackFunction.call(returnCode, revision);
+							break;
+						case TransferUtils.FAILED:
+							put(STDOUT, "FAILED");
+							label.setText("Install Failed...");
+							label.setForeground(Color.RED);
+							
+							Thread.sleep(1000);
+							callbackFunction.call(returnCode, revision);
+							break;
+						case TransferUtils.CANCELLED:
+							put(STDOUT, "CANCELLED");
+							label.setText("Install Cancelled...");
+							label.setForeground(Color.BLACK);
+							
+							Thread.sleep(1000);
+							callbackFunction.call(returnCode, revision);
+							break;
+						case TransferUtils.OFFLINE:
+							put(STDOUT, "OFFLINE");
+							label.setText("Offline");
+							label.setForeground(Color.BLACK);
+	
+							Thread.sleep(1000);
+							callbackFunction.call(returnCode, revision);
+							break;
 					}
+				} catch (InterruptedException e) {
+					trace(STDERR, e);
+					BugReportUtils.showBugReportDialog(e);
+				}
+			}
+		};
+		AsyncFunction task = new AsyncFunction() {
+			@Override
+			public Object doInBackground() {
+				int status = TransferUtils.FAILED;
+				try {
+					status = RevisionStore.getStore().checkout(revision, destination, observer);
 				} catch (Exception e) {
 					trace(STDERR, e);
 					BugReportUtils.showBugReportDialog(e);
@@ -463,6 +691,6 @@ public class DownloadManager
 		Settings.transferCancelled = false;
 		Settings.transferLocked = true;
 
-		task.addCallback(callback).call();
+		task.setLongRunning(true).addCallback(callback).call();
 	}
-}
+}
\ No newline at end of file
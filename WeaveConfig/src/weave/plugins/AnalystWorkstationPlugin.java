@@ -140,6 +140,7 @@ public class AnalystWorkstationPlugin extends Plugin
 						.downloadFrom(getPluginDownloadURL())
 						.extractTo(getPluginDownloadFile())
 						.installTo(getPluginBaseDirectory())
+						.pipelined(true)
 						.callback(onDownloadCompleteCallback)
 						.start();
 					
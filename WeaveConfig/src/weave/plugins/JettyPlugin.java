@@ -131,6 +131,7 @@ public class JettyPlugin extends Plugin
 						.downloadFrom(getPluginDownloadURL())
 						.extractTo(getPluginDownloadFile())
 						.installTo(getPluginBaseDirectory())
+						.pipelined(true)
 						.callback(onDownloadCompleteCallback)
 						.start();
 					
@@ -6,6 +6,7 @@ import java.io.File;
 import javax.swing.JPanel;
 
 import weave.Globals;
+import weave.utils.DownloadJournal;
 import weave.utils.EnvironmentUtils;
 
 public class Plugin extends Globals implements IPlugin
@@ -69,7 +70,7 @@ public class Plugin extends Globals implements IPlugin
 			return false;
 		
 		File zipFile = new File(downloadPath);
-		return zipFile.exists();
+		return zipFile.exists() && !DownloadJournal.isJournaled(zipFile);
 //		boolean installed = true;
 //		File zipFile = new File(getPluginDownloadFile());
 //		if( !zipFile.exists() )
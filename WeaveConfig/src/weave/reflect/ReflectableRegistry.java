@@ -0,0 +1,169 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.reflect;
+
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Direct call stubs for {@link Reflectable} members, generated at compile time.
+ * <br><br>
+ * The annotation processor in <code>WeaveConfig/processor</code> writes one companion
+ * class next to every class with {@link Reflectable} members. The companion of
+ * <code>weave.utils.FileUtils</code> is <code>weave.utils.FileUtils_Reflectables</code>
+ * and holds an {@link Invoker} for each of those members that calls it without reflection.
+ * <br><br>
+ * Companions are loaded the first time their class is looked up, so nothing is scanned
+ * at startup. A class without a companion, for example when the sources were compiled
+ * without the processor, simply has no entries and callers fall back to reflection.
+ */
+public class ReflectableRegistry
+{
+	public static final String SUFFIX = "_Reflectables";
+
+	private static final Table NONE = new Table() {};
+	private static final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<String, Table>();
+
+	/**
+	 * Calls one member directly.
+	 */
+	public static interface Invoker
+	{
+		/**
+		 * @param instance The instance to call the member on, ignored for static members
+		 * @param args The arguments, one per parameter of the member
+		 * @return The return value, the value of a field, or <code>null</code> for <code>void</code> methods
+		 */
+		public Object invoke(Object instance, Object[] args) throws Exception;
+	}
+
+	/**
+	 * The members of one class, keyed by {@link ReflectableRegistry#signature(String, Class[])}.<br>
+	 * Generated companion classes extend this and fill it in their constructor.
+	 */
+	public static abstract class Table
+	{
+		private final Map<String, Invoker> members = new HashMap<String, Invoker>();
+
+		protected final void put(String signature, Invoker invoker)
+		{
+			members.put(signature, invoker);
+		}
+
+		public final Invoker get(String signature)
+		{
+			return members.get(signature);
+		}
+
+		public final Set<String> getSignatures()
+		{
+			return Collections.unmodifiableSet(new TreeSet<String>(members.keySet()));
+		}
+	}
+
+	/**
+	 * Build the key of a member.<br>
+	 * Fields are keyed by their name, methods by their name and the
+	 * {@link Class#getName()} of each parameter, for example
+	 * <code>setReadable(java.lang.String,java.lang.Boolean,java.lang.Boolean)</code>.
+	 *
+	 * @param name The member name
+	 * @param argClassList The parameter types of a method, or <code>null</code> for a field
+	 * @return The signature
+	 */
+	public static String signature(String name, Class<?>[] argClassList)
+	{
+		if( argClassList == null )
+			return name;
+
+		StringBuilder sb = new StringBuilder(name).append('(');
+		for( int i = 0; i < argClassList.length; i++ )
+		{
+			if( i > 0 )
+				sb.append(',');
+			sb.append(argClassList[i].getName());
+		}
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * Get the generated table of a class.
+	 *
+	 * @param className The fully qualified class name
+	 * @return The table, or <code>null</code> if the class has no companion
+	 */
+	public static Table getTable(String className)
+	{
+		Table t = tables.get(className);
+
+		if( t == null )
+		{
+			t = load(className);
+			Table old = tables.putIfAbsent(className, t);
+			if( old != null )
+				t = old;
+		}
+		return ( t == NONE ) ? null : t;
+	}
+
+	/**
+	 * Get the direct call stub of a member.
+	 *
+	 * @param className The fully qualified name of the class that declares the member
+	 * @param signature The member signature
+	 * @return The invoker, or <code>null</code> if the member is not in the registry
+	 */
+	public static Invoker get(String className, String signature)
+	{
+		Table t = getTable(className);
+		return ( t == null ) ? null : t.get(signature);
+	}
+
+	private static Table load(String className)
+	{
+		try {
+			Class<?> c = Class.forName(className + SUFFIX, true, ReflectableRegistry.class.getClassLoader());
+			if( Table.class.isAssignableFrom(c) )
+				return (Table) c.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			// Compiled without the processor or nothing in the class is reflectable
+		} catch (NoSuchMethodException e) {
+			trace(STDERR, e);
+		} catch (InvocationTargetException e) {
+			trace(STDERR, e);
+		} catch (InstantiationException e) {
+			trace(STDERR, e);
+		} catch (IllegalAccessException e) {
+			trace(STDERR, e);
+		} catch (LinkageError e) {
+			trace(STDERR, e);
+		}
+		return NONE;
+	}
+}
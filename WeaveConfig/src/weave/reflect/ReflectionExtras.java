@@ -8,6 +8,28 @@ import weave.utils.ObjectUtils;
 
 public class ReflectionExtras 
 {
+	/**
+	 * List the members of a class that can be called by name, as registered
+	 * at compile time in the {@link ReflectableRegistry}.<br>
+	 * Unlike {@link #getAllMethods(String, String)} this does not walk the class hierarchy.
+	 * 
+	 * @param pkg The package of the class
+	 * @param clazz The class name
+	 * @return One signature per line, empty if the class has no registered members
+	 */
+	@Reflectable
+	public static String getReflectableMembers(String pkg, String clazz)
+	{
+		ReflectableRegistry.Table table = ReflectableRegistry.getTable(pkg + "." + clazz);
+		StringBuilder sb = new StringBuilder();
+		
+		if( table != null )
+			for( String signature : table.getSignatures() )
+				sb.append(signature).append('\n');
+		
+		return sb.toString();
+	}
+	
 	@Reflectable
 	public static String getAllMethods(String pkg, String clazz) throws ClassNotFoundException
 	{
@@ -22,17 +22,31 @@ package weave.server;
 import static weave.utils.TraceUtils.*;
 import static weave.utils.TraceUtils.LEVEL.*;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.BindException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JOptionPane;
 
@@ -41,21 +55,57 @@ import org.json.JSONObject;
 
 import weave.Globals;
 import weave.Settings;
-import weave.utils.BugReportUtils;
 import weave.utils.ObjectUtils;
 import weave.utils.ReflectionUtils;
 import weave.utils.StringUtils;
 import weave.utils.TraceUtils;
 
+/**
+ * The RPC server that lets the launcher and local tools call into the running program.
+ * <br><br>
+ * A client sends one JSON request per line:
+ * <code>{"package": ..., "class": ..., "call": ..., "sigs": [...], "args": [...]}</code>
+ * <br><br>
+ * By default the response is written as plain text and the connection is closed,
+ * exactly like older versions did. A request with <code>"keepAlive": true</code>
+ * gets a single line JSON response <code>{"result": ...}</code> or <code>{"error": ...}</code>
+ * instead, and the connection stays open for more requests. Requests on one
+ * connection are answered in the order they were sent.
+ * <br><br>
+ * A request with an <code>"id"</code> is kept alive the same way and its response
+ * carries the same id. Such requests may run at the same time and their responses
+ * are written as soon as they are ready, so they can arrive out of order.
+ * <br><br>
+ * A line holding a JSON array of requests is a batch. The entries are run one after
+ * the other and answered with one line holding an array of responses in the same order.
+ * <br><br>
+ * All sockets are served by one selector thread. The reflective calls run on a
+ * bounded worker pool. A connection with too many unanswered requests is not read
+ * from until it catches up, and idle connections are closed after {@value #IDLE_TIMEOUT} ms.
+ */
 public class ServerListener extends Globals
 {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private static final int WORK_QUEUE_SIZE = 256;
+	private static final int MAX_PENDING = 64;
+	private static final int MAX_IN_FLIGHT = 16;
+	private static final int MAX_LINE_LENGTH = 1024 * 1024;
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final int IDLE_TIMEOUT = 30000;
+	private static final int SELECT_TIMEOUT = 1000;
+	
 	private int port = 0;
 	
-	private Socket csocket = null;
-	private ServerSocket ssocket = null;
+	private ServerSocketChannel ssocket = null;
+	private Selector selector = null;
+	private ThreadPoolExecutor workers = null;
+	private volatile boolean running = false;
 	
 	private Thread loopThread = null;
-	private ArrayList<ServerListenerThread> connections = null;
+	private List<Connection> connections = null;
+	private Queue<Connection> updates = new ConcurrentLinkedQueue<Connection>();
 	
 	public ServerListener(int port)
 	{
@@ -68,8 +118,12 @@ public class ServerListener extends Globals
 		
 		try {
 			
-			ssocket = new ServerSocket(port);
-			connections = new ArrayList<ServerListener.ServerListenerThread>();
+			selector = Selector.open();
+			ssocket = ServerSocketChannel.open();
+			ssocket.socket().bind(new InetSocketAddress(port));
+			ssocket.configureBlocking(false);
+			ssocket.register(selector, SelectionKey.OP_ACCEPT);
+			connections = new ArrayList<Connection>();
 			
 		} catch (BindException e) {
 			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
@@ -78,31 +132,39 @@ public class ServerListener extends Globals
 					"Starting RPC server failed. Port already in use.\n\n" + 
 					"Close any process running on port " + port + " and try again.",
 					"Error", JOptionPane.ERROR_MESSAGE);
+			return;
 		} catch (IOException e) {
 			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
 			trace(STDERR, e);
+			return;
 		}
 		
+		workers = new ThreadPoolExecutor(WORKERS, WORKERS, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(WORK_QUEUE_SIZE),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(0);
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "RPC-Worker-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		workers.allowCoreThreadTimeOut(true);
+		running = true;
+		
 		loopThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				try {
-				
-					while( true ) {
-						csocket = ssocket.accept();
-						
-						ServerListenerThread slt = new ServerListenerThread(csocket);
-						connections.add(slt);
-						slt.start();
-					}
-
-				} catch (SocketException e) {
+					loop();
+				} catch (ClosedSelectorException e) {
 					// DO NOTHING
 				} catch (IOException e) {
 					trace(STDERR, e);
 				}
 			}
-		});
+		}, "RPC-Selector");
 		loopThread.start();
 		
 		put(STDOUT, "DONE");
@@ -113,148 +175,529 @@ public class ServerListener extends Globals
 		int i = 0;
 		trace(STDOUT, WARN, StringUtils.rpad("Stopping RPC Server", ".", Settings.LOG_PADDING_LENGTH));
 		
+		running = false;
+		
 		try {
-			while( !connections.isEmpty() )
+			if( connections != null )
 			{
-				i++;
-				ServerListenerThread slt = connections.get(0);
-				slt.interrupt();
-				slt.close();
+				synchronized( connections ) {
+					i = connections.size();
+				}
+				if( selector != null ) selector.wakeup();
+				if( loopThread != null ) loopThread.join(2000);
 			}
 			
 			if( ssocket != null ) ssocket.close();
+			if( selector != null ) selector.close();
 
 		} catch (IOException e) {
 			put(STDOUT, "FAILED (" + getSimpleClassAndMsg(e) + ")");
 			trace(STDERR, e);
+		} catch (InterruptedException e) {
+			trace(STDERR, e);
 		}
 		
-		loopThread.interrupt();
+		if( workers != null ) workers.shutdownNow();
+		
 		ssocket = null;
+		selector = null;
 		loopThread = null;
 		put(STDOUT, "DONE (" + i + " remaining connections killed)");
 	}
 	
+	/**
+	 * Get the number of open client connections.
+	 * 
+	 * @return The connection count
+	 */
+	public int getConnectionCount()
+	{
+		if( connections == null )
+			return 0;
+		
+		synchronized( connections ) {
+			return connections.size();
+		}
+	}
 	
+	private void loop() throws IOException
+	{
+		while( running )
+		{
+			selector.select(SELECT_TIMEOUT);
+			
+			Connection c = null;
+			while( (c = updates.poll()) != null )
+				c.update();
+			
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while( it.hasNext() )
+			{
+				SelectionKey key = it.next();
+				it.remove();
+				
+				try {
+					if( !key.isValid() )
+						continue;
+					
+					if( key.isAcceptable() )
+						accept();
+					else
+					{
+						Connection conn = (Connection) key.attachment();
+						if( key.isReadable() )
+							conn.read();
+						if( key.isValid() && key.isWritable() )
+							conn.write();
+					}
+				} catch (CancelledKeyException e) {
+					// Connection was closed while handling it
+				}
+			}
+			
+			checkConnections();
+		}
+		
+		List<Connection> remaining;
+		synchronized( connections ) {
+			remaining = new ArrayList<Connection>(connections);
+		}
+		for( Connection c : remaining )
+			c.close();
+	}
+	
+	private void accept() throws IOException
+	{
+		SocketChannel channel = ssocket.accept();
+		if( channel == null )
+			return;
+		
+		channel.configureBlocking(false);
+		
+		Connection c = new Connection(channel);
+		c.key = channel.register(selector, SelectionKey.OP_READ, c);
+		
+		synchronized( connections ) {
+			connections.add(c);
+		}
+	}
+	
+	/**
+	 * Close idle connections and hand queued requests to the
+	 * workers again if the pool was full the last time.
+	 */
+	private void checkConnections()
+	{
+		List<Connection> list;
+		synchronized( connections ) {
+			list = new ArrayList<Connection>(connections);
+		}
+		
+		long now = System.currentTimeMillis();
+		for( Connection c : list )
+		{
+			if( c.isIdle() && now - c.lastActivity > IDLE_TIMEOUT )
+				c.close();
+			else
+				c.schedule();
+		}
+	}
 	
 	
 	
-	class ServerListenerThread extends Thread implements Runnable
+	/**
+	 * Run one request and build the text that is written back to the client.
+	 * 
+	 * @param r The request
+	 * @return The response
+	 */
+	private String handle(Request r)
 	{
-		private Socket clientSock = null;
-		private BufferedReader in = null;
-		private BufferedWriter out = null;
+		if( r.error != null )
+		{
+			trace(STDERR, r.error);
+			if( r.json )
+				return new JSONObject().put("error", TraceUtils.getStackTrace(r.error)).toString() + "\n";
+			return TraceUtils.getStackTrace(r.error) + Settings.N_L;
+		}
 		
-		public ServerListenerThread(Socket s)
+		if( r.batch != null )
 		{
-			clientSock = s;
+			JSONArray responses = new JSONArray();
+			for( int i = 0; i < r.batch.length(); i++ )
+			{
+				JSONObject queryObj = r.batch.optJSONObject(i);
+				if( queryObj != null )
+					responses.put(call(queryObj));
+				else
+					responses.put(new JSONObject().put("error", "Batch entry " + i + " is not an object"));
+			}
+			return responses.toString() + "\n";
+		}
+		
+		if( r.json )
+			return call(r.query).toString() + "\n";
+		
+		try {
+			return format(invoke(r.query));
+		} catch (Exception e) {
+			trace(STDERR, e);
+			return TraceUtils.getStackTrace(e) + Settings.N_L;
+		}
+	}
+	
+	/**
+	 * Run one request and wrap the outcome in a JSON response.
+	 * 
+	 * @param queryObj The request
+	 * @return <code>{"id": ..., "result": ...}</code> or <code>{"id": ..., "error": ...}</code>
+	 */
+	private JSONObject call(JSONObject queryObj)
+	{
+		JSONObject response = new JSONObject();
+		
+		if( queryObj.has("id") )
+			response.put("id", queryObj.get("id"));
+		
+		try {
+			response.put("result", format(invoke(queryObj)));
+		} catch (Exception e) {
+			trace(STDERR, e);
+			response.put("error", TraceUtils.getStackTrace(e));
+		}
+		return response;
+	}
+	
+	private Object invoke(JSONObject queryObj) throws Exception
+	{
+		int i = 0;
+		JSONArray jsonSigs = null;
+		JSONArray jsonArgs = null;
+		
+		String pkg = queryObj.getString("package");
+		String clzz = queryObj.getString("class");
+		String call = queryObj.getString("call");
+		if( queryObj.has("sigs") && !queryObj.isNull("sigs") )
+			jsonSigs = queryObj.getJSONArray("sigs");
+		if( queryObj.has("args") && !queryObj.isNull("args") )
+			jsonArgs = queryObj.getJSONArray("args");
 
-			trace(STDOUT, INFO, "Incomming socket connection from " + clientSock.getRemoteSocketAddress().toString().substring(1));
-			
+		Class<?>[] sigs = null;
+		Object[] args = null;
+		
+		if( jsonSigs != null ) {
+			sigs = new Class<?>[jsonSigs.length()];
+			for( i = 0; i < jsonSigs.length(); i++ )
+				sigs[i] = Class.forName((String) jsonSigs.get(i));
+		}
+		if( jsonArgs != null ) {
+			args = new Object[jsonArgs.length()];
+			for( i = 0; i < jsonArgs.length(); i++ ) {
+				if( jsonArgs.get(i) instanceof String ) {
+					if( jsonArgs.getString(i).contains("new") )
+						args[i] = sigs[i].newInstance();
+					else
+						args[i] = jsonArgs.get(i);
+				} else
+					args[i] = jsonArgs.get(i);
+			}
+		}
+		
+		if( sigs != null && args != null )
+		{
+			trace(STDOUT, INFO, "\t" + pkg + "." + clzz + "." + call + "( " + ObjectUtils.toString(sigs) + " | " + ObjectUtils.toString(args) + " )");
+			return ReflectionUtils.reflectMethod(pkg, clzz, call, sigs, args);
+		}
+		
+		trace(STDOUT, INFO, "\t" + pkg + "." + clzz + "." + call);
+		return ReflectionUtils.reflectField(pkg, clzz, call);
+	}
+	
+	private String format(Object o)
+	{
+		if( o == null )						return "NULL";
+		else if( o instanceof String )		return (String)ObjectUtils.ternary(o, "NULL");
+		else if( o instanceof Integer || 
+				 o instanceof Long ||
+				 o instanceof Double || 
+				 o instanceof Float )		return "" + ObjectUtils.ternary(o, 0);
+		else if( o instanceof Boolean )		return "" + ObjectUtils.ternary(o, "FALSE");
+		else if( o instanceof Map<?, ?> ||
+				 o instanceof Object[] )	return ObjectUtils.toString(o);
+		else								return "No case for type: " + o.getClass().getSimpleName();
+	}
+	
+	
+	
+	/**
+	 * A parsed request line.<br>
+	 * Requests without an id must run one at a time so they are answered in order.
+	 */
+	static class Request
+	{
+		JSONObject query = null;
+		JSONArray batch = null;
+		Exception error = null;
+		
+		boolean ordered = true;
+		boolean keepAlive = false;
+		boolean json = false;
+		
+		Request(String line)
+		{
 			try {
-				in = new BufferedReader(new InputStreamReader(clientSock.getInputStream()));
-				out = new BufferedWriter(new OutputStreamWriter(clientSock.getOutputStream()));
-			} catch (IOException e) {
-				trace(STDERR, e);
-				BugReportUtils.showBugReportDialog(e);
+				if( line.startsWith("[") )
+				{
+					batch = new JSONArray(line);
+					keepAlive = true;
+				}
+				else
+				{
+					query = new JSONObject(line);
+					ordered = !query.has("id");
+					keepAlive = !ordered || query.optBoolean("keepAlive", false);
+				}
+			} catch (Exception e) {
+				error = e;
 			}
 		}
+	}
+	
+	
+	
+	/**
+	 * One client socket.<br>
+	 * Reading, writing and interest changes happen on the selector thread,
+	 * the request queue is shared with the worker that runs the current request.
+	 */
+	class Connection
+	{
+		private SocketChannel channel = null;
+		private SelectionKey key = null;
+		private String address = null;
+		
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+		private ArrayDeque<Request> pending = new ArrayDeque<Request>();
+		private Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+		
+		private int inFlight = 0;
+		private boolean orderedBusy = false;
+		private boolean eof = false;
+		private volatile boolean closing = false;
+		private volatile boolean keepAlive = false;
+		private volatile long lastActivity = System.currentTimeMillis();
+		
+		public Connection(SocketChannel c)
+		{
+			channel = c;
+			address = c.socket().getRemoteSocketAddress().toString().substring(1);
+			
+			trace(STDOUT, INFO, "Incomming socket connection from " + address);
+		}
 		
 		public void close()
 		{
-			trace(STDOUT, INFO, "Closing socket connection from " + clientSock.getRemoteSocketAddress().toString().substring(1));
+			if( !channel.isOpen() )
+				return;
+			
+			trace(STDOUT, INFO, "Closing socket connection from " + address);
 
 			try {
-				if( in != null ) in.close();
-				if( out != null ) out.close();
-				clientSock.close();
-				connections.remove(this);
+				if( key != null ) key.cancel();
+				channel.close();
 			} catch (IOException e) {
 			}
+			
+			synchronized( connections ) {
+				connections.remove(this);
+			}
+		}
+		
+		synchronized boolean isIdle()
+		{
+			return inFlight == 0 && pending.isEmpty() && responses.isEmpty();
 		}
 		
-		@Override
-		public void run() 
+		void read() throws IOException
 		{
+			int n = 0;
 			try {
-				int i = 0;
-				String line = in.readLine();
-				JSONObject queryObj = new JSONObject(line);
-				JSONArray jsonSigs = null;
-				JSONArray jsonArgs = null;
+				n = channel.read(readBuffer);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			lastActivity = System.currentTimeMillis();
+			
+			if( n < 0 )
+			{
+				eof = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
 				
-				String pkg = queryObj.getString("package");
-				String clzz = queryObj.getString("class");
-				String call = queryObj.getString("call");
-				if( queryObj.has("sigs") && !queryObj.isNull("sigs") )
-					jsonSigs = queryObj.getJSONArray("sigs");
-				if( queryObj.has("args") && !queryObj.isNull("args") )
-					jsonArgs = queryObj.getJSONArray("args");
-
-				Class<?>[] sigs = null;
-				Object[] args = null;
+				// A request without a trailing newline
+				if( lineBuffer.size() > 0 )
+					enqueue(lineBuffer.toByteArray());
+				lineBuffer.reset();
 				
-				if( jsonSigs != null ) {
-					sigs = new Class<?>[jsonSigs.length()];
-					for( i = 0; i < jsonSigs.length(); i++ )
-						sigs[i] = Class.forName((String) jsonSigs.get(i));
+				if( isIdle() )
+					close();
+				else
+					schedule();
+				return;
+			}
+			
+			readBuffer.flip();
+			while( readBuffer.hasRemaining() )
+			{
+				byte b = readBuffer.get();
+				if( b == '\n' ) {
+					enqueue(lineBuffer.toByteArray());
+					lineBuffer.reset();
+				} else
+					lineBuffer.write(b);
+			}
+			readBuffer.clear();
+			
+			if( lineBuffer.size() > MAX_LINE_LENGTH )
+			{
+				trace(STDERR, WARN, "Request from " + address + " is longer than " + MAX_LINE_LENGTH + " bytes, closing");
+				close();
+				return;
+			}
+			
+			synchronized( this )
+			{
+				// Stop reading until the client's requests have been answered
+				if( pending.size() >= MAX_PENDING )
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+			schedule();
+		}
+		
+		private void enqueue(byte[] bytes)
+		{
+			String line = new String(bytes, UTF8).trim();
+			if( line.length() == 0 || closing )
+				return;
+			
+			Request r = new Request(line);
+			if( r.keepAlive )
+				keepAlive = true;
+			
+			synchronized( this ) {
+				pending.add(r);
+			}
+		}
+		
+		/**
+		 * Hand queued requests to the workers.<br>
+		 * Requests with an id start right away up to {@value #MAX_IN_FLIGHT} per connection,
+		 * the others wait until the previous one without an id is answered.
+		 */
+		void schedule()
+		{
+			while( true )
+			{
+				final Request r;
+				synchronized( this )
+				{
+					r = pending.peek();
+					if( r == null || closing || inFlight >= MAX_IN_FLIGHT )
+						return;
+					if( r.ordered && orderedBusy )
+						return;
+					
+					pending.poll();
+					inFlight++;
+					if( r.ordered )
+						orderedBusy = true;
+					r.json = r.keepAlive || keepAlive;
 				}
-				if( jsonArgs != null ) {
-					args = new Object[jsonArgs.length()];
-					for( i = 0; i < jsonArgs.length(); i++ ) {
-						if( jsonArgs.get(i) instanceof String ) {
-							if( jsonArgs.getString(i).contains("new") )
-								args[i] = sigs[i].newInstance();
-							else
-								args[i] = jsonArgs.get(i);
-						} else
-							args[i] = jsonArgs.get(i);
+				
+				try {
+					workers.execute(new Runnable() {
+						@Override
+						public void run() {
+							respond(r, handle(r));
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Pool is full, try again on the next pass of the selector loop
+					synchronized( this ) {
+						pending.addFirst(r);
+						inFlight--;
+						if( r.ordered )
+							orderedBusy = false;
 					}
+					return;
 				}
+			}
+		}
+		
+		private void respond(Request r, String response)
+		{
+			synchronized( this )
+			{
+				inFlight--;
+				if( r.ordered )
+					orderedBusy = false;
 				
-//				System.out.println("pkg: " + pkg);
-//				System.out.println("clzz: " + clzz);
-//				System.out.println("func: " + func);
-//				System.out.println("sigs: " + Arrays.toString(sigs));
-//				System.out.println("args: " + Arrays.toString(args));
+				// A response that comes back after a one shot answer is dropped
+				if( closing )
+					return;
 				
-				Object o = null;
-//				trace(STDOUT, "->\tsigs: " + ObjectUtils.toString(sigs));
-//				trace(STDOUT, "->\targs: " + ObjectUtils.toString(args));
-				if( sigs != null && args != null )
-				{
-					trace(STDOUT, INFO, "\t" + pkg + "." + clzz + "." + call + "( " + ObjectUtils.toString(sigs) + " | " + ObjectUtils.toString(args) + " )");
-					o = ReflectionUtils.reflectMethod(pkg, clzz, call, sigs, args);
+				responses.add(ByteBuffer.wrap(response.getBytes(UTF8)));
+				
+				if( !r.json ) {
+					closing = true;
+					pending.clear();
 				}
-				else
+			}
+			
+			updates.add(this);
+			selector.wakeup();
+		}
+		
+		/**
+		 * Called on the selector thread after a worker finished a request.
+		 */
+		void update()
+		{
+			if( !key.isValid() )
+				return;
+			
+			int ops = SelectionKey.OP_WRITE;
+			synchronized( this )
+			{
+				if( !eof && !closing && pending.size() < MAX_PENDING )
+					ops |= SelectionKey.OP_READ;
+			}
+			key.interestOps(ops);
+			schedule();
+		}
+		
+		void write() throws IOException
+		{
+			try {
+				ByteBuffer b = null;
+				while( (b = responses.peek()) != null )
 				{
-					trace(STDOUT, INFO, "\t" + pkg + "." + clzz + "." + call);
-					o = ReflectionUtils.reflectField(pkg, clzz, call);
-				}
-
-				if( o == null )						out.write( "NULL" );
-				else if( o instanceof String )		out.write( (String)ObjectUtils.ternary(o, "NULL") );
-				else if( o instanceof Integer || 
-						 o instanceof Double || 
-						 o instanceof Float )		out.write( "" + ObjectUtils.ternary(o, 0) );
-				else if( o instanceof Boolean )		out.write( "" + ObjectUtils.ternary(o, "FALSE") );
-				else if( o instanceof Map<?, ?> ||
-						 o instanceof Object[] )	out.write( ObjectUtils.toString(o) );
-				else								out.write( "No case for type: " + o.getClass().getSimpleName() );
-//				out.newLine();
-				out.flush();
-
-			} catch (Exception e) {
-				trace(STDERR, e);
-				try {
-					out.write(TraceUtils.getStackTrace(e));
-					out.newLine();
-					out.flush();
-				} catch (IOException e1) {
-					trace(STDERR, e1);
+					channel.write(b);
+					if( b.hasRemaining() )
+						return;
+					responses.poll();
 				}
+			} catch (IOException e) {
+				close();
+				return;
 			}
-			close();
+			lastActivity = System.currentTimeMillis();
+			
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			
+			if( closing || (eof && isIdle()) )
+				close();
 		}
 	}
 }
@@ -0,0 +1,323 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.utils;
+
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sidecar file that records how much of a partial download has been written
+ * to disk so that a later call to {@link DownloadUtils#download} can continue
+ * with HTTP Range requests instead of starting over.
+ * <br><br>
+ * The journal for <code>file.zip</code> is stored next to it as <code>file.zip.journal</code>.
+ */
+public class DownloadJournal
+{
+	public static final String EXTENSION = ".journal";
+
+	private static final int SAVE_INTERVAL = 1000;
+
+	private File file = null;
+	private String url = null;
+	private String etag = null;
+	private String lastModified = null;
+	private long length = 0L;
+	private long[] starts = null;
+	private long[] ends = null;
+	private AtomicLongArray committed = null;
+	private long lastSave = 0L;
+
+	private DownloadJournal(File destination)
+	{
+		file = getJournalFile(destination);
+	}
+
+	/**
+	 * Get the journal file that belongs to a download destination.
+	 *
+	 * @param destination The download destination
+	 * @return The sidecar journal file
+	 */
+	public static File getJournalFile(File destination)
+	{
+		return new File(destination.getAbsolutePath() + EXTENSION);
+	}
+
+	/**
+	 * Check to see if a file is a journal file.
+	 *
+	 * @param f The file to check
+	 * @return <code>true</code> if the file is a journal, <code>false</code> otherwise
+	 */
+	public static boolean isJournal(File f)
+	{
+		return f.getName().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Check to see if a download destination is an unfinished download.
+	 *
+	 * @param destination The download destination
+	 * @return <code>true</code> if a journal exists for the file, <code>false</code> otherwise
+	 */
+	public static boolean isJournaled(File destination)
+	{
+		return getJournalFile(destination).exists();
+	}
+
+	/**
+	 * Create a new journal that splits the content into equal segments.
+	 * Any existing journal for the destination is replaced.
+	 *
+	 * @param destination The download destination
+	 * @param url The requested URL
+	 * @param etag The <code>ETag</code> reported by the server or <code>null</code>
+	 * @param lastModified The <code>Last-Modified</code> reported by the server or <code>null</code>
+	 * @param length The total content length
+	 * @param segments The number of segments
+	 * @return The new journal
+	 */
+	public static DownloadJournal create(File destination, String url, String etag, String lastModified, long length, int segments)
+	{
+		DownloadJournal j = new DownloadJournal(destination);
+		long size = length / segments;
+
+		j.url = url;
+		j.etag = etag;
+		j.lastModified = lastModified;
+		j.length = length;
+		j.starts = new long[segments];
+		j.ends = new long[segments];
+		j.committed = new AtomicLongArray(segments);
+
+		for( int i = 0; i < segments; i++ )
+		{
+			j.starts[i] = i * size;
+			j.ends[i] = ( i == segments - 1 ) ? length - 1 : j.starts[i] + size - 1;
+			j.committed.set(i, j.starts[i]);
+		}
+		return j;
+	}
+
+	/**
+	 * Read the journal of a download destination.
+	 *
+	 * @param destination The download destination
+	 * @return The journal, or <code>null</code> if there is none or it could not be read
+	 */
+	public static DownloadJournal load(File destination)
+	{
+		DownloadJournal j = new DownloadJournal(destination);
+
+		if( !j.file.exists() )
+			return null;
+
+		try {
+			Properties p = new Properties();
+			InputStream in = new FileInputStream(j.file);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+
+			int segments = Integer.parseInt(p.getProperty("segments"));
+
+			j.url = p.getProperty("url");
+			if( j.url == null )
+				return null;
+			j.etag = p.getProperty("etag");
+			j.lastModified = p.getProperty("lastModified");
+			j.length = Long.parseLong(p.getProperty("length"));
+			j.starts = new long[segments];
+			j.ends = new long[segments];
+			j.committed = new AtomicLongArray(segments);
+
+			for( int i = 0; i < segments; i++ )
+			{
+				j.starts[i] = Long.parseLong(p.getProperty("segment." + i + ".start"));
+				j.ends[i] = Long.parseLong(p.getProperty("segment." + i + ".end"));
+				j.committed.set(i, Long.parseLong(p.getProperty("segment." + i + ".committed")));
+			}
+		} catch (NumberFormatException e) {
+			trace(STDERR, e);
+			return null;
+		} catch (NullPointerException e) {
+			// A key is missing, the journal is incomplete
+			return null;
+		} catch (IOException e) {
+			trace(STDERR, e);
+			return null;
+		}
+		return j;
+	}
+
+	/**
+	 * Check to see if this journal describes the same remote content.<br>
+	 * At least one validator (<code>ETag</code> or <code>Last-Modified</code>)
+	 * must be present for a download to be resumed safely, and a journal
+	 * missing its URL never matches.
+	 *
+	 * @return <code>true</code> if the partial download can be resumed, <code>false</code> otherwise
+	 */
+	public boolean matches(String u, String e, String lm, long len)
+	{
+		if( e == null && lm == null )
+			return false;
+		if( url == null || u == null )
+			return false;
+
+		return url.equals(u) && length == len &&
+				( e == null ? etag == null : e.equals(etag) ) &&
+				( lm == null ? lastModified == null : lm.equals(lastModified) );
+	}
+
+	/**
+	 * Get the value to send in an <code>If-Range</code> header.
+	 *
+	 * @return The strongest validator available, or <code>null</code>
+	 */
+	public String getValidator()
+	{
+		return etag != null ? etag : lastModified;
+	}
+
+	public String getURL()					{	return url;							}
+	public long getLength()					{	return length;						}
+	public int getSegmentCount()			{	return starts.length;				}
+	public long getStart(int i)				{	return starts[i];					}
+	public long getEnd(int i)				{	return ends[i];						}
+	public long getCommitted(int i)			{	return committed.get(i);			}
+	public void commit(int i, long position){	committed.set(i, position);			}
+
+	/**
+	 * Get the number of bytes that have been written across all segments.
+	 *
+	 * @return The committed byte count
+	 */
+	public long getCommittedBytes()
+	{
+		long total = 0L;
+		for( int i = 0; i < starts.length; i++ )
+			total += committed.get(i) - starts[i];
+		return total;
+	}
+
+	/**
+	 * Check to see if enough time has passed since the last save.
+	 *
+	 * @return <code>true</code> if the journal should be saved, <code>false</code> otherwise
+	 */
+	public boolean isSaveDue()
+	{
+		return System.currentTimeMillis() - lastSave > SAVE_INTERVAL;
+	}
+
+	/**
+	 * Get a copy of the committed position of every segment.
+	 * <br><br>
+	 * Take it before the downloaded data is forced to disk and pass it to
+	 * {@link #save(long[])}, so the journal never records bytes committed
+	 * by another segment after the force.
+	 *
+	 * @return The committed positions, indexed by segment
+	 */
+	public long[] snapshot()
+	{
+		long[] positions = new long[starts.length];
+		for( int i = 0; i < positions.length; i++ )
+			positions[i] = committed.get(i);
+		return positions;
+	}
+
+	/**
+	 * Write the journal to disk with the current committed positions.
+	 *
+	 * @see #save(long[])
+	 */
+	public void save() throws IOException
+	{
+		save(snapshot());
+	}
+
+	/**
+	 * Write the journal to disk.<br>
+	 * The journal is written to a temporary file first and then renamed over
+	 * the old one so a crash never leaves a half written journal behind.
+	 *
+	 * @param positions The committed positions to record, from {@link #snapshot()}
+	 * @throws IOException
+	 */
+	synchronized public void save(long[] positions) throws IOException
+	{
+		Properties p = new Properties();
+
+		p.setProperty("url", url);
+		if( etag != null )			p.setProperty("etag", etag);
+		if( lastModified != null )	p.setProperty("lastModified", lastModified);
+		p.setProperty("length", "" + length);
+		p.setProperty("segments", "" + starts.length);
+
+		for( int i = 0; i < starts.length; i++ )
+		{
+			p.setProperty("segment." + i + ".start", "" + starts[i]);
+			p.setProperty("segment." + i + ".end", "" + ends[i]);
+			p.setProperty("segment." + i + ".committed", "" + positions[i]);
+		}
+
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			p.store(out, "Weave partial download");
+		} finally {
+			out.close();
+		}
+
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		lastSave = System.currentTimeMillis();
+	}
+
+	/**
+	 * Remove the journal once the download is complete.
+	 *
+	 * @return <code>true</code> if the journal was deleted, <code>false</code> otherwise
+	 */
+	public boolean delete()
+	{
+		return file.delete();
+	}
+}
@@ -19,15 +19,27 @@
 
 package weave.utils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import weave.Settings;
 import weave.async.AsyncObserver;
@@ -35,6 +47,23 @@ import weave.async.AsyncFunction;
 
 public class DownloadUtils extends TransferUtils
 {
+	/**
+	 * The default number of parallel connections used by a segmented download.
+	 */
+	public static final int DEFAULT_CONNECTIONS		= 4;
+	
+	/**
+	 * Segments smaller than this are not worth the extra connection.
+	 */
+	public static final int MIN_SEGMENT_SIZE		= 1 * MB;
+	
+	static final int SEGMENT_BUFFER_SIZE			= 64 * KB;
+	
+	/**
+	 * Seconds to wait for the segment workers to stop after a failure or cancel.
+	 */
+	static final int SHUTDOWN_TIMEOUT				= 30;
+	
 	/**
 	 * Convert a scalar value to a string speed measure
 	 * <br><br>
@@ -258,6 +287,51 @@ public class DownloadUtils extends TransferUtils
 	 * @throws InterruptedException
 	 */
 	public static int download(URL url, File destination, AsyncObserver observer, int throttle) throws IOException, InterruptedException
+	{
+		return download(url, destination, observer, throttle, 1);
+	}
+
+	/**
+	 * Download a file from the URL and save it to the destination location
+	 * using up to <code>connections</code> parallel HTTP Range requests.
+	 * <br><br>
+	 * The destination file is preallocated to the full content length and every
+	 * segment writes to its own region of the file. If the server does not
+	 * advertise <code>Accept-Ranges: bytes</code> or the content length is unknown
+	 * the download falls back to a single stream.
+	 * <br><br>
+	 * Progress of a ranged download is recorded in a {@link DownloadJournal} next to
+	 * the destination. If the transfer is cancelled or the process dies, the next call
+	 * with the same URL and destination continues where it stopped as long as the
+	 * server still reports the same <code>ETag</code> or <code>Last-Modified</code>.
+	 * <br><br>
+	 * Example Usage:
+	 * <code>
+	 * <pre>
+	 * 	final URL url = new URL("http://google.com/some/file.zip");
+	 * 	final File dest = new File("/path/to/local/file/", "filename.zip");
+	 * 	
+	 *	{@link AsyncFunction} task = new AsyncTask() {
+	 *		public Object doInBackground() {
+	 * 			return DownloadUtils.download( url, dest, observer, 0, DownloadUtils.DEFAULT_CONNECTIONS );
+	 *		}
+	 *	};
+	 *	task.execute();
+	 *
+	 * </pre>
+	 * </code>
+	 * 
+	 * @param url The URL to access the file(s) from
+	 * @param destination The local file to save the download to
+	 * @param observer The observer to watch the status of the transfer
+	 * @param throttle The max transfer speed across all connections
+	 * @param connections The max number of parallel connections
+	 * @return The exit status of the transfer <code>FAILED, COMPLETE, CANCELLED, OFFLINE</code>
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static int download(URL url, File destination, AsyncObserver observer, int throttle, int connections) throws IOException, InterruptedException
 	{
 		HttpURLConnection conn = null;
 		InputStream in = null;
@@ -274,10 +348,447 @@ public class DownloadUtils extends TransferUtils
 		assert url != null;
 		assert destination != null;
 		
+		// Usually already probed by the observer, so this costs no extra request
+		RemoteMetadata metadata = null;
+		try {
+			metadata = RemoteMetadata.probe(url);
+		} catch (IOException e) {
+			// The server may refuse HEAD and still send the file to a plain GET below
+		}
+		
+		if( metadata != null && metadata.acceptsRanges() && metadata.getLength() > 0 )
+		{
+			long length = metadata.getLength();
+			String etag = metadata.getETag();
+			String lastModified = metadata.getLastModified();
+			
+			// Use the final location so the segments do not each follow the redirects
+			URL location = metadata.getLocation();
+			
+			DownloadJournal journal = DownloadJournal.load(destination);
+			
+			if( journal == null || !journal.matches(url.toString(), etag, lastModified, length) || destination.length() != length )
+			{
+				int segments = (int) Math.max(1, Math.min(connections, length / MIN_SEGMENT_SIZE));
+				journal = DownloadJournal.create(destination, url.toString(), etag, lastModified, length, segments);
+			}
+			return downloadSegmented(location, destination, observer, throttle, journal);
+		}
+		
+		// The server cannot continue a partial download, so any old journal is useless
+		DownloadJournal.getJournalFile(destination).delete();
+		
 		conn = (HttpURLConnection)url.openConnection();
 		in = conn.getInputStream();
 		out = new FileOutputStream(destination);
 		
 		return FileUtils.copy(in, out, observer, throttle);
 	}
+	
+	/**
+	 * Download every unfinished segment of the journal on its own connection.
+	 * 
+	 * @param url The URL to access the file from
+	 * @param destination The local file to save the download to
+	 * @param observer The observer to watch the status of the transfer
+	 * @param throttle The max transfer speed across all connections
+	 * @param journal The journal describing the segments and their progress
+	 * @return The exit status of the transfer <code>FAILED, COMPLETE, CANCELLED</code>
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static int downloadSegmented(URL url, File destination, AsyncObserver observer, int throttle, DownloadJournal journal) throws IOException, InterruptedException
+	{
+		int status = FAILED;
+		Throwable failure = null;
+		int segments = journal.getSegmentCount();
+		RandomAccessFile raf = new RandomAccessFile(destination, "rw");
+		ExecutorService pool = Executors.newFixedThreadPool(segments);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		
+		try {
+			raf.setLength(journal.getLength());
+			
+			FileChannel channel = raf.getChannel();
+			SegmentProgress progress = new SegmentProgress(observer, channel, journal);
+			
+			for( int i = 0; i < segments; i++ )
+				results.add(pool.submit(new Segment(url, channel, i, journal, progress, throttle / segments)));
+			
+			int combined = COMPLETE;
+			for( Future<Integer> result : results )
+			{
+				int s = result.get();
+				
+				if( s == CANCELLED )
+					combined = CANCELLED;
+				else if( s != COMPLETE && combined == COMPLETE )
+					combined = FAILED;
+			}
+			status = combined;
+		} catch (ExecutionException e) {
+			IOException io = ( e.getCause() instanceof IOException ) ? (IOException) e.getCause() : new IOException(e.getCause());
+			failure = io;
+			throw io;
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} catch (InterruptedException e) {
+			failure = e;
+			throw e;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			finishSegmented(pool, raf, journal, status == COMPLETE, failure);
+		}
+		return status;
+	}
+	
+	/**
+	 * Stop the segment workers, then close the file and delete or save the journal.
+	 * <br><br>
+	 * A worker interrupted inside <code>FileChannel.write</code> closes the channel,
+	 * so the workers are waited for before the channel is touched. Errors while saving
+	 * are added to <code>failure</code> as suppressed exceptions instead of hiding it.
+	 * 
+	 * @param failure The exception the download is failing with, or <code>null</code>
+	 * @throws IOException If there is no <code>failure</code> and closing or saving fails
+	 */
+	private static void finishSegmented(ExecutorService pool, RandomAccessFile raf, DownloadJournal journal, boolean complete, Throwable failure) throws IOException
+	{
+		boolean interrupted = false;
+		IOException error = null;
+		
+		pool.shutdownNow();
+		try {
+			if( !pool.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS) )
+				error = new IOException("Download segments did not stop within " + SHUTDOWN_TIMEOUT + " seconds");
+		} catch (InterruptedException e) {
+			interrupted = true;
+		}
+		
+		if( complete )
+		{
+			try {
+				raf.close();
+				journal.delete();
+			} catch (IOException e) {
+				error = suppress(error, e);
+			}
+		}
+		else
+		{
+			// Keep what has been written so far for the next attempt
+			long[] positions = journal.snapshot();
+			try {
+				if( raf.getChannel().isOpen() )
+					raf.getChannel().force(false);
+			} catch (IOException e) {
+				error = suppress(error, e);
+			}
+			try {
+				raf.close();
+			} catch (IOException e) {
+				error = suppress(error, e);
+			}
+			try {
+				journal.save(positions);
+			} catch (IOException e) {
+				error = suppress(error, e);
+			}
+		}
+		
+		if( interrupted )
+			Thread.currentThread().interrupt();
+		
+		if( error != null )
+		{
+			if( failure == null )
+				throw error;
+			failure.addSuppressed(error);
+		}
+	}
+	
+	private static IOException suppress(IOException first, IOException next)
+	{
+		if( first == null )
+			return next;
+		first.addSuppressed(next);
+		return first;
+	}
+	
+	/**
+	 * Download a zip file and extract it at the same time.
+	 * <br><br>
+	 * The HTTP stream is written to <code>zipFile</code> and, as it passes through,
+	 * fed into {@link ZipUtils#extract(InputStream, File, int, AsyncObserver, int)}
+	 * which writes the entries into <code>destination</code>. The archive is only
+	 * read from the network once and never read back from disk.
+	 * <br><br>
+	 * Progress is reported in downloaded bytes.
+	 * 
+	 * @param url The URL of the zip file
+	 * @param zipFile The local file to keep a copy of the archive in
+	 * @param destination The directory to extract the entries into
+	 * @param observer The observer to watch the status of the transfer
+	 * @param throttle The max transfer speed
+	 * @return The exit status of the transfer <code>FAILED, COMPLETE, CANCELLED, OFFLINE</code>
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static int downloadAndExtract(URL url, File zipFile, File destination, AsyncObserver observer, int throttle) throws IOException, InterruptedException
+	{
+		if( Settings.isOfflineMode() )
+			return OFFLINE;
+
+		if( url == null || zipFile == null || destination == null )
+			throw new NullPointerException("URL, Zip File or Destination File cannot be null");
+		
+		assert url != null;
+		assert zipFile != null;
+		assert destination != null;
+		
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		InputStream tee = new TeeInputStream(conn.getInputStream(), new FileOutputStream(zipFile), 
+				new TransferProgress(observer, conn.getContentLengthLong(), 0));
+		
+		try {
+			int status = ZipUtils.extract(new BufferedInputStream(tee, SEGMENT_BUFFER_SIZE), destination, OVERWRITE, null, throttle);
+			
+			if( status != COMPLETE )
+				return status;
+			
+			// The central directory at the end of the archive is not read
+			// by the extraction but it is needed for a complete zip file
+			byte[] buf = new byte[SEGMENT_BUFFER_SIZE];
+			while( tee.read(buf) > 0 );
+			
+			return COMPLETE;
+		} finally {
+			tee.close();
+		}
+	}
+	
+	/**
+	 * Delete everything inside a temporary download directory except unfinished
+	 * downloads that can still be resumed and their journals.
+	 * 
+	 * @param directory The directory to clean
+	 * @return <code>true</code> if every other file was deleted, <code>false</code> otherwise
+	 */
+	public static boolean deleteStaleDownloads(File directory)
+	{
+		boolean success = true;
+		File[] files = directory.listFiles();
+		
+		if( files == null )
+			return true;
+		
+		for( File f : files )
+		{
+			if( DownloadJournal.isJournal(f) )
+			{
+				String name = f.getName();
+				if( new File(directory, name.substring(0, name.length() - DownloadJournal.EXTENSION.length())).exists() )
+					continue;
+			}
+			else if( DownloadJournal.isJournaled(f) )
+				continue;
+			
+			success &= FileUtils.recursiveDelete(f);
+		}
+		return success;
+	}
+}
+
+/**
+ * Copies every byte read from the underlying stream into an output stream
+ * and reports it to a {@link TransferProgress}.
+ */
+class TeeInputStream extends FilterInputStream
+{
+	private OutputStream out = null;
+	private TransferProgress progress = null;
+	
+	public TeeInputStream(InputStream i, OutputStream o, TransferProgress p)
+	{
+		super(i);
+		out = o;
+		progress = p;
+	}
+	
+	@Override
+	public int read() throws IOException
+	{
+		int b = super.read();
+		if( b >= 0 ) {
+			out.write(b);
+			progress.add(1);
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		int n = super.read(b, off, len);
+		if( n > 0 ) {
+			out.write(b, off, n);
+			progress.add(n);
+		}
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException
+	{
+		// Skipped bytes still have to end up in the copy
+		byte[] buf = new byte[(int) Math.min(n, DownloadUtils.SEGMENT_BUFFER_SIZE)];
+		int r = read(buf, 0, buf.length);
+		return Math.max(r, 0);
+	}
+	
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		try {
+			super.close();
+		} finally {
+			out.close();
+		}
+	}
+}
+
+/**
+ * Aggregates the progress of every {@link Segment} of a download
+ * and periodically saves the {@link DownloadJournal}.
+ */
+class SegmentProgress extends TransferProgress
+{
+	private FileChannel channel = null;
+	private DownloadJournal journal = null;
+	
+	public SegmentProgress(AsyncObserver o, FileChannel c, DownloadJournal j)
+	{
+		// A resumed download starts with what is already on disk
+		super(o, j.getLength(), j.getCommittedBytes());
+		
+		channel = c;
+		journal = j;
+	}
+	
+	@Override
+	synchronized public void add(int n) throws IOException
+	{
+		if( journal.isSaveDue() ) {
+			// Only positions committed before the force are known to be on disk
+			long[] positions = journal.snapshot();
+			channel.force(false);
+			journal.save(positions);
+		}
+		super.add(n);
+	}
+}
+
+/**
+ * Downloads the unfinished part of one journal segment into its region of the destination file.
+ */
+class Segment implements Callable<Integer>
+{
+	private URL url = null;
+	private FileChannel channel = null;
+	private DownloadJournal journal = null;
+	private SegmentProgress progress = null;
+	private int index = 0;
+	private int throttle = 0;
+	
+	public Segment(URL u, FileChannel c, int i, DownloadJournal j, SegmentProgress p, int t)
+	{
+		url = u;
+		channel = c;
+		index = i;
+		journal = j;
+		progress = p;
+		throttle = t;
+	}
+	
+	@Override
+	public Integer call() throws IOException, InterruptedException
+	{
+		int n, limit = 0;
+		long position = journal.getCommitted(index);
+		long end = journal.getEnd(index);
+		long cancelLongNew = 0L, cancelLongOld = System.currentTimeMillis();
+		byte[] buf = new byte[DownloadUtils.SEGMENT_BUFFER_SIZE];
+		
+		// This segment was finished by an earlier attempt
+		if( position > end )
+			return TransferUtils.COMPLETE;
+		
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setRequestProperty("Range", "bytes=" + position + "-" + end);
+		if( journal.getValidator() != null )
+			conn.setRequestProperty("If-Range", journal.getValidator());
+		
+		// Anything but a partial response means the content changed or ranges are refused
+		if( conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL ) {
+			conn.disconnect();
+			// The retry has to probe again instead of reusing the stale validator
+			RemoteMetadata.invalidate(new URL(journal.getURL()));
+			progress.aborted = true;
+			return TransferUtils.FAILED;
+		}
+		
+		InputStream in = conn.getInputStream();
+		try {
+			while( position <= end && (n = in.read(buf, 0, (int) Math.min(buf.length, end - position + 1))) > 0 )
+			{
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+				while( bb.hasRemaining() )
+					position += channel.write(bb, position);
+				
+				journal.commit(index, position);
+				progress.add(n);
+				
+				// Stop early if another segment has already failed
+				if( progress.aborted )
+					return TransferUtils.FAILED;
+				
+				cancelLongNew = System.currentTimeMillis();
+				if( cancelLongNew - cancelLongOld > 200 ) {
+					cancelLongOld = cancelLongNew;
+					if( Settings.transferCancelled == true )
+						return TransferUtils.CANCELLED;
+				}
+				
+				if( throttle > 0 ) {
+					limit += n;
+					if( limit >= ( throttle / 10 )) {
+						limit = 0;
+						Thread.sleep(100);
+					}
+				}
+			}
+		} catch (IOException e) {
+			progress.aborted = true;
+			throw e;
+		} finally {
+			in.close();
+		}
+		
+		if( position <= end ) {
+			progress.aborted = true;
+			return TransferUtils.FAILED;
+		}
+		return TransferUtils.COMPLETE;
+	}
 }
@@ -1,59 +1,238 @@
 package weave.utils;
 
+import static weave.utils.TraceUtils.*;
+import static weave.utils.TraceUtils.LEVEL.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import weave.Globals;
 import weave.Settings;
 import weave.configs.IConfig;
 import weave.managers.ConfigManager;
 
+/**
+ * Replaces <code>${NAME}</code> placeholders with the value of an environment
+ * variable, a Java system property, or one of the custom variables below, in that
+ * order of increasing priority. Backslashes in values are turned into forward slashes.
+ * <br><br>
+ * Templates are parsed once and the variables are read into a snapshot that is
+ * reused until {@link #invalidate()} is called, so repeated calls with the same
+ * string do not rebuild anything.
+ */
 public class EnvironmentUtils extends Globals
 {
 	public static final String WEBAPPS = "SERVLET_WEBAPPS";
 	public static final String PLUGINS_DIR = "PLUGINS_DIR";
 	public static final String DOWNLOAD_DIR = "DOWNLOAD_DIR";
 	
-	private static Map<String, String> customEnv = null;
+	private static final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+	private static final Set<String> reported = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private static final AtomicInteger generation = new AtomicInteger(0);
+	private static volatile Snapshot snapshot = null;
 	
-	private static void refresh()
+	/**
+	 * The variables as read during one generation, a generation ends with each {@link #invalidate()}.
+	 */
+	private static class Snapshot
 	{
-		IConfig servlet = ConfigManager.getConfigManager().getActiveContainer();
+		final int generation;
+		final Map<String, String> vars;
+		
+		Snapshot(int generation, Map<String, String> vars)
+		{
+			this.generation = generation;
+			this.vars = vars;
+		}
+	}
+	
+	/**
+	 * A string split into literal text and <code>${NAME}</code> placeholders.
+	 */
+	public static class Template
+	{
+		private final String source;
+		private final String[] text;
+		private final String[] names;
 		
-		if( customEnv == null )
-			customEnv = new HashMap<String, String>();
-		else
-			customEnv.clear();
+		private Template(String source, String[] text, String[] names)
+		{
+			this.source = source;
+			this.text = text;
+			this.names = names;
+		}
 		
-		if( servlet != null && servlet.getWebappsDirectory() != null )
-			customEnv.put(WEBAPPS, servlet.getWebappsDirectory().getAbsolutePath());
+		/**
+		 * Parse a template.<br>
+		 * A <code>${</code> without a closing <code>}</code> is kept as literal text.
+		 * 
+		 * @param str The template string
+		 * @return The parsed template
+		 */
+		public static Template compile(String str)
+		{
+			List<String> text = new ArrayList<String>();
+			List<String> names = new ArrayList<String>();
+			int from = 0;
+			int start;
+			
+			while( (start = str.indexOf("${", from)) >= 0 )
+			{
+				int end = str.indexOf('}', start + 2);
+				if( end < 0 )
+					break;
+				
+				text.add(str.substring(from, start));
+				names.add(str.substring(start + 2, end));
+				from = end + 1;
+			}
+			text.add(str.substring(from));
+			
+			return new Template(str, text.toArray(new String[text.size()]), names.toArray(new String[names.size()]));
+		}
+		
+		/**
+		 * Fill in the placeholders in a single pass.
+		 * 
+		 * @param vars The variable values
+		 * @return The resolved string, placeholders without a value are left as they are
+		 */
+		public String resolve(Map<String, String> vars)
+		{
+			if( names.length == 0 )
+				return source;
+			
+			StringBuilder sb = new StringBuilder(source.length() + 64);
+			for( int i = 0; i < names.length; i++ )
+			{
+				String value = vars.get(names[i]);
+				sb.append(text[i]);
+				if( value != null )
+					sb.append(value);
+				else
+					sb.append("${").append(names[i]).append('}');
+			}
+			return sb.append(text[names.length]).toString();
+		}
 		
-		customEnv.put(PLUGINS_DIR, Settings.DEPLOYED_PLUGINS_DIRECTORY.getAbsolutePath());
-		customEnv.put(DOWNLOAD_DIR, Settings.DOWNLOADS_DIRECTORY.getAbsolutePath());
+		/**
+		 * Get the placeholders that have no value.
+		 * 
+		 * @param vars The variable values
+		 * @return The unresolved variable names, empty if everything resolves
+		 */
+		public List<String> getUnresolved(Map<String, String> vars)
+		{
+			List<String> list = new ArrayList<String>();
+			for( String name : names )
+				if( !vars.containsKey(name) && !list.contains(name) )
+					list.add(name);
+			return list;
+		}
+		
+		public List<String> getVariables()
+		{
+			return Collections.unmodifiableList(Arrays.asList(names));
+		}
+		
+		@Override
+		public String toString()
+		{
+			return source;
+		}
 	}
 	
+	/**
+	 * Replace the placeholders in a string with the current variable values.<br>
+	 * A placeholder without a value is left as it is and reported once.
+	 * 
+	 * @param str The string to resolve
+	 * @return The resolved string
+	 */
 	public static String replace(String str)
 	{
-		Properties javaProps = System.getProperties();
-		Map<String, String> sysEnv = new HashMap<String, String>(System.getenv());
-		Map<String, String> javaEnv = new HashMap<String, String>();
+		Template t = getTemplate(str);
+		Map<String, String> vars = getVariables();
+		
+		for( String name : t.getUnresolved(vars) )
+			if( reported.add(name) )
+				traceln(STDOUT, WARN, "Unresolved variable ${" + name + "} in \"" + str + "\"");
+		
+		return t.resolve(vars);
+	}
+	
+	/**
+	 * Get the parsed template of a string, parsing it the first time.
+	 */
+	public static Template getTemplate(String str)
+	{
+		Template t = templates.get(str);
+		if( t == null )
+		{
+			t = Template.compile(str);
+			Template old = templates.putIfAbsent(str, t);
+			if( old != null )
+				t = old;
+		}
+		return t;
+	}
+	
+	/**
+	 * Get the variable snapshot, taking it if there is none.
+	 * 
+	 * @return An unmodifiable map of every variable and its value
+	 */
+	public static Map<String, String> getVariables()
+	{
+		Snapshot s = snapshot;
+		int gen = generation.get();
 		
-		refresh();
+		// A snapshot taken before the last invalidate() may still be published, so check its generation
+		if( s == null || s.generation != gen )
+			snapshot = s = new Snapshot(gen, takeSnapshot());
+		return s.vars;
+	}
+	
+	/**
+	 * Drop the variable snapshot so the next call reads the variables again.<br>
+	 * Call this when a value changes, for example when the active container
+	 * or its webapps directory changes.
+	 */
+	public static void invalidate()
+	{
+		generation.incrementAndGet();
+		snapshot = null;
+		reported.clear();
+	}
+	
+	private static Map<String, String> takeSnapshot()
+	{
+		Map<String, String> vars = new HashMap<String, String>(System.getenv());
+		Properties javaProps = System.getProperties();
+		IConfig servlet = ConfigManager.getConfigManager().getActiveContainer();
 		
 		for( String key : javaProps.stringPropertyNames() )
-			javaEnv.put(key, javaProps.getProperty(key));
-
-		for( Entry<String, String> e : javaEnv.entrySet() )
-			sysEnv.put(e.getKey(), e.getValue());
+			vars.put(key, javaProps.getProperty(key));
+		
+		if( servlet != null && servlet.getWebappsDirectory() != null )
+			vars.put(WEBAPPS, servlet.getWebappsDirectory().getAbsolutePath());
 		
-		for( Entry<String, String> e : customEnv.entrySet() )
-			sysEnv.put(e.getKey(), e.getValue());
+		vars.put(PLUGINS_DIR, Settings.DEPLOYED_PLUGINS_DIRECTORY.getAbsolutePath());
+		vars.put(DOWNLOAD_DIR, Settings.DOWNLOADS_DIRECTORY.getAbsolutePath());
 		
-		for( Entry<String, String> entry : sysEnv.entrySet() )
-			str = str.replaceAll("\\$\\{" + entry.getKey() + "\\}", entry.getValue().replaceAll("\\\\", "/"));
+		for( Entry<String, String> e : vars.entrySet() )
+			e.setValue(e.getValue().replace('\\', '/'));
 		
-		return str;
+		return Collections.unmodifiableMap(vars);
 	}
 }
@@ -28,18 +28,31 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.List;
 
 import weave.Settings;
 import weave.async.AsyncFunction;
 import weave.async.AsyncObserver;
+import weave.core.Accessor;
 import weave.reflect.Reflectable;
 
 public class FileUtils extends TransferUtils
 {
 	private static final int BUFFER_SIZE = 8 * TransferUtils.KB;
+	private static final int TRANSFER_CHUNK_SIZE = 8 * TransferUtils.MB;
+	
+	public static final Accessor<File, String> GET_ABSOLUTE_PATH = new Accessor<File, String>() {
+		@Override public String get(File f) 					{ return f.getAbsolutePath(); }
+	};
+	public static final Accessor<File, String> GET_CANONICAL_PATH = new Accessor<File, String>() {
+		@Override public String get(File f) throws IOException	{ return f.getCanonicalPath(); }
+	};
 	
 	
 	/**
@@ -230,7 +243,9 @@ public class FileUtils extends TransferUtils
 		{
 			if( (flags & PRESERVE) > 0 ) timestamp = source.lastModified();
 			
-			status &= copy(new FileInputStream(source), new FileOutputStream(destination), observer, throttle);
+			FileChannel in = new FileInputStream(source).getChannel();
+			FileChannel out = new FileOutputStream(destination).getChannel();
+			status &= copy(in, out, observer, throttle);
 			
 			if( (flags & PRESERVE) > 0 ) destination.setLastModified(timestamp);
 		}
@@ -366,6 +381,85 @@ public class FileUtils extends TransferUtils
 	}
 	
 
+	/**
+	 * Copy the contents of one file channel to another with {@link FileChannel#transferTo},
+	 * which lets the operating system move the bytes without copying them through the JVM
+	 * where it is supported.
+	 * <br><br>
+	 * The transfer is done in large chunks so the observer is still updated and
+	 * the global cancel flag is still honoured between chunks.
+	 * 
+	 * @param in The channel to read from
+	 * @param out The channel to write to
+	 * @param observer The observer to provide stats to
+	 * @param throttle The max transfer speed
+	 * @return The result status <code>COMPLETE, CANCELLED, FAILED</code>
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static int copy(FileChannel in, FileChannel out, AsyncObserver observer, int throttle) throws IOException, InterruptedException
+	{
+		long n;
+		int seconds = 0, aveSpeed = 1;
+		long bps = 0L, position = 0L;
+		long speedLongNew = 0L, speedLongOld = System.currentTimeMillis();
+		long chunk = TRANSFER_CHUNK_SIZE;
+		
+		// Check to see if either of the channels are null and throw an error if they are
+		if( in == null || out == null )
+			throw new NullPointerException("Input channel or output channel is null");
+		
+		assert in != null;
+		assert out != null;
+		
+		// A throttled copy sleeps 100ms after every chunk, same as the stream copy
+		if( throttle > 0 )
+			chunk = Math.max(BUFFER_SIZE, throttle / 10);
+		
+		try {
+			long size = in.size();
+			
+			while( position < size )
+			{
+				n = in.transferTo(position, Math.min(chunk, size - position), out);
+				
+				// The source was truncated while we were copying it
+				if( n <= 0 )
+					return FAILED;
+				
+				position += n;
+				bps += n;
+				speedLongNew = System.currentTimeMillis();
+				
+				if( observer != null ) {
+					if( speedLongNew - speedLongOld > 1000 ) {
+						observer.info.speed = (int) bps;
+						bps = 0;
+						seconds++;
+						speedLongOld = speedLongNew;
+						aveSpeed = (int) Math.max(1, position / seconds);
+					}
+					observer.info.cur += n;
+					observer.info.percent = (int) (observer.info.cur * 100 / observer.info.max);
+					observer.info.time = (int) ((observer.info.max - position) / aveSpeed);
+					observer.onUpdate();
+				}
+				
+				if( Settings.transferCancelled == true )
+					return CANCELLED;
+				
+				if( throttle > 0 )
+					Thread.sleep(100);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		return COMPLETE;
+	}
+	
+
 	/**
 	 * Move or rename the source file to the destination file.
 	 * Default operation is to not overwrite the destination file if it already exists.
@@ -480,6 +574,160 @@ public class FileUtils extends TransferUtils
 	}
 	
 	
+	/**
+	 * Move the contents of a fully staged directory into the destination directory by renaming.
+	 * 
+	 * @see FileUtils#moveContents(File, File, AsyncObserver, int)
+	 * 
+	 * @param source The staged directory
+	 * @param destination The directory to move the contents into
+	 * @return The result code <code>COMPLETE, CANCELLED, FAILED</code>
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static int moveContents( File source, File destination ) throws IOException, InterruptedException
+	{
+		return moveContents(source, destination, null, 0);
+	}
+	
+	/**
+	 * Move the contents of a fully staged directory into the destination directory by renaming.
+	 * <br><br>
+	 * Files and directories that do not exist in the destination yet are renamed into place
+	 * in a single step, so a servlet container never sees them half written. A directory that
+	 * already exists is swapped: the new one is staged next to it, the entries only the old one
+	 * has (like saved sessions) are moved over, and the old one is renamed aside before the new
+	 * one is renamed into its place. Existing files are atomically replaced.
+	 * <br><br>
+	 * If the source is on a different file system than the destination, each entry is first
+	 * copied to a hidden sibling of its target and then renamed over it, so the install
+	 * stays atomic per entry. Only this fallback copy reports to the observer and is throttled.
+	 * 
+	 * @param source The staged directory
+	 * @param destination The directory to move the contents into
+	 * @param observer The observer to provide stats to when a copy is needed
+	 * @param throttle The max transfer speed when a copy is needed
+	 * @return The result code <code>COMPLETE, CANCELLED, FAILED</code>
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static int moveContents( File source, File destination, AsyncObserver observer, int throttle ) throws IOException, InterruptedException
+	{
+		if( source == null || destination == null )
+			throw new NullPointerException("Source File or Destination File is null");
+		
+		assert source != null;
+		assert destination != null;
+		
+		if( !source.isDirectory() )
+			return FAILED;
+		
+		if( !destination.exists() )
+			destination.mkdirs();
+		
+		int status = COMPLETE;
+		
+		for( File child : source.listFiles() )
+		{
+			File target = new File(destination, child.getName());
+			
+			if( child.isDirectory() && target.isDirectory() )
+				status &= swapDirectory(child, target, observer, throttle);
+			else
+				status &= moveEntry(child, target, observer, throttle);
+			
+			if( status != COMPLETE )
+				return status;
+		}
+		source.delete();
+		
+		return status;
+	}
+	
+	/**
+	 * Replace an installed directory with a new one in two renames.
+	 */
+	private static int swapDirectory( File source, File target, AsyncObserver observer, int throttle ) throws IOException, InterruptedException
+	{
+		File staged = new File(target.getParentFile(), "." + target.getName() + ".staging");
+		File old = new File(target.getParentFile(), "." + target.getName() + ".old");
+		recursiveDelete(staged);
+		recursiveDelete(old);
+		
+		// Bring the new directory onto the target's file system first, so the swap is a rename
+		int status = moveEntry(source, staged, observer, throttle);
+		if( status != COMPLETE )
+		{
+			recursiveDelete(staged);
+			return status;
+		}
+		
+		carryOver(target, staged);
+		
+		Files.move(target.toPath(), old.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		try {
+			Files.move(staged.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(old.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			throw e;
+		}
+		recursiveDelete(old);
+		
+		return COMPLETE;
+	}
+	
+	/**
+	 * Move the entries that exist in <code>from</code> but not in <code>into</code> over to it.
+	 */
+	private static void carryOver( File from, File into ) throws IOException
+	{
+		File[] children = from.listFiles();
+		if( children == null )
+			return;
+		
+		for( File child : children )
+		{
+			File target = new File(into, child.getName());
+			
+			if( !target.exists() )
+				Files.move(child.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			else if( child.isDirectory() && target.isDirectory() )
+				carryOver(child, target);
+		}
+	}
+	
+	private static int moveEntry( File source, File target, AsyncObserver observer, int throttle ) throws IOException, InterruptedException
+	{
+		// A file and a directory can not be renamed over each other
+		if( target.exists() && target.isDirectory() != source.isDirectory() )
+			recursiveDelete(target);
+		
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return COMPLETE;
+		} catch (AtomicMoveNotSupportedException e) {
+			// Different file system, fall through and stage a copy next to the target
+		}
+		
+		File staged = new File(target.getParentFile(), "." + target.getName() + ".staging");
+		recursiveDelete(staged);
+		
+		int status = copy(source, staged, MULTIPLE_FILES | OVERWRITE | PRESERVE, observer, throttle);
+		if( status != COMPLETE )
+		{
+			recursiveDelete(staged);
+			return status;
+		}
+		
+		Files.move(staged.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		recursiveDelete(source);
+		
+		return COMPLETE;
+	}
+	
+	
 	/**
 	 * Get the File directory of the specified file.<br>
 	 * If the file argument is a directory, it we be returned.
@@ -0,0 +1,302 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import weave.Settings;
+import weave.utils.TraceUtils.LEVEL;
+
+/**
+ * The background writer behind {@link TraceUtils}.
+ * <br><br>
+ * Callers publish log records into a fixed size ring buffer without taking a lock.
+ * A single writer thread drains the buffer in batches, writes them to the console and
+ * to the day's log files, which it keeps open until the date changes at midnight.
+ * <br><br>
+ * Records are written in the order they were claimed. If the buffer is full the caller
+ * waits for the writer to catch up instead of dropping the record.
+ */
+class LogWriter implements Runnable
+{
+	private static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+	private static final int WAKE_THRESHOLD = CAPACITY / 4;
+	private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+	private static final int PIPES = 3;
+
+	private final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<Record>(CAPACITY);
+	private final AtomicLong claimed = new AtomicLong(0L);
+	private volatile long consumed = 0L;
+	private volatile boolean flushRequested = false;
+
+	private final Object flushLock = new Object();
+	private long flushed = 0L;
+
+	private final Thread thread;
+	private final Writer[] writers = new Writer[PIPES];
+	private long rollover = 0L;
+
+	private final DateFormat tf = new SimpleDateFormat("[hh:mm:ss.SSS a]");
+
+	/**
+	 * A single log record.<br>
+	 * A record without a level is written as is, otherwise it gets a
+	 * new line, a timestamp and the level prepended.
+	 */
+	static class Record
+	{
+		final int pipe;
+		final long time;
+		final LEVEL lvl;
+		final String text;
+		final boolean println;
+
+		Record(int pipe, long time, LEVEL lvl, String text, boolean println)
+		{
+			this.pipe = pipe;
+			this.time = time;
+			this.lvl = lvl;
+			this.text = text;
+			this.println = println;
+		}
+	}
+
+	LogWriter()
+	{
+		thread = new Thread(this, "TraceUtils-LogWriter");
+		thread.setDaemon(true);
+		thread.start();
+
+		// Catch exits that do not go through Settings.shutdown()
+		Runtime.getRuntime().addShutdownHook(new Thread("TraceUtils-LogWriter-Shutdown") {
+			@Override
+			public void run() {
+				flush(2000);
+			}
+		});
+	}
+
+	/**
+	 * Add a record to the ring buffer.
+	 *
+	 * @param r The record to write
+	 */
+	void offer(Record r)
+	{
+		long seq = claimed.getAndIncrement();
+
+		// Buffer is full, wait for the writer to free the slot
+		while( seq - consumed >= CAPACITY )
+		{
+			LockSupport.unpark(thread);
+			Thread.yield();
+		}
+		slots.set((int) (seq & MASK), r);
+
+		if( seq - consumed >= WAKE_THRESHOLD )
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Block until everything offered before this call has been written and flushed.
+	 *
+	 * @param timeout The maximum time to wait in milliseconds
+	 * @return <code>true</code> if everything was flushed, <code>false</code> if the wait timed out
+	 */
+	boolean flush(long timeout)
+	{
+		long target = claimed.get();
+		long deadline = System.currentTimeMillis() + timeout;
+
+		if( Thread.currentThread() == thread )
+			return false;
+
+		flushRequested = true;
+		LockSupport.unpark(thread);
+
+		synchronized( flushLock )
+		{
+			while( flushed < target )
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if( remaining <= 0 )
+					return false;
+				try {
+					flushLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void run()
+	{
+		while( true )
+		{
+			int count = drain();
+
+			if( count > 0 || flushRequested )
+			{
+				flushRequested = false;
+				flushAll();
+
+				synchronized( flushLock )
+				{
+					flushed = consumed;
+					flushLock.notifyAll();
+				}
+			}
+
+			// A producer has claimed a slot but not filled it yet
+			if( consumed < claimed.get() )
+				Thread.yield();
+			else
+				LockSupport.parkNanos(this, FLUSH_INTERVAL);
+		}
+	}
+
+	private int drain()
+	{
+		int count = 0;
+		while( true )
+		{
+			int index = (int) (consumed & MASK);
+			Record r = slots.get(index);
+			if( r == null )
+				return count;
+
+			slots.lazySet(index, null);
+			consumed++;
+			count++;
+
+			write(r);
+		}
+	}
+
+	private void write(Record r)
+	{
+		String s = ( r.lvl == null ) ? r.text : Settings.N_L + tf.format(new Date(r.time)) + " " + r.lvl + " " + r.text;
+
+		if( r.pipe == TraceUtils.STDOUT )
+		{
+			if( r.println )		System.out.println(s);
+			else				System.out.print(s);
+		}
+		else if( r.pipe == TraceUtils.STDERR )
+		{
+			if( r.println )		System.err.println(s);
+			else				System.err.print(s);
+		}
+
+		// Never let a bad record stop the writer, callers would block on a full buffer
+		try {
+			Writer w = getWriter(r.pipe, r.time);
+			if( w != null )
+				w.write(s);
+		} catch (IOException e) {
+			e.printStackTrace();
+			close(r.pipe);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			close(r.pipe);
+		}
+	}
+
+	private Writer getWriter(int pipe, long time) throws IOException
+	{
+		if( pipe < 0 || pipe >= PIPES )
+			return null;
+
+		if( time >= rollover )
+		{
+			for( int i = 0; i < PIPES; i++ )
+				close(i);
+			rollover = nextMidnight(time);
+		}
+
+		if( writers[pipe] == null )
+		{
+			File logFile = TraceUtils.getLogFile(pipe, time).getAbsoluteFile();
+			if( !logFile.getParentFile().exists() )
+				logFile.getParentFile().mkdirs();
+
+			writers[pipe] = new BufferedWriter(new FileWriter(logFile, true));
+		}
+		return writers[pipe];
+	}
+
+	private void flushAll()
+	{
+		for( int i = 0; i < PIPES; i++ )
+		{
+			if( writers[i] == null )
+				continue;
+			try {
+				writers[i].flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+				close(i);
+			}
+		}
+		System.out.flush();
+		System.err.flush();
+	}
+
+	private void close(int pipe)
+	{
+		if( writers[pipe] == null )
+			return;
+		try {
+			writers[pipe].close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		writers[pipe] = null;
+	}
+
+	private static long nextMidnight(long time)
+	{
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		c.add(Calendar.DAY_OF_MONTH, 1);
+		return c.getTimeInMillis();
+	}
+}
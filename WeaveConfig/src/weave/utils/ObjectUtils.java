@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import weave.Globals;
+import weave.core.Accessor;
 import weave.reflect.Reflectable;
 
 public class ObjectUtils extends Globals
@@ -41,6 +42,53 @@ public class ObjectUtils extends Globals
 	}
 	
 	
+	/**
+	 * Shorthand ternary operation to simplify testing null cases.<br><br>
+	 * 
+	 * Read a value from the test object if it is not null. Unlike
+	 * {@link #ternary(Object, String, Object)} the accessor is called
+	 * directly, without looking up a method by name.
+	 * 
+	 * <code><pre>
+	 * File f = config.getWebappsDirectory();
+	 * String path = ObjectUtils.ternary( f, FileUtils.GET_ABSOLUTE_PATH, "Not Set" );
+	 * </pre></code>
+	 * 
+	 * @param testNotNull The test to see if it is <code>null</code>
+	 * @param accessor The accessor to apply to the non-null test case
+	 * @param failDefault The fail-safe default value
+	 * @return The value read from the test object if it is non-null, otherwise the fail-safe value
+	 * 
+	 * @throws Exception If the accessor throws
+	 */
+	public static <T, R> R ternary(T testNotNull, Accessor<? super T, ? extends R> accessor, R failDefault) throws Exception
+	{
+		if( testNotNull == null )
+			return failDefault;
+		
+		return accessor.get(testNotNull);
+	}
+	
+	
+	/**
+	 * Get a value from a map that may be <code>null</code>.
+	 * 
+	 * @param map The map to read from, may be <code>null</code>
+	 * @param key The key to read
+	 * @param failDefault The fail-safe default value
+	 * @return The value of the key if the map and the value are non-null, otherwise the fail-safe value
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> V getOrDefault(Map<?, ?> map, Object key, V failDefault)
+	{
+		if( map == null )
+			return failDefault;
+		
+		Object v = map.get(key);
+		return ( v != null ) ? (V) v : failDefault;
+	}
+	
+	
 	/**
 	 * Shorthand ternary operation to simplify testing null cases.<br><br>
 	 * 
@@ -19,15 +19,53 @@
 
 package weave.utils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import weave.Globals;
 import weave.reflect.Reflectable;
+import weave.reflect.ReflectableRegistry;
 
+/**
+ * Calls constructors, methods and fields by name.
+ * <br><br>
+ * Every member is looked up and checked for {@link Reflectable} once. The outcome is
+ * cached by class, member name and signature, either as a {@link MethodHandle} that
+ * is invoked directly on later calls, or as the failure that is thrown again without
+ * another lookup.
+ * <br><br>
+ * Members declared by the named class, or the class of the instance, are first looked
+ * up in the {@link ReflectableRegistry}, which calls them without any reflection.
+ */
 public class ReflectionUtils extends Globals
 {
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private static final ConcurrentMap<Key, Resolved> cache = new ConcurrentHashMap<Key, Resolved>();
+	private static final Class<?>[] NO_CLASSES = new Class<?>[] {};
+	private static final Object[] NO_ARGS = new Object[] {};
+	
+	private static final int STATIC_METHOD	= 0;
+	private static final int METHOD			= 1;
+	private static final int STATIC_FIELD	= 2;
+	private static final int FIELD			= 3;
+	private static final int CONSTRUCTOR	= 4;
+	
+	/**
+	 * Forget every resolved member, for example after loading new classes.
+	 */
+	public static void clearCache()
+	{
+		cache.clear();
+	}
+	
 	/**
 	 * This will create and return a new instance of the class.<br>
 	 * The nullary constructor will be called to initialize this class.
@@ -69,8 +107,25 @@ public class ReflectionUtils extends Globals
 	 */
 	public static Object reflectConstructor(String pkg, String clazz, Class<?>[] argClassList, Object[] args) throws ClassNotFoundException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException
 	{
-		Class<?> c = Class.forName(pkg + "." + clazz);
-		return c.getConstructor(argClassList).newInstance(args);
+		String name = pkg + "." + clazz;
+		Key key = new Key(CONSTRUCTOR, name, "<init>", argClassList);
+		Resolved r = cache.get(key);
+		
+		if( r == null )
+			r = cache(key, resolveConstructor(Class.forName(name), argClassList));
+		
+		try {
+			return r.invoke(null, args);
+		} catch (InstantiationException e) {
+			throw e;
+		} catch (IllegalAccessException e) {
+			throw e;
+		} catch (NoSuchMethodException e) {
+			throw e;
+		} catch (Exception e) {
+			// Constructor.newInstance() wraps whatever the constructor throws
+			throw new InvocationTargetException(e);
+		}
 	}
 	
 	
@@ -92,23 +147,16 @@ public class ReflectionUtils extends Globals
 	 */
 	public static Object reflectField(String pkg, String clazz, String field) throws ClassNotFoundException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException
 	{
-		Field f = null;
-		Class<?> c = Class.forName(pkg + "." + clazz);
+		String name = pkg + "." + clazz;
+		Key key = new Key(STATIC_FIELD, name, field, null);
+		Resolved r = cache.get(key);
 		
-		while( c != null )
-		{
-			try {
-				f = c.getDeclaredField(field);
-
-				if( !f.isAnnotationPresent(Reflectable.class) && !c.isAnnotationPresent(Reflectable.class) )
-					throw new IllegalAccessException(clazz + "." + field);
-				
-				return f.get(null);
-			} catch (NoSuchFieldException e) {
-				c = c.getSuperclass();
-			}
+		if( r == null ) {
+			Resolved found = fromRegistry(name, ReflectableRegistry.signature(field, null));
+			r = cache(key, found != null ? found : resolveField(Class.forName(name), field, clazz + "." + field, false));
 		}
-		throw new NoSuchFieldException(clazz + "." + field);
+		
+		return r.get(null);
 	}
 
 	
@@ -128,24 +176,15 @@ public class ReflectionUtils extends Globals
 	 */
 	public static Object reflectField(Object instance, String field) throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException, SecurityException
 	{
-		Field f = null;
-		Class<?> c = instance.getClass();
+		Key key = new Key(FIELD, instance.getClass(), field, null);
+		Resolved r = cache.get(key);
 		
-		while( c != null )
-		{
-			try {
-				f = c.getDeclaredField(field);
-
-				if( (!f.isAnnotationPresent(Reflectable.class) && !c.isAnnotationPresent(Reflectable.class)) &&
-					StringUtils.beginsWith(c.getCanonicalName(), "weave") )
-					throw new IllegalAccessException(instance.getClass().getName() + "." + field);
-				
-				return f.get(instance);
-			} catch (NoSuchFieldException e) {
-				c = c.getSuperclass();
-			}
+		if( r == null ) {
+			Resolved found = fromRegistry(instance.getClass().getName(), ReflectableRegistry.signature(field, null));
+			r = cache(key, found != null ? found : resolveField(instance.getClass(), field, instance.getClass().getName() + "." + field, true));
 		}
-		throw new NoSuchFieldException(instance.getClass().getName() + "." + field);
+		
+		return r.get(instance);
 	}
 	
 
@@ -183,27 +222,16 @@ public class ReflectionUtils extends Globals
 	 */
 	public static Object reflectMethod(String pkg, String clazz, String function, Class<?>[] argClassList, Object[] args) throws Exception
 	{
-		Method m = null;
-		Class<?> c = Class.forName(pkg + "." + clazz);
+		String name = pkg + "." + clazz;
+		Key key = new Key(STATIC_METHOD, name, function, argClassList);
+		Resolved r = cache.get(key);
 		
-		while( c != null )
-		{
-			try {
-				m = c.getDeclaredMethod(function, argClassList);
-
-				if( !m.isAnnotationPresent(Reflectable.class) && !c.isAnnotationPresent(Reflectable.class) )
-					throw new IllegalAccessException(clazz + "." + function + "()");
-				
-				return m.invoke(null, args);
-				
-			} catch (InvocationTargetException e) {
-				if( e.getCause() instanceof Exception )
-					throw (Exception) e.getCause();
-			} catch (NoSuchMethodException e) {
-				c = c.getSuperclass();
-			}
+		if( r == null ) {
+			Resolved found = fromRegistry(name, ReflectableRegistry.signature(function, argClassList == null ? NO_CLASSES : argClassList));
+			r = cache(key, found != null ? found : resolveMethod(Class.forName(name), function, argClassList, clazz + "." + function + "()", false));
 		}
-		throw new NoSuchMethodException(clazz + "." + function + "()");
+		
+		return r.invoke(null, args);
 	}
 	
 	
@@ -238,27 +266,244 @@ public class ReflectionUtils extends Globals
 	 */
 	public static Object reflectMethod(Object instance, String function, Class<?>[] argClassList, Object[] args) throws Exception
 	{
-		Method m = null;
-		Class<?> c = instance.getClass();
+		Key key = new Key(METHOD, instance.getClass(), function, argClassList);
+		Resolved r = cache.get(key);
 		
+		if( r == null ) {
+			Resolved found = fromRegistry(instance.getClass().getName(), ReflectableRegistry.signature(function, argClassList == null ? NO_CLASSES : argClassList));
+			r = cache(key, found != null ? found : resolveMethod(instance.getClass(), function, argClassList, instance.getClass().getName() + "." + function + "()", true));
+		}
+		
+		return r.invoke(instance, args);
+	}
+	
+	
+	private static Resolved cache(Key key, Resolved r)
+	{
+		Resolved old = cache.putIfAbsent(key, r);
+		return ( old != null ) ? old : r;
+	}
+	
+	private static Resolved fromRegistry(String className, String signature)
+	{
+		ReflectableRegistry.Invoker invoker = ReflectableRegistry.get(className, signature);
+		return ( invoker != null ) ? Resolved.of(invoker) : null;
+	}
+	
+	/**
+	 * Check to see if a member may be called by name.<br>
+	 * Members of classes outside of <code>weave</code> are always allowed on instances.
+	 */
+	private static boolean isReflectable(Class<?> c, boolean isMember, boolean onInstance)
+	{
+		if( isMember || c.isAnnotationPresent(Reflectable.class) )
+			return true;
+		
+		return onInstance && !StringUtils.beginsWith(c.getCanonicalName(), "weave");
+	}
+	
+	private static Resolved resolveMethod(Class<?> c, String function, Class<?>[] argClassList, String desc, boolean onInstance)
+	{
 		while( c != null )
 		{
-			try {
-				m = c.getDeclaredMethod(function, argClassList);
+			for( Method m : c.getDeclaredMethods() )
+			{
+				if( !m.getName().equals(function) || !Arrays.equals(m.getParameterTypes(), argClassList == null ? NO_CLASSES : argClassList) )
+					continue;
 				
-				if( (!m.isAnnotationPresent(Reflectable.class) && !c.isAnnotationPresent(Reflectable.class)) &&
-					StringUtils.beginsWith(c.getCanonicalName(), "weave") )
-					throw new IllegalAccessException(instance.getClass().getName() + "." + function + "()");
+				if( !isReflectable(c, m.isAnnotationPresent(Reflectable.class), onInstance) )
+					return Resolved.failure(new IllegalAccessException(desc));
 				
-				return m.invoke(instance, args);
+				// The same call without an instance fails the same way Method.invoke(null) does
+				if( !onInstance && !Modifier.isStatic(m.getModifiers()) )
+					return Resolved.failure(new NullPointerException(desc));
 				
-			} catch (InvocationTargetException e) {
-				if( e.getCause() instanceof Exception )
-					throw (Exception) e.getCause();
-			} catch (NoSuchMethodException e) {
+				try {
+					MethodHandle h = lookup.unreflect(m);
+					return Resolved.of(h, m.getParameterTypes().length);
+				} catch (IllegalAccessException e) {
+					return Resolved.failure(e);
+				}
+			}
+			c = c.getSuperclass();
+		}
+		return Resolved.failure(new NoSuchMethodException(desc));
+	}
+	
+	private static Resolved resolveField(Class<?> c, String field, String desc, boolean onInstance)
+	{
+		while( c != null )
+		{
+			Field f = null;
+			try {
+				f = c.getDeclaredField(field);
+			} catch (NoSuchFieldException e) {
 				c = c.getSuperclass();
+				continue;
+			}
+			
+			if( !isReflectable(c, f.isAnnotationPresent(Reflectable.class), onInstance) )
+				return Resolved.failure(new IllegalAccessException(desc));
+			
+			if( !onInstance && !Modifier.isStatic(f.getModifiers()) )
+				return Resolved.failure(new NullPointerException(desc));
+			
+			try {
+				MethodHandle h = lookup.unreflectGetter(f);
+				return Resolved.of(h, 0);
+			} catch (IllegalAccessException e) {
+				return Resolved.failure(e);
+			}
+		}
+		return Resolved.failure(new NoSuchFieldException(desc));
+	}
+	
+	private static Resolved resolveConstructor(Class<?> c, Class<?>[] argClassList)
+	{
+		if( Modifier.isAbstract(c.getModifiers()) || c.isInterface() )
+			return Resolved.failure(new InstantiationException(c.getName()));
+		
+		try {
+			Constructor<?> con = c.getConstructor(argClassList);
+			return Resolved.of(lookup.unreflectConstructor(con), con.getParameterTypes().length);
+		} catch (NoSuchMethodException e) {
+			return Resolved.failure(e);
+		} catch (IllegalAccessException e) {
+			return Resolved.failure(e);
+		}
+	}
+	
+	
+	/**
+	 * Cache key made of the kind of member, its owner, name and signature.<br>
+	 * The owner is the class name for static lookups so that a cache
+	 * hit does not need {@link Class#forName(String)}.
+	 */
+	private static final class Key
+	{
+		private final int kind;
+		private final Object owner;
+		private final String name;
+		private final Class<?>[] sig;
+		private final int hash;
+		
+		Key(int kind, Object owner, String name, Class<?>[] sig)
+		{
+			this.kind = kind;
+			this.owner = owner;
+			this.name = name;
+			this.sig = ( sig == null ) ? NO_CLASSES : sig.clone();
+			this.hash = ((kind * 31 + owner.hashCode()) * 31 + name.hashCode()) * 31 + Arrays.hashCode(this.sig);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if( !(o instanceof Key) )
+				return false;
+			
+			Key k = (Key) o;
+			return kind == k.kind && owner.equals(k.owner) && name.equals(k.name) && Arrays.equals(sig, k.sig);
+		}
+	}
+	
+	
+	/**
+	 * A looked up member, ready to be invoked, or the reason it can not be.
+	 */
+	private static final class Resolved
+	{
+		private final MethodHandle handle;
+		private final ReflectableRegistry.Invoker invoker;
+		private final Exception failure;
+		
+		private Resolved(MethodHandle handle, ReflectableRegistry.Invoker invoker, Exception failure)
+		{
+			this.handle = handle;
+			this.invoker = invoker;
+			this.failure = failure;
+		}
+		
+		static Resolved of(ReflectableRegistry.Invoker invoker)
+		{
+			return new Resolved(null, invoker, null);
+		}
+		
+		/**
+		 * Adapt the handle to <code>(Object receiver, Object[] args)Object</code> so every
+		 * member is called the same way with {@link MethodHandle#invokeExact}.
+		 * Static members ignore the receiver.
+		 */
+		static Resolved of(MethodHandle h, int arity)
+		{
+			boolean hasReceiver = h.type().parameterCount() > arity;
+			MethodHandle g = h.asFixedArity();
+			
+			g = g.asType(g.type().generic()).asSpreader(Object[].class, arity);
+			if( !hasReceiver )
+				g = MethodHandles.dropArguments(g, 0, Object.class);
+			
+			return new Resolved(g, null, null);
+		}
+		
+		static Resolved failure(Exception e)
+		{
+			return new Resolved(null, null, e);
+		}
+		
+		Object invoke(Object target, Object[] args) throws Exception
+		{
+			if( failure != null )
+				throw copy(failure);
+			if( invoker != null )
+				return invoker.invoke(target, args == null ? NO_ARGS : args);
+			
+			// Keep the static type Object[] for invokeExact, a conditional would be typed Object
+			Object[] a = ( args == null ) ? NO_ARGS : args;
+			
+			try {
+				return (Object) handle.invokeExact(target, a);
+			} catch (Exception e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+		}
+		
+		Object get(Object target) throws NoSuchFieldException, IllegalAccessException
+		{
+			try {
+				return invoke(target, NO_ARGS);
+			} catch (NoSuchFieldException e) {
+				throw e;
+			} catch (IllegalAccessException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				// Getters do not throw checked exceptions
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		/**
+		 * Failures are thrown as new exceptions so each caller gets its own stack trace.
+		 */
+		private static Exception copy(Exception e)
+		{
+			try {
+				return e.getClass().getConstructor(String.class).newInstance(e.getMessage());
+			} catch (Exception ignored) {
+				return e;
 			}
 		}
-		throw new NoSuchMethodException(instance.getClass().getName() + "." + function + "()");
 	}
 }
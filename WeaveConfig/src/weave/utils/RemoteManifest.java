@@ -0,0 +1,250 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.utils;
+
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A cached copy of one of the <code>;</code> separated files on the install server,
+ * like <code>config.txt</code> and <code>files.txt</code>.
+ * <br><br>
+ * The file is parsed once into its entries and an index of its
+ * <code>key: value</code> entries. The copy is kept on disk together with the
+ * <code>ETag</code> and <code>Last-Modified</code> the server sent, so a fresh copy
+ * is used without going to the network at all, and a stale one is revalidated with
+ * a conditional GET that costs no body when the file has not changed.
+ * If the server can not be reached, the last copy is used for as long as it takes.
+ */
+public class RemoteManifest
+{
+	public static final long MAX_AGE = 6 * 60 * 60 * 1000L;
+
+	private final String url;
+	private final File cacheFile;
+
+	private String content = null;
+	private String etag = null;
+	private String lastModified = null;
+	private long fetched = 0L;
+
+	private String[] entries = null;
+	private Map<String, String> index = null;
+
+	/**
+	 * @param url The URL of the remote file
+	 * @param cacheFile Where to keep the local copy, or <code>null</code> to only keep it in memory
+	 */
+	public RemoteManifest(String url, File cacheFile)
+	{
+		this.url = url;
+		this.cacheFile = cacheFile;
+		loadCache();
+	}
+
+	/**
+	 * Get the value of a <code>key: value</code> entry.
+	 *
+	 * @param key The key
+	 * @return The trimmed value, or <code>null</code> if there is no such entry or no copy of the file
+	 */
+	synchronized public String get(String key)
+	{
+		refresh();
+		if( index == null )
+			return null;
+
+		String value = index.get(key);
+		if( value != null )
+			return value;
+
+		// Entries used to be matched by substring, keep finding keys written with extra text
+		for( String s : entries )
+			if( s.contains(key) )
+				return s.substring(s.indexOf(":") + 1).trim();
+		return null;
+	}
+
+	/**
+	 * Get every entry of the file.
+	 *
+	 * @return A copy of the entries, or <code>null</code> if there is no copy of the file
+	 */
+	synchronized public String[] getEntries()
+	{
+		refresh();
+		return ( entries == null ) ? null : entries.clone();
+	}
+
+	/**
+	 * Check to see if there is a copy of the file, fetching it if needed.
+	 */
+	synchronized public boolean isAvailable()
+	{
+		refresh();
+		return entries != null;
+	}
+
+	/**
+	 * Make the next lookup revalidate the copy with the server.
+	 */
+	synchronized public void invalidate()
+	{
+		fetched = 0L;
+	}
+
+	/**
+	 * Revalidate the copy if it is older than {@link #MAX_AGE}.<br>
+	 * Errors are traced and the old copy, if any, is kept.
+	 */
+	private void refresh()
+	{
+		if( content != null && System.currentTimeMillis() - fetched < MAX_AGE )
+			return;
+
+		try {
+			revalidate();
+		} catch (IOException e) {
+			trace(STDERR, e);
+		}
+	}
+
+	private void revalidate() throws IOException
+	{
+		Map<String, String> headers = new HashMap<String, String>();
+		if( content != null ) {
+			if( etag != null )			headers.put("If-None-Match", etag);
+			if( lastModified != null )	headers.put("If-Modified-Since", lastModified);
+		}
+
+		URLRequestResult result = URLRequestUtils.request(URLRequestUtils.GET, url, null, headers);
+		if( result == null )
+			return;
+
+		if( result.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED && content != null ) {
+			fetched = System.currentTimeMillis();
+			saveCache();
+			return;
+		}
+		if( result.getResponseCode() != HttpURLConnection.HTTP_OK )
+			throw new IOException("Server returned HTTP " + result.getResponseCode() + " for " + url);
+
+		etag = result.getResponseHeader("ETag");
+		lastModified = result.getResponseHeader("Last-Modified");
+		fetched = System.currentTimeMillis();
+		parse(result.getResponseContent());
+		saveCache();
+	}
+
+	private void parse(String body)
+	{
+		content = body;
+		entries = body.split(";");
+		index = new HashMap<String, String>();
+
+		for( String s : entries )
+		{
+			int colon = s.indexOf(':');
+			if( colon > 0 )
+			{
+				String key = s.substring(0, colon).trim();
+				if( !index.containsKey(key) )
+					index.put(key, s.substring(colon + 1).trim());
+			}
+		}
+	}
+
+	private void loadCache()
+	{
+		if( cacheFile == null || !cacheFile.exists() )
+			return;
+
+		try {
+			Properties p = new Properties();
+			InputStream in = new FileInputStream(cacheFile);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+
+			// A copy of another URL, e.g. after switching servers, is useless
+			if( !url.equals(p.getProperty("url")) || p.getProperty("content") == null )
+				return;
+
+			etag = p.getProperty("etag");
+			lastModified = p.getProperty("lastModified");
+			fetched = Long.parseLong(p.getProperty("fetched", "0"));
+			parse(p.getProperty("content"));
+		} catch (NumberFormatException e) {
+			trace(STDERR, e);
+		} catch (IOException e) {
+			trace(STDERR, e);
+		}
+	}
+
+	/**
+	 * Write the copy to a temporary file and rename it over the old one.
+	 */
+	private void saveCache()
+	{
+		if( cacheFile == null || content == null )
+			return;
+
+		Properties p = new Properties();
+		p.setProperty("url", url);
+		p.setProperty("content", content);
+		p.setProperty("fetched", "" + fetched);
+		if( etag != null )			p.setProperty("etag", etag);
+		if( lastModified != null )	p.setProperty("lastModified", lastModified);
+
+		try {
+			File tmp = new File(cacheFile.getAbsolutePath() + ".tmp");
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				p.store(out, "Weave remote manifest");
+			} finally {
+				out.close();
+			}
+
+			try {
+				Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			trace(STDERR, e);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.utils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import weave.Settings;
+
+/**
+ * What a server says about a remote file without sending it: the final location
+ * after redirects, the length, the file name, the validators and whether byte
+ * ranges can be requested.
+ * <br><br>
+ * The metadata is read with a <code>HEAD</code> request through
+ * {@link URLRequestUtils}, which follows the redirects and applies the configured
+ * timeouts. Results are cached per URL for {@link #MAX_AGE}, so the observer, the
+ * update check and the download of the same file share a single round trip.
+ */
+public class RemoteMetadata
+{
+	public static final long MAX_AGE = 60 * 1000L;
+
+	private static final ConcurrentMap<String, RemoteMetadata> cache = new ConcurrentHashMap<String, RemoteMetadata>();
+
+	private final URL url;
+	private final URL location;
+	private final long length;
+	private final String fileName;
+	private final String etag;
+	private final String lastModified;
+	private final boolean acceptsRanges;
+	private final long probed;
+
+	private RemoteMetadata(URL url, URL location, long length, String fileName, String etag, String lastModified, boolean acceptsRanges)
+	{
+		this.url = url;
+		this.location = location;
+		this.length = length;
+		this.fileName = fileName;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.acceptsRanges = acceptsRanges;
+		this.probed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @see #probe(URL)
+	 */
+	public static RemoteMetadata probe(String url) throws IOException
+	{
+		return probe(new URL(url));
+	}
+
+	/**
+	 * Get the metadata of a remote file, probing the server if there is no
+	 * cached copy younger than {@link #MAX_AGE}.
+	 *
+	 * @param url The URL of the file
+	 * @return The metadata, or <code>null</code> in offline mode
+	 * @throws IOException If the server can not be reached or answers with an error
+	 */
+	public static RemoteMetadata probe(URL url) throws IOException
+	{
+		if( Settings.isOfflineMode() )
+			return null;
+
+		RemoteMetadata m = cache.get(url.toString());
+		if( m != null && System.currentTimeMillis() - m.probed < MAX_AGE )
+			return m;
+
+		m = fetch(url);
+		if( m != null )
+			cache.put(url.toString(), m);
+		return m;
+	}
+
+	/**
+	 * Make the next probe of the URL go to the server.
+	 */
+	public static void invalidate(URL url)
+	{
+		cache.remove(url.toString());
+	}
+
+	public static void clearCache()
+	{
+		cache.clear();
+	}
+
+
+	/**
+	 * The URL that was probed.
+	 */
+	public URL getURL()					{	return url;				}
+
+	/**
+	 * The URL the file is served from after following redirects.
+	 */
+	public URL getLocation()			{	return location;		}
+
+	/**
+	 * The length of the file in bytes, or <code>-1</code> if the server did not say.
+	 */
+	public long getLength()				{	return length;			}
+
+	/**
+	 * The file name from the <code>Content-Disposition</code> header, or <code>null</code> if there is none.
+	 */
+	public String getFileName()			{	return fileName;		}
+
+	public String getETag()				{	return etag;			}
+	public String getLastModified()		{	return lastModified;	}
+
+	/**
+	 * Check to see if the server accepts <code>Range: bytes=</code> requests for the file.
+	 */
+	public boolean acceptsRanges()		{	return acceptsRanges;	}
+
+	@Override
+	public String toString()
+	{
+		return "RemoteMetadata {" +
+				"location:" + location + ", " +
+				"length:" + length + ", " +
+				"fileName:" + fileName + ", " +
+				"etag:" + etag + ", " +
+				"ranges:" + acceptsRanges + "}";
+	}
+
+
+	private static RemoteMetadata fetch(URL url) throws IOException
+	{
+		// The length has to be that of the file itself, not of a gzip encoding of it
+		URLRequestResult result = URLRequestUtils.request(URLRequestUtils.HEAD, url.toString(), null,
+				Collections.singletonMap("Accept-Encoding", "identity"));
+		if( result == null )
+			return null;
+
+		long length = -1;
+		String contentLength = result.getResponseHeader("Content-Length");
+		if( contentLength != null )
+		{
+			try {
+				length = Long.parseLong(contentLength.trim());
+			} catch (NumberFormatException e) {
+				// Leave the length unknown
+			}
+		}
+
+		String ranges = result.getResponseHeader("Accept-Ranges");
+		boolean acceptsRanges = ranges != null && ranges.trim().equalsIgnoreCase("bytes");
+
+		return new RemoteMetadata(url, result.getURL(), length,
+				parseFileName(result.getResponseHeader("Content-Disposition")),
+				result.getResponseHeader("ETag"), result.getResponseHeader("Last-Modified"), acceptsRanges);
+	}
+
+	/**
+	 * Get the <code>filename</code> parameter of a <code>Content-Disposition</code> header.
+	 */
+	static String parseFileName(String header)
+	{
+		String search = "filename=";
+		int index = ( header != null ) ? header.indexOf(search) : -1;
+		if( index == -1 )
+			return null;
+
+		String name = header.substring(index + search.length());
+		if( name.indexOf(';') >= 0 )
+			name = name.substring(0, name.indexOf(';'));
+		name = name.trim();
+		if( name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"") )
+			name = name.substring(1, name.length() - 1);
+		return name.isEmpty() ? null : name;
+	}
+}
@@ -24,7 +24,6 @@ import static weave.utils.TraceUtils.trace;
 
 import java.io.IOException;
 
-import javax.swing.JOptionPane;
 
 import weave.Globals;
 import weave.Settings;
@@ -50,64 +49,72 @@ public class RemoteUtils extends Globals
 	public static final String AWS_URL					= "AnalystURL";
 	public static final String AWS_VERSION				= "AnalystVersion";
 	
-	private static long 	configTimestamp				= 0;
-	private static String[] configFile					= null;
+	private static RemoteManifest configManifest		= null;
+	private static RemoteManifest filesManifest			= null;
 	
-	private static String[] getConfigFile()
+	private static synchronized RemoteManifest getConfigManifest()
 	{
-		String fileContent = null;
-		
-		if( Settings.isOfflineMode() )
-			return null;
-			
-		try {
-			if( configTimestamp < (System.currentTimeMillis() / 1000L) )
-			{
-				fileContent = URLRequestUtils.getContentBody(Settings.UPDATE_CONFIG);
-				configFile = fileContent.split(";");
-				configTimestamp = (System.currentTimeMillis() / 1000L) + (60 * 60 * 6);
-			}
-		} catch (IOException e) {
-			trace(STDERR, e);
-		}
-		return configFile;
+		if( configManifest == null )
+			configManifest = new RemoteManifest(Settings.UPDATE_CONFIG, Settings.CONFIG_MANIFEST_FILE);
+		return configManifest;
+	}
+	
+	private static synchronized RemoteManifest getFilesManifest()
+	{
+		if( filesManifest == null )
+			filesManifest = new RemoteManifest(Settings.UPDATE_FILES, Settings.FILES_MANIFEST_FILE);
+		return filesManifest;
 	}
 	
+	/**
+	 * Look up an entry of the remote <code>config.txt</code>.<br>
+	 * The file is cached on disk and only revalidated with the server
+	 * every {@link RemoteManifest#MAX_AGE} ms.
+	 * 
+	 * @param key The entry name, one of the constants in this class
+	 * @return The value, or <code>null</code> in offline mode or if the file could not be fetched
+	 */
 	@Reflectable
 	public static String getConfigEntry(String key)
 	{
 		if( Settings.isOfflineMode() )
 			return null;
 
-		String[] configFile = getConfigFile();
-		if( configFile == null )
+		RemoteManifest manifest = getConfigManifest();
+		if( !manifest.isAvailable() )
 			return null;
 		
-		for( String s : configFile )
-			if( s.contains(key) )
-				return s.substring(s.indexOf(":")+1).trim();
+		String value = manifest.get(key);
+		if( value != null )
+			return value;
 		
 		BugReportUtils.autoSubmitBugReport(new Exception("Error: \"" + key + "\" does not exist in RemoteUtils"));
 		return null;
 	}
 	
+	/**
+	 * Get the entries of the remote <code>files.txt</code>, cached like {@link #getConfigEntry(String)}.<br>
+	 * No dialog is shown when it can not be fetched, this runs on worker threads and the callers report it.
+	 * 
+	 * @return The file names, or <code>null</code> in offline mode or if the file could not be fetched
+	 */
 	@Reflectable
 	public static String[] getRemoteFiles()
 	{
 		if( Settings.isOfflineMode() )
 			return null;
 		
-		try {
-			return URLRequestUtils.getContentBody(Settings.UPDATE_FILES).split(";");
-		} catch (IOException e) {
-			trace(STDERR, e);
-			JOptionPane.showConfirmDialog(null, 
-				"A connection to the internet could not be established.\n\n" +
-				"Please connect to the internet and try again.", 
-				"No Connection", 
-				JOptionPane.OK_CANCEL_OPTION, JOptionPane.ERROR_MESSAGE);
-		}
-		return null;
+		return getFilesManifest().getEntries();
+	}
+	
+	/**
+	 * Make the next lookups revalidate the cached <code>config.txt</code> and <code>files.txt</code> with the server.
+	 */
+	@Reflectable
+	public static void refreshRemoteManifests()
+	{
+		getConfigManifest().invalidate();
+		getFilesManifest().invalidate();
 	}
 	
 	/**
@@ -0,0 +1,620 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.utils;
+
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import weave.Settings;
+import weave.async.AsyncObserver;
+
+/**
+ * Keeps Weave revisions as their files instead of as whole zip archives.
+ * <br><br>
+ * Every file of every revision is stored once under <code>blobs/</code>, named by
+ * the SHA-1 of its contents, and each revision is a manifest under
+ * <code>revisions/</code> listing the path, size and hash of its files. Nightly
+ * and milestone builds share most of their files, so keeping many revisions
+ * costs little more than keeping one, and deploying a revision over another
+ * only writes the files that differ.
+ * <br><br>
+ * The manifests are read once when the store is opened and kept in memory.
+ * The monitor of the store only guards that index, archives are hashed and
+ * their files stored without holding it.
+ */
+public class RevisionStore
+{
+	public static final String BLOBS_DIRECTORY_NAME		= "blobs";
+	public static final String REVISIONS_DIRECTORY_NAME	= "revisions";
+	public static final String MANIFEST_EXTENSION		= ".rev";
+
+	private static final String HEADER = "# Weave revision";
+	private static final String DIRECTORY = "-";
+	private static final int BUFFER_SIZE = 64 * TransferUtils.KB;
+
+	private static RevisionStore _instance = null;
+
+	private final File root;
+	private final File blobs;
+	private final File revisions;
+	private final Map<String, Revision> index = new HashMap<String, Revision>();
+	// Hashes of blobs stored by an add() whose manifest is not published yet, once per use
+	private final List<String> pending = new ArrayList<String>();
+
+	/**
+	 * One file or directory of a revision.
+	 */
+	public static class Entry
+	{
+		private final String path;
+		private final String hash;
+		private final long size;
+
+		Entry(String path, String hash, long size)
+		{
+			this.path = path;
+			this.hash = hash;
+			this.size = size;
+		}
+
+		public String getPath()			{	return path;					}
+		public String getHash()			{	return hash;					}
+		public long getSize()			{	return size;					}
+		public boolean isDirectory()	{	return hash == null;			}
+	}
+
+	/**
+	 * A revision in the store, named after the zip archive it came from.
+	 */
+	public static class Revision
+	{
+		private final String name;
+		private final long date;
+		private final List<Entry> entries;
+		private final long size;
+
+		Revision(String name, long date, List<Entry> entries)
+		{
+			long s = 0;
+			for( Entry e : entries )
+				s += e.size;
+
+			this.name = name;
+			this.date = date;
+			this.entries = Collections.unmodifiableList(entries);
+			this.size = s;
+		}
+
+		public String getName()			{	return name;		}
+
+		/**
+		 * The time the revision was downloaded, in milliseconds since the epoch.
+		 */
+		public long getDate()			{	return date;		}
+
+		/**
+		 * The total size of the files of the revision.
+		 */
+		public long getSize()			{	return size;		}
+		public List<Entry> getEntries()	{	return entries;		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+
+	/**
+	 * Get the store kept in {@link Settings#REVISION_STORE_DIRECTORY}.
+	 */
+	synchronized public static RevisionStore getStore()
+	{
+		if( _instance == null )
+			_instance = new RevisionStore(Settings.REVISION_STORE_DIRECTORY);
+		return _instance;
+	}
+
+	/**
+	 * Open a store, reading the manifests of its revisions.
+	 *
+	 * @param root The directory of the store
+	 */
+	public RevisionStore(File root)
+	{
+		this.root = root;
+		this.blobs = new File(root, BLOBS_DIRECTORY_NAME);
+		this.revisions = new File(root, REVISIONS_DIRECTORY_NAME);
+
+		File[] manifests = revisions.listFiles();
+		if( manifests == null )
+			return;
+
+		for( File m : manifests )
+		{
+			if( !m.getName().endsWith(MANIFEST_EXTENSION) )
+				continue;
+
+			try {
+				Revision r = readManifest(m);
+				index.put(r.getName(), r);
+			} catch (IOException e) {
+				trace(STDERR, e);
+			}
+		}
+	}
+
+	/**
+	 * Get every revision, newest first.
+	 */
+	synchronized public List<Revision> getRevisions()
+	{
+		List<Revision> list = new ArrayList<Revision>(index.values());
+		Collections.sort(list, new Comparator<Revision>() {
+			@Override
+			public int compare(Revision o1, Revision o2) {
+				if( o1.getDate() < o2.getDate() ) return 1;
+				if( o1.getDate() > o2.getDate() ) return -1;
+				return 0;
+			}
+		});
+		return list;
+	}
+
+	synchronized public Revision getRevision(String name)
+	{
+		return index.get(name);
+	}
+
+	synchronized public boolean contains(String name)
+	{
+		return index.containsKey(name);
+	}
+
+	/**
+	 * Add the files of a zip archive to the store as a revision named after the archive.
+	 * An existing revision of the same name is replaced. The archive itself is left in place.
+	 * <br><br>
+	 * The archive is hashed and its files stored without holding the store's monitor,
+	 * which is only taken to publish the manifest, so listing the revisions does not
+	 * wait for an import.
+	 *
+	 * @param zip The archive
+	 * @return The new revision
+	 * @throws IOException
+	 */
+	public Revision add(File zip) throws IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		ZipFile zipFile = new ZipFile(zip);
+
+		try {
+			Enumeration<? extends ZipEntry> e = zipFile.entries();
+			while( e.hasMoreElements() )
+			{
+				ZipEntry ze = e.nextElement();
+				if( ze.isDirectory() ) {
+					entries.add(new Entry(ze.getName(), null, 0));
+					continue;
+				}
+
+				InputStream in = zipFile.getInputStream(ze);
+				try {
+					entries.add(storeBlob(ze.getName(), in));
+				} finally {
+					in.close();
+				}
+			}
+
+			Revision r = new Revision(zip.getName(), zip.lastModified(), entries);
+			synchronized( this ) {
+				writeManifest(r);
+				index.put(r.getName(), r);
+			}
+			return r;
+		} finally {
+			zipFile.close();
+			synchronized( this ) {
+				for( Entry entry : entries )
+					if( !entry.isDirectory() )
+						pending.remove(entry.getHash());
+			}
+		}
+	}
+
+	/**
+	 * Remove a revision and the files no other revision uses.
+	 *
+	 * @param name The name of the revision
+	 * @return <code>true</code> if the revision was in the store
+	 */
+	synchronized public boolean remove(String name)
+	{
+		if( index.remove(name) == null )
+			return false;
+
+		new File(revisions, name + MANIFEST_EXTENSION).delete();
+		collectGarbage();
+		return true;
+	}
+
+	/**
+	 * Write the files of a revision to a directory.
+	 * <br><br>
+	 * The revision is written to a hidden staging sibling of the directory and then
+	 * moved in with {@link FileUtils#moveContents(File, File)}, which swaps existing
+	 * folders in by rename. A cancelled or failed checkout leaves the deployed files
+	 * as they were. A file that is already deployed with the same contents is hard
+	 * linked into the staging directory where the file system allows it, so mostly
+	 * the files that differ are written. Files in the directory that are not part of
+	 * the revision are kept. Like an extracted archive, a revision with a single top
+	 * level folder is written without it.
+	 *
+	 * @param name The name of the revision
+	 * @param destination The directory to write to
+	 * @param observer The observer to provide stats to, may be <code>null</code>
+	 * @return The result status <code>COMPLETE, CANCELLED, FAILED</code>
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int checkout(String name, File destination, AsyncObserver observer) throws IOException, InterruptedException
+	{
+		Revision r = getRevision(name);
+		if( r == null )
+			return TransferUtils.FAILED;
+
+		File staging = new File(destination.getAbsoluteFile().getParentFile(), "." + destination.getName() + ".staging");
+		FileUtils.recursiveDelete(staging);
+		staging.mkdirs();
+
+		try {
+			int status = stage(r, destination, staging, observer);
+			if( status != TransferUtils.COMPLETE )
+				return status;
+			return FileUtils.moveContents(staging, destination);
+		} finally {
+			FileUtils.recursiveDelete(staging);
+		}
+	}
+
+	/**
+	 * Write the files of a revision to the staging directory of a checkout.
+	 */
+	private int stage(Revision r, File destination, File staging, AsyncObserver observer) throws IOException, InterruptedException
+	{
+		String prefix = getCommonFolder(r);
+		String canonical = staging.getCanonicalPath() + File.separator;
+
+		if( observer != null ) {
+			observer.info.min = 0;
+			observer.info.cur = 0;
+			observer.info.percent = 0;
+			observer.info.max = r.getSize();
+		}
+		TransferProgress progress = new TransferProgress(observer, r.getSize(), 0);
+
+		for( Entry e : r.getEntries() )
+		{
+			if( Settings.transferCancelled )
+				return TransferUtils.CANCELLED;
+			if( Thread.currentThread().isInterrupted() )
+				throw new InterruptedException();
+
+			String path = e.getPath().substring(prefix.length());
+			if( path.isEmpty() )
+				continue;
+
+			File target = new File(staging, path);
+			// Don't let an entry like ../../file escape the destination
+			if( !target.getCanonicalPath().startsWith(canonical) && !(target.getCanonicalPath() + File.separator).equals(canonical) )
+				throw new IOException("Entry " + e.getPath() + " is outside of " + destination);
+
+			if( e.isDirectory() ) {
+				target.mkdirs();
+				continue;
+			}
+
+			target.getParentFile().mkdirs();
+			File deployed = new File(destination, path);
+			if( !isSame(deployed, e) || !link(deployed, target) )
+				Files.copy(getBlob(e.getHash()).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			if( e.getSize() > 0 )
+				progress.add((int) Math.min(Integer.MAX_VALUE, e.getSize()));
+		}
+		return TransferUtils.COMPLETE;
+	}
+
+	/**
+	 * Delete the files no revision uses.
+	 *
+	 * @return The number of bytes freed
+	 */
+	synchronized public long collectGarbage()
+	{
+		Set<String> used = new HashSet<String>(pending);
+		for( Revision r : index.values() )
+			for( Entry e : r.getEntries() )
+				if( !e.isDirectory() )
+					used.add(e.getHash());
+
+		long freed = 0;
+		File[] dirs = blobs.listFiles();
+		if( dirs == null )
+			return 0;
+
+		for( File dir : dirs )
+		{
+			// Skips the temporary files of blobs being stored
+			File[] files = dir.listFiles();
+			if( files == null )
+				continue;
+
+			for( File f : files )
+			{
+				if( used.contains(dir.getName() + f.getName()) )
+					continue;
+
+				long length = f.length();
+				if( f.delete() )
+					freed += length;
+			}
+			dir.delete();
+		}
+		return freed;
+	}
+
+	/**
+	 * Get the disk space the store uses for files.
+	 */
+	synchronized public long getSize()
+	{
+		long size = 0;
+		File[] dirs = blobs.listFiles();
+		if( dirs != null )
+			for( File dir : dirs )
+			{
+				File[] files = dir.listFiles();
+				if( files != null )
+					for( File f : files )
+						size += f.length();
+			}
+		return size;
+	}
+
+	public File getDirectory()
+	{
+		return root;
+	}
+
+
+	private File getBlob(String hash)
+	{
+		return new File(new File(blobs, hash.substring(0, 2)), hash.substring(2));
+	}
+
+	/**
+	 * Copy a stream to a temporary file while hashing it, then keep it as
+	 * the blob of that hash unless the store already has one.
+	 */
+	private Entry storeBlob(String path, InputStream in) throws IOException
+	{
+		blobs.mkdirs();
+		File tmp = File.createTempFile("blob", ".tmp", blobs);
+		MessageDigest digest = newDigest();
+		long size = 0;
+
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int n;
+				while( (n = in.read(buf)) != -1 ) {
+					digest.update(buf, 0, n);
+					out.write(buf, 0, n);
+					size += n;
+				}
+			} finally {
+				out.close();
+			}
+
+			String hash = toHex(digest.digest());
+			File blob = getBlob(hash);
+
+			// A rename under the monitor, so garbage collection can't remove the
+			// blob or its folder in between, and keeps it from now on
+			synchronized( this ) {
+				if( !blob.exists() ) {
+					blob.getParentFile().mkdirs();
+					move(tmp, blob);
+				}
+				pending.add(hash);
+			}
+			return new Entry(path, hash, size);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Try to hard link an existing file to a new name.
+	 *
+	 * @return <code>true</code> if the link was made, <code>false</code> if the file has to be copied
+	 */
+	private static boolean link(File existing, File link)
+	{
+		try {
+			Files.createLink(link.toPath(), existing.toPath());
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Check to see if a file already has the contents of an entry.
+	 * The size is compared first, so most changed files are never read.
+	 */
+	private static boolean isSame(File f, Entry e) throws IOException
+	{
+		if( !f.isFile() || f.length() != e.getSize() )
+			return false;
+
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			int n;
+			while( (n = in.read(buf)) != -1 )
+				digest.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest()).equals(e.getHash());
+	}
+
+	/**
+	 * Get the top level folder every entry is in, as <code>folder/</code>,
+	 * or the empty string if there is more than one top level entry.
+	 */
+	private static String getCommonFolder(Revision r)
+	{
+		String folder = null;
+		for( Entry e : r.getEntries() )
+		{
+			int slash = e.getPath().indexOf('/');
+			if( slash < 0 )
+				return "";
+
+			String top = e.getPath().substring(0, slash + 1);
+			if( folder == null )
+				folder = top;
+			else if( !folder.equals(top) )
+				return "";
+		}
+		return ( folder == null ) ? "" : folder;
+	}
+
+	private Revision readManifest(File m) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(m), "UTF-8"));
+		try {
+			if( !HEADER.equals(reader.readLine()) )
+				throw new IOException(m.getName() + " is not a revision manifest");
+
+			String name = reader.readLine();
+			long date = Long.parseLong(reader.readLine());
+			List<Entry> entries = new ArrayList<Entry>();
+
+			String line;
+			while( (line = reader.readLine()) != null )
+			{
+				// hash <tab> size <tab> path, paths may contain spaces
+				String[] parts = line.split("\t", 3);
+				if( parts.length != 3 )
+					throw new IOException(m.getName() + " has a bad entry: " + line);
+
+				String hash = parts[0].equals(DIRECTORY) ? null : parts[0];
+				entries.add(new Entry(parts[2], hash, Long.parseLong(parts[1])));
+			}
+			return new Revision(name, date, entries);
+		} catch (NumberFormatException e) {
+			throw new IOException(m.getName() + " has a bad number", e);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void writeManifest(Revision r) throws IOException
+	{
+		revisions.mkdirs();
+		File manifest = new File(revisions, r.getName() + MANIFEST_EXTENSION);
+		File tmp = new File(revisions, r.getName() + MANIFEST_EXTENSION + ".tmp");
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			out.write(HEADER + "\n");
+			out.write(r.getName() + "\n");
+			out.write(r.getDate() + "\n");
+			for( Entry e : r.getEntries() )
+				out.write((e.isDirectory() ? DIRECTORY : e.getHash()) + "\t" + e.getSize() + "\t" + e.getPath() + "\n");
+		} finally {
+			out.close();
+		}
+		move(tmp, manifest);
+	}
+
+	private static void move(File from, File to) throws IOException
+	{
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for( byte b : bytes )
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
@@ -19,85 +19,126 @@
 
 package weave.utils;
 
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
 import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
-
+import java.util.List;
 
 import weave.Globals;
 import weave.Settings;
+import weave.utils.RevisionStore.Revision;
 
+/**
+ * The downloaded Weave revisions.
+ * <br><br>
+ * Finished downloads in {@link Settings#WEAVE_BINARIES_DIRECTORY} are moved into
+ * the {@link RevisionStore} by {@link #importRevisions()}, after which only the
+ * files that differ from other revisions take up space. Listing the revisions only
+ * reads the store, so it is cheap enough for the event dispatch thread.
+ */
 public class Revisions extends Globals
 {
+	/**
+	 * Skips unfinished downloads, their journals and the store itself.
+	 */
+	private static final FileFilter REVISION_FILTER = new FileFilter() {
+		@Override
+		public boolean accept(File f) {
+			return f.isFile() && !DownloadJournal.isJournal(f) && !DownloadJournal.isJournaled(f);
+		}
+	};
+	
+	/**
+	 * Move the downloaded zip archives into the store.<br>
+	 * An archive that can not be read is left where it is.
+	 * <br><br>
+	 * This reads every archive, so call it from a background thread
+	 * once a download completes.
+	 */
+	synchronized public static void importRevisions()
+	{
+		// A download that is still being written is imported next time
+		if( Settings.transferLocked )
+			return;
+		
+		File[] files = Settings.WEAVE_BINARIES_DIRECTORY.listFiles(REVISION_FILTER);
+		if( files == null )
+			return;
+		
+		for( File f : files )
+		{
+			try {
+				if( !ZipUtils.isZip(f) )
+					continue;
+				
+				RevisionStore.getStore().add(f);
+				f.delete();
+			} catch (IOException e) {
+				trace(STDERR, e);
+			}
+		}
+	}
+	
 	public static int getNumberOfRevisions()
 	{
-		if( !Settings.WEAVE_BINARIES_DIRECTORY.exists() )
-			return 0;
-
-		return Settings.WEAVE_BINARIES_DIRECTORY.list().length;
+		return getRevisionsList().size();
 	}
 	
+	/**
+	 * Get the disk space the revisions use.
+	 */
 	public static long getSizeOfRevisions()
 	{
-		if( !Settings.WEAVE_BINARIES_DIRECTORY.exists() )
-			return 0;
-		
-		long size = 0;
-		File[] files = Settings.WEAVE_BINARIES_DIRECTORY.listFiles();
-		
-		for( int i = 0; i < files.length; i++ )
-			size += files[i].length();
-		
-		return size;
+		return RevisionStore.getStore().getSize();
 	}
 
-	public static ArrayList<File> getRevisionsList()
+	/**
+	 * Get the revisions, newest first.
+	 */
+	public static ArrayList<Revision> getRevisionsList()
 	{
-		File[] files = Settings.WEAVE_BINARIES_DIRECTORY.listFiles();
-		ArrayList<File> sortedFiles = new ArrayList<File>();
-		
-		for( int i = 0; i < files.length; i++ )
-			sortedFiles.add(files[i]);
+		return new ArrayList<Revision>(RevisionStore.getStore().getRevisions());
+	}
+	
+	/**
+	 * Check to see if a revision has been downloaded.
+	 * 
+	 * @param fileName The file name of the revision's zip archive
+	 */
+	public static boolean hasRevision(String fileName)
+	{
+		return new File(Settings.WEAVE_BINARIES_DIRECTORY, fileName).exists() || RevisionStore.getStore().contains(fileName);
+	}
+	
+	public static boolean deleteRevision(String name)
+	{
+		File zip = new File(Settings.WEAVE_BINARIES_DIRECTORY, name);
+		boolean ret = RevisionStore.getStore().remove(name);
 		
-		Collections.sort(sortedFiles, new Comparator<File>() {
-			@Override
-			public int compare(File o1, File o2) {
-				if( o1.lastModified() < o2.lastModified() ) return 1;
-				if( o1.lastModified() > o2.lastModified() ) return -1;
-				return 0;
-			}
-		});
-		return sortedFiles;
+		if( zip.exists() )
+			ret |= zip.delete();
+		return ret;
 	}
 	
 	public static boolean pruneRevisions()
 	{
-		int i = 0;
 		boolean ret = true;
-		File file = null;
-		ArrayList<File> files = getRevisionsList();
-		Iterator<File> it = files.iterator();
-		long[] mods = new long[files.size()];
+		List<Revision> revisions = getRevisionsList();
+		int count = revisions.size();
 		
-		while( it.hasNext() )	{ mods[i++] = it.next().lastModified();	}	
-		
-		i = 0;
-		it = files.iterator();
-		
-		while( it.hasNext() ) 
+		for( int i = 0; i < count; i++ )
 		{
-			file = it.next();
-			
-			// Save these files
-			if( i == 0 || i == 1 )						{	i++;	continue;	}
-			if( i == (Math.ceil((mods.length-2)/2)+2) )	{	i++;	continue;	}
-			if( i == mods.length-2 )					{	i++;	continue;	}
+			// Save these revisions
+			if( i == 0 || i == 1 )						continue;
+			if( i == (Math.ceil((count-2)/2)+2) )		continue;
+			if( i == count-2 )							continue;
 			
 			// Delete the others
-			ret |= file.delete();
-			i++;
+			ret |= RevisionStore.getStore().remove(revisions.get(i).getName());
 		}
 		return ret;
 	}
@@ -0,0 +1,441 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A small key/value file that replaces the serialized <code>HashMap</code>s
+ * the settings used to be saved as.
+ * <br><br>
+ * The file starts with a header holding a magic number and the format version,
+ * followed by one record per change. Each record carries a CRC32 of its contents,
+ * so a record cut short by a crash is detected and ignored when the file is read.
+ * Saving only appends records for the keys whose value changed, and once the file
+ * holds many more records than keys it is rewritten to a temporary file and
+ * renamed over the old one.
+ * <br><br>
+ * Values can be <code>null</code>, {@link Boolean}, {@link Integer}, {@link Long},
+ * {@link Double} or {@link String}. Enums are stored by name.
+ */
+public class SettingsStore
+{
+	public static final int MAGIC = 0x57535354;		// "WSST"
+	public static final int VERSION = 1;
+
+	private static final byte OP_PUT	= 1;
+	private static final byte OP_REMOVE	= 2;
+
+	private static final byte T_NULL	= 0;
+	private static final byte T_BOOLEAN	= 1;
+	private static final byte T_INT		= 2;
+	private static final byte T_LONG	= 3;
+	private static final byte T_DOUBLE	= 4;
+	private static final byte T_STRING	= 5;
+
+	private static final int MAX_RECORD_SIZE = 1024 * 1024;
+	private static final int COMPACT_SLACK = 32;
+
+	private final File file;
+	private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+	private int records = 0;
+	private boolean damaged = false;
+
+	private SettingsStore(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Open a store, reading it if the file exists.<br>
+	 * A file without a complete header, as left by a crash, is rewritten as an empty store.
+	 *
+	 * @param file The store file
+	 * @return The store
+	 * @throws IOException If the file has a newer version or can not be read or rewritten
+	 */
+	public static SettingsStore open(File file) throws IOException
+	{
+		return open(file, null);
+	}
+
+	/**
+	 * Open a store, filling it from an older file written with <code>ObjectOutputStream</code>
+	 * if the store does not exist yet or has no complete header. The old file is left in place.
+	 *
+	 * @param file The store file
+	 * @param legacy The serialized <code>Map</code> to migrate from, may be <code>null</code>
+	 * @return The store
+	 * @throws IOException
+	 */
+	public static SettingsStore open(File file, File legacy) throws IOException
+	{
+		SettingsStore s = new SettingsStore(file);
+
+		if( file.exists() && s.read() )
+			return s;
+
+		if( legacy != null && legacy.exists() )
+		{
+			Map<String, Object> old = new LinkedHashMap<String, Object>();
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacy)));
+			try {
+				flatten("", in.readObject(), old);
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Could not read " + legacy.getName(), e);
+			} finally {
+				in.close();
+			}
+			s.values.putAll(old);
+			s.compact();
+		}
+		else if( file.exists() )
+			s.compact();
+		return s;
+	}
+
+	/**
+	 * Nested maps are stored as <code>outer/inner</code> keys.
+	 */
+	private static void flatten(String prefix, Object o, Map<String, Object> out)
+	{
+		if( o instanceof Map<?, ?> )
+		{
+			for( Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet() )
+			{
+				String key = prefix + e.getKey();
+				if( e.getValue() instanceof Map<?, ?> )
+					flatten(key + "/", e.getValue(), out);
+				else
+					out.put(key, normalize(e.getValue()));
+			}
+		}
+	}
+
+	private static Object normalize(Object o)
+	{
+		if( o instanceof Enum<?> )
+			return ((Enum<?>) o).name();
+		if( o == null || o instanceof Boolean || o instanceof Integer || o instanceof Long || o instanceof Double || o instanceof String )
+			return o;
+		throw new IllegalArgumentException("Can not store a " + o.getClass().getName());
+	}
+
+
+	synchronized public Object get(String key)
+	{
+		return values.get(key);
+	}
+
+	synchronized public boolean contains(String key)
+	{
+		return values.containsKey(key);
+	}
+
+	/**
+	 * Get a copy of every key and value.
+	 */
+	synchronized public Map<String, Object> getAll()
+	{
+		return Collections.unmodifiableMap(new HashMap<String, Object>(values));
+	}
+
+	/**
+	 * Get the values stored under <code>group/</code>, keyed without the prefix.
+	 *
+	 * @param group The group name
+	 * @return The values of the group, empty if there are none
+	 */
+	synchronized public Map<String, Object> getGroup(String group)
+	{
+		String prefix = group + "/";
+		Map<String, Object> map = new HashMap<String, Object>();
+		for( Map.Entry<String, Object> e : values.entrySet() )
+			if( e.getKey().startsWith(prefix) )
+				map.put(e.getKey().substring(prefix.length()), e.getValue());
+		return map;
+	}
+
+	public void put(String key, Object value) throws IOException
+	{
+		putAll(Collections.singletonMap(key, value));
+	}
+
+	/**
+	 * Store several values.<br>
+	 * Only the values that differ from the stored ones are written,
+	 * all in one append to the file. Nothing changes in memory unless the write succeeds.
+	 *
+	 * @param map The keys and values to store
+	 * @throws IOException
+	 */
+	synchronized public void putAll(Map<String, ?> map) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Map<String, Object> changed = new LinkedHashMap<String, Object>();
+
+		for( Map.Entry<String, ?> e : map.entrySet() )
+		{
+			Object value = normalize(e.getValue());
+			if( values.containsKey(e.getKey()) && equal(values.get(e.getKey()), value) )
+				continue;
+
+			writeRecord(buffer, OP_PUT, e.getKey(), value);
+			changed.put(e.getKey(), value);
+		}
+		if( changed.isEmpty() )
+			return;
+
+		if( needsCompaction(changed.size()) ) {
+			Map<String, Object> next = new LinkedHashMap<String, Object>(values);
+			next.putAll(changed);
+			compact(next);
+		}
+		else
+			append(buffer, changed.size());
+		values.putAll(changed);
+	}
+
+	synchronized public void remove(String key) throws IOException
+	{
+		if( !values.containsKey(key) )
+			return;
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		writeRecord(buffer, OP_REMOVE, key, null);
+
+		if( needsCompaction(1) ) {
+			Map<String, Object> next = new LinkedHashMap<String, Object>(values);
+			next.remove(key);
+			compact(next);
+		}
+		else
+			append(buffer, 1);
+		values.remove(key);
+	}
+
+	/**
+	 * Rewrite the file with one record per key.
+	 *
+	 * @throws IOException
+	 */
+	synchronized public void compact() throws IOException
+	{
+		compact(values);
+	}
+
+	/**
+	 * Rewrite the file with the given contents, which become the stored values once this returns.
+	 */
+	private void compact(Map<String, Object> contents) throws IOException
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		if( parent != null && !parent.exists() )
+			parent.mkdirs();
+
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		OutputStream out = new BufferedOutputStream(fos);
+		try {
+			writeHeader(out);
+			for( Map.Entry<String, Object> e : contents.entrySet() )
+				writeRecord(out, OP_PUT, e.getKey(), e.getValue());
+			
+			// On disk before the rename, so a crash can't leave an empty file in place of the old one
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		records = contents.size();
+		damaged = false;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+
+	/**
+	 * Check to see if the file should be rewritten instead of appending <code>count</code> more records.
+	 */
+	private boolean needsCompaction(int count)
+	{
+		return damaged || !file.exists() || records + count > values.size() * 2 + COMPACT_SLACK;
+	}
+
+	private void append(ByteArrayOutputStream buffer, int count) throws IOException
+	{
+		// One write call, so a record is either fully appended or cut short and dropped on read
+		OutputStream out = new FileOutputStream(file, true);
+		try {
+			buffer.writeTo(out);
+		} finally {
+			out.close();
+		}
+		records += count;
+	}
+
+	/**
+	 * @return <code>false</code> if the header is cut short or wrong, then nothing is read
+	 */
+	private boolean read() throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int magic, version;
+			try {
+				magic = in.readInt();
+				version = in.readUnsignedShort();
+			} catch (EOFException e) {
+				return false;
+			}
+			if( magic != MAGIC )
+				return false;
+			if( version > VERSION )
+				throw new IOException(file.getName() + " has version " + version + ", only " + VERSION + " is supported");
+
+			while( true )
+			{
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+
+				// Anything after a bad record is dropped and the next write compacts the file
+				damaged = true;
+				if( length <= 0 || length > MAX_RECORD_SIZE )
+					break;
+
+				byte[] payload = new byte[length];
+				CRC32 crc = new CRC32();
+				try {
+					in.readFully(payload);
+					crc.update(payload);
+					if( in.readInt() != (int) crc.getValue() )
+						break;
+				} catch (EOFException e) {
+					// The last record was not written completely
+					break;
+				}
+				damaged = false;
+				apply(payload);
+				records++;
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	private void apply(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		String key = in.readUTF();
+
+		if( op == OP_REMOVE ) {
+			values.remove(key);
+			return;
+		}
+
+		switch( in.readByte() )
+		{
+			case T_NULL:	values.put(key, null);					break;
+			case T_BOOLEAN:	values.put(key, in.readBoolean());		break;
+			case T_INT:		values.put(key, in.readInt());			break;
+			case T_LONG:	values.put(key, in.readLong());			break;
+			case T_DOUBLE:	values.put(key, in.readDouble());		break;
+			case T_STRING:	values.put(key, in.readUTF());			break;
+			default:		throw new IOException("Unknown value type for " + key);
+		}
+	}
+
+	private static void writeHeader(OutputStream out) throws IOException
+	{
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.flush();
+	}
+
+	private static void writeRecord(OutputStream out, byte op, String key, Object value) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+
+		payload.writeByte(op);
+		payload.writeUTF(key);
+
+		if( op == OP_PUT )
+		{
+			if( value == null )					payload.writeByte(T_NULL);
+			else if( value instanceof Boolean )	{ payload.writeByte(T_BOOLEAN);	payload.writeBoolean((Boolean) value);	}
+			else if( value instanceof Integer )	{ payload.writeByte(T_INT);		payload.writeInt((Integer) value);		}
+			else if( value instanceof Long )	{ payload.writeByte(T_LONG);	payload.writeLong((Long) value);		}
+			else if( value instanceof Double )	{ payload.writeByte(T_DOUBLE);	payload.writeDouble((Double) value);	}
+			else								{ payload.writeByte(T_STRING);	payload.writeUTF((String) value);		}
+		}
+		payload.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(bytes.size());
+		bytes.writeTo(data);
+		data.writeInt((int) crc.getValue());
+		data.flush();
+	}
+
+	private static boolean equal(Object a, Object b)
+	{
+		return ( a == null ) ? b == null : a.equals(b);
+	}
+}
@@ -27,6 +27,7 @@ import java.io.IOException;
 import weave.Globals;
 import weave.Settings;
 import weave.async.AsyncFunction;
+import weave.configs.Config;
 import weave.managers.ConfigManager;
 
 public class StatsUtils extends Globals
@@ -70,8 +71,8 @@ public class StatsUtils extends Globals
 			final URLRequestParams params = new URLRequestParams();
 			params.add("uniqueID", 	Settings.UNIQUE_ID);
 			params.add("os", 		Settings.getExactOS());
-			params.add("server", 	(String) ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), "getConfigName", "NONE"));
-			params.add("database", 	(String) ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveDatabase(), "getConfigName", "NONE"));
+			params.add("server", 	ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), Config.GET_CONFIG_NAME, "NONE"));
+			params.add("database", 	ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveDatabase(), Config.GET_CONFIG_NAME, "NONE"));
 			
 			AsyncFunction task = new AsyncFunction() {
 				@Override
@@ -19,10 +19,7 @@
 
 package weave.utils;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -69,10 +66,10 @@ public class TraceUtils extends Globals
 		}
 	};
 	
-	private static String s = null;
-	private static Date d = new Date();
+	private static final int FLUSH_TIMEOUT = 5000;
+	
 	private static DateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-	private static DateFormat tf = new SimpleDateFormat("[hh:mm:ss.SSS a]");
+	private static LogWriter writer = new LogWriter();
 	
 	private static ArrayList<String> pipes = new ArrayList<String>( Arrays.asList("stdin", "stdout", "stderr") );
 	
@@ -100,103 +97,42 @@ public class TraceUtils extends Globals
 	 * 
 	 * @param pipe The log file pipe to print to. {@link #STDOUT} or {@link #STDERR}
 	 * @param e The throwable exception
-	 * @return <code>true</code> if the stack trace was written successfully, <code>false</code> otherwise
+	 * @return <code>true</code> if the stack trace was queued successfully, <code>false</code> otherwise
 	 */
-	synchronized public static boolean trace( int pipe, Throwable e )
+	public static boolean trace( int pipe, Throwable e )
 	{
 		String dump = getStackTrace(e);
 		return traceln(pipe, LEVEL.ERROR, dump);
 	}
 
-	synchronized public static boolean trace( int pipe, LEVEL lvl, String dump )
+	public static boolean trace( int pipe, LEVEL lvl, String dump )
 	{
-		try {
-			d = new Date();
-			File logFile = getLogFile(pipe);
-			FileWriter fw = new FileWriter(logFile, true);
-			BufferedWriter bw = new BufferedWriter(fw);
-			
-			if( !logFile.getParentFile().exists() )		logFile.getParentFile().mkdirs();
-			if( !logFile.exists() )						logFile.createNewFile();
-			
-			s = Settings.N_L + tf.format(d) + " " + lvl + " " + dump;
-			
-			bw.write(s);
-			bw.flush();
-			bw.close();
-			
-			if( pipe == STDOUT )		System.out.printf(s);
-			else if(pipe == STDERR )	System.err.printf(s);
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
+		writer.offer(new LogWriter.Record(pipe, System.currentTimeMillis(), lvl, dump, false));
 		return true;
 	}
 	
-	synchronized public static boolean traceln( int pipe, LEVEL lvl, List<String> dump)
+	public static boolean traceln( int pipe, LEVEL lvl, List<String> dump)
 	{
-		try {
-			d = new Date();
-			File logFile = getLogFile(pipe);
-			FileWriter fw = new FileWriter(logFile, true);
-			BufferedWriter bw = new BufferedWriter(fw);
-	
-			if( !logFile.getParentFile().exists() )	logFile.getParentFile().mkdirs();
-			if( !logFile.exists() )					logFile.createNewFile();
-			
-			for( String line : dump )
-			{
-				s = Settings.N_L + tf.format(d) + " " + lvl + " " + line;
-				bw.write(s);
-				
-				if( pipe == STDOUT )		System.out.println(s);
-				else if( pipe == STDERR )	System.err.println(s);
-			}
-			bw.flush();
-			bw.close();
-		
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
+		long time = System.currentTimeMillis();
+		for( String line : dump )
+			writer.offer(new LogWriter.Record(pipe, time, lvl, line, true));
 		return true;
 	}
 
 	/**
 	 * Append a string dump to the end of the log file specified by {@code pipe}.<br>
 	 * This will prepend a date and timestamp before your string dump.
+	 * <br><br>
+	 * The dump is written by a background thread, see {@link #flush()}.
 	 * 
 	 * @param pipe The {@link #STDOUT} or {@link #STDERR} pipe
 	 * @param lvl The severity level of dump defined by {@link #LEVEL}
 	 * @param dump The string to append to the file
 	 * @return {@code true} if succeeded, {@code false} otherwise
 	 */
-	synchronized public static boolean traceln( int pipe, LEVEL lvl, String dump )
+	public static boolean traceln( int pipe, LEVEL lvl, String dump )
 	{
-		try {
-			d = new Date();
-			File logFile = getLogFile(pipe);
-			FileWriter fw = new FileWriter(logFile, true);
-			BufferedWriter bw = new BufferedWriter(fw);
-
-			if( !logFile.getParentFile().exists() )		logFile.getParentFile().mkdirs();
-			if( !logFile.exists() )						logFile.createNewFile();
-			
-			s = Settings.N_L + tf.format(d) + " " + lvl + " " + dump; 
-			
-			bw.write(s);
-			bw.flush();
-			bw.close();
-			
-			if( pipe == STDOUT )		System.out.printf(s);
-			else if( pipe == STDERR )	System.err.printf(s);
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
+		writer.offer(new LogWriter.Record(pipe, System.currentTimeMillis(), lvl, dump, false));
 		return true;
 	}
 	
@@ -207,31 +143,22 @@ public class TraceUtils extends Globals
 	 * @param dump The string to append to the file
 	 * @return {@code true} if succeeded, {@code false} otherwise
 	 */
-	synchronized public static boolean put( int pipe, String dump )
+	public static boolean put( int pipe, String dump )
 	{
-		try {
-			d = new Date();
-			File logFile = getLogFile(pipe);
-			FileWriter fw = new FileWriter(logFile, true);
-			BufferedWriter bw = new BufferedWriter(fw);
-
-			if( !logFile.getParentFile().exists() )		logFile.getParentFile().mkdirs();
-			if( !logFile.exists() )						logFile.createNewFile();
-			
-			bw.write(dump);
-			bw.flush();
-			bw.close();
-		
-			if( pipe == STDOUT )		System.out.printf(dump);
-			else if( pipe == STDERR )	System.err.printf(dump);
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
+		writer.offer(new LogWriter.Record(pipe, System.currentTimeMillis(), null, dump, false));
 		return true;
 	}
 	
+	/**
+	 * Wait until everything traced so far has been written to the console and the log files.
+	 * 
+	 * @return {@code true} if everything was written, {@code false} if the writer did not catch up in time
+	 */
+	public static boolean flush()
+	{
+		return writer.flush(FLUSH_TIMEOUT);
+	}
+	
 	/**
 	 * Get the log file as a file that will be used for writing log information to.
 	 * 
@@ -240,6 +167,22 @@ public class TraceUtils extends Globals
 	 */
 	public static File getLogFile( int pipe )
 	{
-		return new File(Settings.LOGS_DIRECTORY, pipes.get(pipe) + "." + df.format(d) + ".log" );
+		return getLogFile(pipe, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Get the log file for a pipe on the day of the given time.
+	 * 
+	 * @param pipe The {@link #STDOUT} or {@link #STDERR} pipe
+	 * @param time The time in milliseconds
+	 * @return The log file associated with the {@code pipe}
+	 */
+	public static File getLogFile( int pipe, long time )
+	{
+		String day;
+		synchronized( df ) {
+			day = df.format(new Date(time));
+		}
+		return new File(Settings.LOGS_DIRECTORY, pipes.get(pipe) + "." + day + ".log" );
 	}
 }
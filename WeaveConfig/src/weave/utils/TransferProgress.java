@@ -0,0 +1,89 @@
+/*
+    Weave (Web-based Analysis and Visualization Environment)
+    Copyright (C) 2008-2015 University of Massachusetts Lowell
+
+    This file is a part of Weave.
+
+    Weave is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License, Version 3,
+    as published by the Free Software Foundation.
+
+    Weave is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Weave.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package weave.utils;
+
+import java.io.IOException;
+
+import weave.async.AsyncObserver;
+
+/**
+ * Aggregates the progress of several worker threads into one shared {@link AsyncObserver}.
+ * <br><br>
+ * The observer fields are updated the same way {@link FileUtils#copy(java.io.InputStream, java.io.OutputStream, AsyncObserver, int)}
+ * updates them, but every update is made while holding this object's lock.
+ */
+class TransferProgress
+{
+	private AsyncObserver observer = null;
+	private long max = 0L;
+	private long remaining = 0L;
+	private long size = 0L;
+	private int bps = 0, seconds = 0, aveSpeed = 1;
+	private long speedLongOld = System.currentTimeMillis();
+	
+	/**
+	 * Set by a worker that failed so the other workers can stop early.
+	 */
+	public volatile boolean aborted = false;
+	
+	/**
+	 * @param o The observer to report to, may be <code>null</code>
+	 * @param m The total number of bytes of the operation
+	 * @param done The number of bytes that were already transferred before this operation started
+	 */
+	public TransferProgress(AsyncObserver o, long m, long done)
+	{
+		observer = o;
+		max = m;
+		remaining = m - done;
+		
+		if( observer != null )
+			observer.info.cur += done;
+	}
+	
+	/**
+	 * Record that a worker has transferred <code>n</code> more bytes.
+	 * 
+	 * @param n The number of bytes transferred
+	 * @throws IOException
+	 */
+	synchronized public void add(int n) throws IOException
+	{
+		size += n;
+		bps += n;
+		
+		if( observer == null )
+			return;
+		
+		long now = System.currentTimeMillis();
+		if( now - speedLongOld > 1000 ) {
+			observer.info.speed = bps;
+			bps = 0;
+			seconds++;
+			speedLongOld = now;
+			aveSpeed = (int) Math.max(1, size / seconds);
+		}
+		observer.info.cur += n;
+		if( max > 0 )
+			observer.info.percent = (int) (observer.info.cur * 100 / max);
+		observer.info.time = (int) ((remaining - size) / aveSpeed);
+		observer.onUpdate();
+	}
+}
@@ -1,30 +1,98 @@
 package weave.utils;
 
-import java.net.URLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import weave.Globals;
 
+/**
+ * The response to one request made through {@link URLRequestUtils}.<br>
+ * Every field belongs to this instance and never changes, so results can be
+ * created and read from several threads at once.
+ */
 public class URLRequestResult extends Globals
 {
-	private static String content = null;
-	private static Map<String, List<String>> map = null;
-	
-	public URLRequestResult(URLConnection con, String c)
+	private final URL url;
+	private final int code;
+	private final Map<String, List<String>> map;
+	private final byte[] body;
+	private final String text;
+	private final String content;
+
+	/**
+	 * @param url The URL that answered, after following redirects
+	 * @param code The HTTP status code
+	 * @param headers The response headers, the status line is under the <code>null</code> key
+	 * @param body The response body exactly as received, after undoing any content encoding
+	 * @param charset The charset to decode the body with
+	 */
+	public URLRequestResult(URL url, int code, Map<String, List<String>> headers, byte[] body, Charset charset)
 	{
-		content = c;
-		map = con.getHeaderFields();
+		this.url = url;
+		this.code = code;
+		this.map = ( headers == null ) ? Collections.<String, List<String>>emptyMap() : headers;
+		this.body = body;
+		this.text = new String(body, charset);
+		this.content = text.replace("\r", "").replace("\n", "");
 	}
-	
+
+	/**
+	 * Get the last value of a response header.
+	 *
+	 * @param key The header name, matched without regard to case, or <code>null</code> for the status line
+	 * @return The value, or <code>null</code> if the header was not sent
+	 */
 	public String getResponseHeader(String key)
 	{
 		List<String> list = map.get(key);
-		String result = list.get(list.size() - 1);
-		return result; 
+		if( list == null && key != null )
+			for( Map.Entry<String, List<String>> e : map.entrySet() )
+				if( key.equalsIgnoreCase(e.getKey()) )
+					list = e.getValue();
+
+		if( list == null || list.isEmpty() )
+			return null;
+		return list.get(list.size() - 1);
+	}
+
+	/**
+	 * Get the URL that answered, which differs from the requested one if the request was redirected.
+	 */
+	public URL getURL()
+	{
+		return url;
+	}
+
+	public int getResponseCode()
+	{
+		return code;
 	}
+
+	/**
+	 * Get the body with its lines joined and the line breaks removed,
+	 * the way it has always been returned.
+	 */
 	public String getResponseContent()
 	{
 		return content;
 	}
+
+	/**
+	 * Get the body decoded as text, including line breaks.
+	 */
+	public String getResponseText()
+	{
+		return text;
+	}
+
+	/**
+	 * Get the body exactly as received.
+	 */
+	public byte[] getResponseBytes()
+	{
+		return body.clone();
+	}
 }
@@ -1,14 +1,20 @@
 package weave.utils;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
 
 import weave.Globals;
 import weave.Settings;
@@ -17,7 +23,17 @@ public class URLRequestUtils extends Globals
 {
 	public static final String GET = "GET";
 	public static final String POST = "POST";
+	public static final String HEAD = "HEAD";
 	public static final int TIMEOUT = 3000;
+	public static final int READ_TIMEOUT = 30000;
+	public static final int MAX_CONNECTIONS_PER_HOST = 4;
+	public static final int MAX_REDIRECTS = 5;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+	
+	private static volatile int connectTimeout = TIMEOUT;
+	private static volatile int readTimeout = READ_TIMEOUT;
 	
 	/**
 	 * Encode a given string into <i>application/x-www-form-urlencoded</i> format.
@@ -65,71 +81,207 @@ public class URLRequestUtils extends Globals
 	 * @throws IOException
 	 */
 	public static URLRequestResult request(final String method, final String urlStr, final URLRequestParams params) throws IOException
+	{
+		return request(method, urlStr, params, null);
+	}
+	
+	/**
+	 * Creates a new HTTP request with the given request method, URL string, parameters and request headers.
+	 * <br><br>
+	 * Connections are kept alive and reused by later requests to the same host,
+	 * at most {@link #MAX_CONNECTIONS_PER_HOST} requests to one host run at a time,
+	 * and gzip encoded responses are decoded. Up to {@link #MAX_REDIRECTS} redirects
+	 * are followed, including from http to https, and a <code>POST</code> redirected
+	 * with 301, 302 or 303 is sent on as a <code>GET</code>. Responses with a status of 400 or more
+	 * throw an {@link IOException}, anything else, including <code>304 Not Modified</code>,
+	 * is returned.
+	 * 
+	 * @param method {@link #GET}, {@link #POST} or {@link #HEAD}
+	 * @param urlStr The string URL to make a connection to
+	 * @param params The URL parameters to pass to the server, may be <code>null</code>
+	 * @param headers Extra request headers, may be <code>null</code>
+	 * @return A {@link URLRequestResult} object that holds the response headers and result body,
+	 * 			or <code>null</code> in offline mode
+	 * 
+	 * @throws IOException
+	 */
+	public static URLRequestResult request(String method, String urlStr, URLRequestParams params, Map<String, String> headers) throws IOException
 	{
 		if( Settings.isOfflineMode() )
 			return null;
-
-		URL url 					= null;
-		HttpURLConnection conn 		= null;
-		DataOutputStream outStream 	= null;
-		BufferedReader reader 		= null;
-		String line 				= null;
-		StringBuilder content 		= new StringBuilder();
-		URLRequestResult result		= null;
-
-		if( method.equals(GET) )
+		
+		if( !method.equals(GET) && !method.equals(POST) && !method.equals(HEAD) )
+			return null;
+		
+		URL url = new URL(( !method.equals(POST) && params != null ) ? urlStr + "?" + params.toString() : urlStr);
+		
+		for( int redirects = 0; redirects <= MAX_REDIRECTS; redirects++ )
 		{
-			if( params == null )
-				url = new URL(urlStr);
-			else
-				url = new URL(urlStr + "?" + params.toString());
+			Semaphore permits = getHostPermits(url);
 			
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setRequestMethod(GET);
-			conn.setDoOutput(false);
-			conn.setUseCaches(false);
-			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-			conn.setRequestProperty("User-Agent", "Mozilla/5.0");
-			conn.setRequestProperty("charset", "utf-8");
-			conn.setConnectTimeout(TIMEOUT);
-			conn.connect();
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+			}
 			
-			reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-			while( (line = reader.readLine()) != null )
-				content.append(line);
-			reader.close();
+			try {
+				HttpURLConnection conn = open(method, url, params, headers);
+				int code = conn.getResponseCode();
+				String location = conn.getHeaderField("Location");
+				
+				if( code >= 300 && code < 400 && code != HttpURLConnection.HTTP_NOT_MODIFIED && location != null )
+				{
+					// Followed here, HttpURLConnection won't follow a redirect from http to https
+					drain(conn.getInputStream());
+					url = new URL(url, location);
+					if( method.equals(POST) && code <= HttpURLConnection.HTTP_SEE_OTHER )
+					{
+						method = GET;
+						params = null;
+					}
+					continue;
+				}
+				if( code >= 400 )
+				{
+					// Read the error body so the connection can go back to the pool
+					drain(conn.getErrorStream());
+					throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url);
+				}
+				
+				byte[] body = method.equals(HEAD) ? new byte[0] : readBody(conn);
+				return new URLRequestResult(url, code, conn.getHeaderFields(), body, getCharset(conn.getContentType()));
+			} finally {
+				permits.release();
+			}
+		}
+		throw new IOException("Too many redirects for URL: " + urlStr);
+	}
+	
+	/**
+	 * Open a connection and send the request, without following redirects.
+	 */
+	private static HttpURLConnection open(String method, URL url, URLRequestParams params, Map<String, String> headers) throws IOException
+	{
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setInstanceFollowRedirects(false);
+		conn.setRequestMethod(method);
+		conn.setUseCaches(false);
+		conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		conn.setRequestProperty("User-Agent", "Mozilla/5.0");
+		conn.setRequestProperty("charset", "utf-8");
+		conn.setRequestProperty("Accept-Encoding", "gzip");
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		
+		if( headers != null )
+			for( Map.Entry<String, String> h : headers.entrySet() )
+				conn.setRequestProperty(h.getKey(), h.getValue());
+		
+		if( method.equals(POST) && params != null )
+		{
+			byte[] data = params.toString().getBytes(UTF8);
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(data.length);
 			
-			result = new URLRequestResult(conn, content.toString());
+			OutputStream out = conn.getOutputStream();
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
 		}
-		else if( method.equals(POST) )
+		
+		return conn;
+	}
+	
+	/**
+	 * Set how long requests wait for the server.
+	 * 
+	 * @param connect The connect timeout in milliseconds
+	 * @param read The read timeout in milliseconds, <code>0</code> to wait forever
+	 */
+	public static void setTimeouts(int connect, int read)
+	{
+		connectTimeout = connect;
+		readTimeout = read;
+	}
+	
+	private static Semaphore getHostPermits(URL url)
+	{
+		String host = url.getHost() + ":" + url.getPort();
+		Semaphore s = hostPermits.get(host);
+		if( s == null )
 		{
-			url = new URL(urlStr);
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setRequestMethod(POST);
-			conn.setDoOutput(params != null);
-			conn.setUseCaches(false);
-			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-			conn.setRequestProperty("User-Agent", "Mozilla/5.0");
-			conn.setRequestProperty("charset", "UTF-8");
-			conn.setConnectTimeout(TIMEOUT);
-			conn.connect();
+			s = new Semaphore(MAX_CONNECTIONS_PER_HOST, true);
+			Semaphore old = hostPermits.putIfAbsent(host, s);
+			if( old != null )
+				s = old;
+		}
+		return s;
+	}
+	
+	/**
+	 * Read the whole body and close the stream, which returns the connection to the keep-alive pool.
+	 */
+	private static byte[] readBody(HttpURLConnection conn) throws IOException
+	{
+		InputStream in = conn.getInputStream();
+		if( in == null )
+			return new byte[0];
+		
+		try {
+			if( "gzip".equalsIgnoreCase(conn.getContentEncoding()) )
+				in = new GZIPInputStream(in);
 			
-			if( params != null )
+			int length = conn.getContentLength();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 4096);
+			byte[] buf = new byte[8192];
+			int n;
+			while( (n = in.read(buf)) != -1 )
+				out.write(buf, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static void drain(InputStream in)
+	{
+		if( in == null )
+			return;
+		
+		try {
+			byte[] buf = new byte[4096];
+			while( in.read(buf) != -1 ) ;
+			in.close();
+		} catch (IOException e) {
+			// The connection is dropped instead of reused
+		}
+	}
+	
+	/**
+	 * Get the charset named in a <code>Content-Type</code> header.
+	 * 
+	 * @return The charset, or UTF-8 if there is none or it is not supported
+	 */
+	private static Charset getCharset(String contentType)
+	{
+		if( contentType != null )
+		{
+			int i = contentType.toLowerCase().indexOf("charset=");
+			if( i >= 0 )
 			{
-				outStream = new DataOutputStream(conn.getOutputStream());
-				outStream.writeBytes(params.toString());
-				outStream.flush();
-				outStream.close();
+				String name = contentType.substring(i + 8).split(";")[0].trim().replace("\"", "");
+				try {
+					return Charset.forName(name);
+				} catch (IllegalArgumentException e) {
+					// Unknown or malformed charset name
+				}
 			}
-			
-			reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-			while( (line = reader.readLine()) != null )
-				content.append(line);
-			reader.close();
-			
-			result = new URLRequestResult(conn, content.toString());
 		}
-		return result;
+		return UTF8;
 	}
 	
 	public static String getContentHeader(String url, String field) throws IOException
@@ -19,20 +19,30 @@
 
 package weave.utils;
 
+import static weave.utils.TraceUtils.STDERR;
+import static weave.utils.TraceUtils.trace;
+
 import java.awt.TrayIcon.MessageType;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.json.JSONArray;
 
 import weave.Globals;
 import weave.Settings;
 import weave.Settings.INSTALL_ENUM;
+import weave.async.AsyncFunction;
+import weave.async.AsyncPromise;
 import weave.managers.TrayManager;
 
 public class UpdateUtils extends Globals
@@ -45,6 +55,11 @@ public class UpdateUtils extends Globals
 	public static final int UPDATE_OFFLINE = 2;
 	public static final int UPDATE_ERROR = 3;
 	
+	/**
+	 * How long {@link #check(boolean, boolean)} waits for each part of the check, in milliseconds.
+	 */
+	public static final long CHECK_TIMEOUT = 15000;
+	
 	public static List<String> entriesToCheck	= null;
 	public static List<String> lookupEntries	= null;
 	
@@ -61,45 +76,221 @@ public class UpdateUtils extends Globals
 																Settings.LAUNCHER_VER));
 	}
 	
-	public static boolean isServerUpdateAvailable() 
+	/**
+	 * The outcome of {@link UpdateUtils#check(boolean, boolean)}.
+	 */
+	public static class UpdateCheck
 	{
-		if( Settings.isOfflineMode() )
-			return false;
+		private boolean serverChecked = false;
+		private List<String> outOfDate = new ArrayList<String>();
+		private List<String> missingFiles = new ArrayList<String>();
+		
+		private int weaveStatus = UPDATE_ERROR;
+		private String weaveURL = null;
+		private String weaveFileName = null;
+		
+		private List<Throwable> errors = new ArrayList<Throwable>();
+		
+		/**
+		 * Check to see if the Weave server tools have an update.<br>
+		 * This is <code>false</code> if the server part could not be checked.
+		 */
+		public boolean isServerUpdateAvailable()
+		{
+			return serverChecked && ( !outOfDate.isEmpty() || !missingFiles.isEmpty() );
+		}
+		
+		/**
+		 * Get the version entries of <code>config.txt</code> that differ from the local versions.
+		 */
+		public List<String> getOutOfDateEntries()		{	return Collections.unmodifiableList(outOfDate);		}
+		
+		/**
+		 * Get the entries of <code>files.txt</code> that are missing locally.
+		 */
+		public List<String> getMissingFiles()			{	return Collections.unmodifiableList(missingFiles);	}
+		
+		/**
+		 * Get the status of the Weave binaries, one of {@link UpdateUtils#NO_UPDATE_AVAILABLE},
+		 * {@link UpdateUtils#UPDATE_AVAILABLE}, {@link UpdateUtils#UPDATE_OFFLINE} or {@link UpdateUtils#UPDATE_ERROR}.
+		 */
+		public int getWeaveStatus()						{	return weaveStatus;									}
+		
+		/**
+		 * Get the URL of the latest Weave binaries, or <code>null</code> if it is not known.
+		 */
+		public String getWeaveURL()						{	return weaveURL;									}
+		
+		/**
+		 * Get the file name of the latest Weave binaries, or <code>null</code> if it is not known.
+		 */
+		public String getWeaveFileName()				{	return weaveFileName;								}
+		
+		/**
+		 * Get the errors and timeouts of the parts that could not be checked.
+		 */
+		public List<Throwable> getErrors()				{	return Collections.unmodifiableList(errors);		}
+	}
 	
-		File tempFile;
-		boolean missingFile = false;
-		boolean outOfDateFile = false;
+	/**
+	 * Check for updates of the server tools and the Weave binaries.
+	 * <br><br>
+	 * The versions in <code>config.txt</code>, the required files in <code>files.txt</code>
+	 * and the latest Weave binaries are looked up at the same time, each given
+	 * {@link #CHECK_TIMEOUT} to finish. A part that fails or times out is left
+	 * unknown in the result instead of failing the whole check.
+	 * 
+	 * @param server Check the server tools
+	 * @param weave Check the Weave binaries
+	 * @return The result of the check
+	 */
+	public static UpdateCheck check(boolean server, boolean weave)
+	{
+		final UpdateCheck result = new UpdateCheck();
+		
+		if( Settings.isOfflineMode() )
+		{
+			result.weaveStatus = UPDATE_OFFLINE;
+			return result;
+		}
 		
 		refreshLookupValues();
+		final List<String> remoteKeys = entriesToCheck;
+		final List<String> localValues = lookupEntries;
+		
+		AsyncPromise versions = null, files = null, binaries = null;
 		
-		// Loop over local and remote application versions
-		// If there is a difference in the version, there is an update
-		for( int i = 0; i < entriesToCheck.size(); i++ )
+		if( server )
 		{
-			String value = RemoteUtils.getConfigEntry( entriesToCheck.get(i) );
-			if( value == null ) return false;
+			versions = AsyncPromise.run(new AsyncFunction("Checking server versions") {
+				@Override
+				protected Object doInBackground() {
+					List<String> changed = new ArrayList<String>();
+					for( int i = 0; i < remoteKeys.size(); i++ )
+					{
+						String value = RemoteUtils.getConfigEntry(remoteKeys.get(i));
+						if( value == null )
+							throw new IllegalStateException("No value for " + remoteKeys.get(i));
+						if( !value.equals(localValues.get(i)) )
+							changed.add(remoteKeys.get(i));
+					}
+					return changed;
+				}
+			}).timeout(CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
 			
-			outOfDateFile |= !(value).equals( lookupEntries.get(i) );
+			files = AsyncPromise.run(new AsyncFunction("Checking server files") {
+				@Override
+				protected Object doInBackground() {
+					String[] entries = RemoteUtils.getRemoteFiles();
+					if( entries == null )
+						throw new IllegalStateException("The remote file list could not be fetched");
+					
+					List<String> missing = new ArrayList<String>();
+					for( String f : entries )
+						if( !new File(Settings.WEAVE_ROOT_DIRECTORY, f.trim()).exists() )
+							missing.add(f.trim());
+					return missing;
+				}
+			}).timeout(CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
 		}
 		
-		// Loop over the remote required files.
-		// If there is a missing file locally, there is an update
-		String[] files = RemoteUtils.getRemoteFiles();
-		for( String f : files ) {
-			tempFile = new File(Settings.WEAVE_ROOT_DIRECTORY, f.trim());
-			if( !tempFile.exists() ) {
-				missingFile = true;
-				break;
+		if( weave )
+		{
+			binaries = AsyncPromise.run(new AsyncFunction("Checking Weave binaries") {
+				@Override
+				protected Object doInBackground() {
+					try {
+						String url = (Settings.INSTALL_MODE == INSTALL_ENUM.NIGHTLY ? getLatestNightlyURL() : getLatestMilestoneURL());
+						String name = ( url == null ) ? null : getWeaveUpdateFileName(url);
+						return new String[] { url, name };
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					} catch (InterruptedException e) {
+						throw new CancellationException();
+					}
+				}
+			}).timeout(CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		
+		try {
+			if( server )
+			{
+				List<?> changed = (List<?>) await(versions, result);
+				List<?> missing = (List<?>) await(files, result);
+				if( changed != null && missing != null )
+				{
+					for( Object o : changed )	result.outOfDate.add((String) o);
+					for( Object o : missing )	result.missingFiles.add((String) o);
+					result.serverChecked = true;
+				}
+			}
+			if( weave )
+			{
+				String[] found = (String[]) await(binaries, result);
+				if( found != null && found[0] != null && found[1] != null )
+				{
+					result.weaveURL = found[0];
+					result.weaveFileName = found[1];
+					result.weaveStatus = Revisions.hasRevision(found[1]) ? NO_UPDATE_AVAILABLE : UPDATE_AVAILABLE;
+				}
 			}
+		} catch (InterruptedException e) {
+			for( AsyncPromise p : new AsyncPromise[] { versions, files, binaries } )
+				if( p != null )
+					p.cancel();
+			Thread.currentThread().interrupt();
 		}
-		return ( missingFile || outOfDateFile );
+		return result;
+	}
+	
+	/**
+	 * Wait for one part of the check, recording why it has no value.
+	 */
+	private static Object await(AsyncPromise p, UpdateCheck result) throws InterruptedException
+	{
+		try {
+			return p.get();
+		} catch (ExecutionException e) {
+			// Errors thrown by the part are already traced by the function
+			if( e.getCause() instanceof TimeoutException )
+				trace(STDERR, e.getCause());
+			result.errors.add(e.getCause());
+		} catch (CancellationException e) {
+			result.errors.add(e);
+		}
+		return null;
+	}
+	
+	public static boolean isServerUpdateAvailable() 
+	{
+		return check(true, false).isServerUpdateAvailable();
 	}
 	
 	public static void checkForServerUpdate(int from)
 	{
-		boolean isUpdate = isServerUpdateAvailable();
-		
-		if( isUpdate )
+		reportServerUpdate(check(true, false), from);
+	}
+	
+	/**
+	 * Check for updates of the server tools and the Weave binaries in one go,
+	 * and act on both parts like {@link #checkForServerUpdate(int)} and
+	 * {@link #checkForWeaveUpdate(boolean)} do.
+	 * 
+	 * @param from {@link #FROM_USER} or {@link #FROM_EVENT}
+	 * @param save Save the time of the check if the Weave binaries could be checked
+	 * @return The result of the check
+	 */
+	public static UpdateCheck checkForUpdates(int from, boolean save)
+	{
+		UpdateCheck result = check(true, true);
+		reportServerUpdate(result, from);
+		saveWeaveCheck(result.getWeaveStatus(), save);
+		return result;
+	}
+	
+	private static void reportServerUpdate(UpdateCheck result, int from)
+	{
+		if( result.isServerUpdateAvailable() )
 		{
 			Settings.UPDATE_OVERRIDE = true;
 			Settings.save();
@@ -121,30 +312,22 @@ public class UpdateUtils extends Globals
 
 	public static int isWeaveUpdateAvailable() throws InterruptedException, IOException
 	{
-		if( Settings.isOfflineMode() )
-			return UPDATE_OFFLINE; 
-		
-		String urlStr = (Settings.INSTALL_MODE == INSTALL_ENUM.NIGHTLY ? getLatestNightlyURL() : getLatestMilestoneURL());
-		if( urlStr == null )
-			return UPDATE_ERROR;
-		
-		String fileName = getWeaveUpdateFileName(urlStr);
-		if( fileName == null )
-			return UPDATE_ERROR;
-		
-		return ( new File(Settings.WEAVE_BINARIES_DIRECTORY, fileName).exists() ? NO_UPDATE_AVAILABLE : UPDATE_AVAILABLE );
+		return check(false, true).getWeaveStatus();
 	}
 
 	public static int checkForWeaveUpdate(boolean save) throws InterruptedException, IOException
 	{
 		int isUpdate = isWeaveUpdateAvailable();
-
-		if( save && isUpdate != UPDATE_ERROR ) {
+		saveWeaveCheck(isUpdate, save);
+		return isUpdate;
+	}
+	
+	private static void saveWeaveCheck(int status, boolean save)
+	{
+		if( save && status != UPDATE_ERROR ) {
 			Settings.LAST_UPDATE_CHECK = new SimpleDateFormat("M/d/yyyy h:mm a").format(new Date());
 			Settings.save();
 		}
-		
-		return isUpdate;
 	}
 	
 	public static String getWeaveUpdateFileName(String url) throws InterruptedException, IOException
@@ -152,13 +335,8 @@ public class UpdateUtils extends Globals
 		if( Settings.isOfflineMode() )
 			return null;
 		
-		String search = "filename=";
-		String header = URLRequestUtils.getContentHeader(url, "Content-Disposition");
-		int index = ((header != null ) ? header.indexOf(search) : -1 );
-		if( index == -1 )
-			return null;
-		
-		return header.substring(index + search.length());
+		RemoteMetadata metadata = RemoteMetadata.probe(url);
+		return ( metadata != null ) ? metadata.getFileName() : null;
 	}
 	
 	public static String getLatestNightlyURL()
@@ -29,20 +29,39 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
+import weave.Settings;
 import weave.async.AsyncObserver;
 
 public class ZipUtils extends TransferUtils
 {
 	public static final byte[] MAGIC_BYTES = { 'P', 'K', 0x3, 0x4 };
 	
+	/**
+	 * The default number of worker threads used by a parallel extraction.
+	 */
+	public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	static final int EXTRACT_BUFFER_SIZE = 64 * KB;
+	
 	/**
 	 * Extract a zip file to the destination location.
 	 * 
@@ -120,6 +139,7 @@ public class ZipUtils extends TransferUtils
 			throw new FileAlreadyExistsException(destination.getAbsolutePath());
 		
 		int result = COMPLETE;
+		String root = destination.getCanonicalPath() + File.separator;
 		ZipFile zip = new ZipFile(zipFile);
 		Enumeration<? extends ZipEntry> enu = zip.entries();
 		ZipEntry zipEntry = null;
@@ -128,7 +148,7 @@ public class ZipUtils extends TransferUtils
 		while (enu.hasMoreElements()) 
 		{
 			zipEntry = (ZipEntry) enu.nextElement();
-			outputFile = new File(destination, zipEntry.getName());
+			outputFile = resolve(destination, root, zipEntry);
 			
 			if( zipEntry.isDirectory() )
 			{
@@ -144,6 +164,213 @@ public class ZipUtils extends TransferUtils
 		
 		return result;
 	}
+	
+	/**
+	 * Extract a zip file to the destination location using several worker threads.
+	 * <br><br>
+	 * All directories are created up front in a single pass over the entries.
+	 * The file entries are then handed out largest first to a pool of workers,
+	 * each reading through its own {@link ZipFile} handle, and their progress
+	 * is combined into the one observer.
+	 * 
+	 * @param zipFile The zip file to extract
+	 * @param destination The location to extract the contents to
+	 * @param flags Bits to specify how the observer status should be followed
+	 * @param observer The async observer to watch the status
+	 * @param throttle The transfer limit of the operation across all workers
+	 * @param threads The max number of worker threads
+	 * @return The status code <code>COMPLETE, CANCELLED, FAILED</code>
+	 * 
+	 * @throws IOException 
+	 * @throws ZipException 
+	 * @throws InterruptedException 
+	 */
+	public static int extract( File zipFile, File destination, int flags, AsyncObserver observer, int throttle, int threads ) throws ZipException, IOException, InterruptedException
+	{
+		if( threads <= 1 )
+			return extract(zipFile, destination, flags, observer, throttle);
+		
+		if( zipFile == null || destination == null )
+			throw new NullPointerException("Zip File or Destination File is null");
+		
+		assert zipFile != null;
+		assert destination != null;
+		
+		if( destination.exists() && (flags & OVERWRITE) == 0 )
+			throw new FileAlreadyExistsException(destination.getAbsolutePath());
+		
+		int result = FAILED;
+		long total = 0L;
+		String root = destination.getCanonicalPath() + File.separator;
+		List<ZipEntry> files = new ArrayList<ZipEntry>();
+		ZipFile zip = new ZipFile(zipFile);
+		Enumeration<? extends ZipEntry> enu = zip.entries();
+		ZipEntry zipEntry = null;
+		File outputFile = null;
+		
+		try {
+			while( enu.hasMoreElements() )
+			{
+				zipEntry = (ZipEntry) enu.nextElement();
+				outputFile = resolve(destination, root, zipEntry);
+				
+				if( zipEntry.isDirectory() )
+				{
+					if( !outputFile.exists() )	outputFile.mkdirs();
+					continue;
+				}
+				
+				// Some archives do not list the parent directories of their files
+				if( !outputFile.getParentFile().exists() )
+					outputFile.getParentFile().mkdirs();
+				
+				files.add(zipEntry);
+				total += Math.max(0, zipEntry.getSize());
+			}
+		} finally {
+			zip.close();
+		}
+		
+		// Largest entries first so one big file does not end up last on a single worker
+		Collections.sort(files, new Comparator<ZipEntry>() {
+			@Override
+			public int compare(ZipEntry o1, ZipEntry o2) {
+				if( o1.getSize() < o2.getSize() ) return 1;
+				if( o1.getSize() > o2.getSize() ) return -1;
+				return 0;
+			}
+		});
+		
+		threads = Math.max(1, Math.min(threads, files.size()));
+		
+		Queue<ZipEntry> queue = new ConcurrentLinkedQueue<ZipEntry>(files);
+		TransferProgress progress = new TransferProgress(observer, observer != null && observer.info.max > 0 ? observer.info.max : total, 0);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		
+		try {
+			for( int i = 0; i < threads; i++ )
+				results.add(pool.submit(new ExtractWorker(zipFile, destination, root, queue, progress, throttle / threads)));
+			
+			int combined = COMPLETE;
+			for( Future<Integer> r : results )
+			{
+				int s = r.get();
+				
+				if( s == CANCELLED )
+					combined = CANCELLED;
+				else if( s != COMPLETE && combined == COMPLETE )
+					combined = FAILED;
+			}
+			result = combined;
+		} catch (ExecutionException e) {
+			if( e.getCause() instanceof IOException )
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return result;
+	}
+
+	/**
+	 * Get the file a zip entry extracts to, rejecting entries like <code>../file</code>
+	 * that would be written outside of the destination.
+	 * 
+	 * @param destination The location the contents are extracted to
+	 * @param root The canonical path of the destination, ending in a separator
+	 * @param entry The zip entry
+	 * @return The file to write the entry to
+	 * 
+	 * @throws IOException If the entry is outside of the destination
+	 */
+	static File resolve( File destination, String root, ZipEntry entry ) throws IOException
+	{
+		File f = new File(destination, entry.getName());
+		if( !f.getCanonicalPath().startsWith(root) )
+			throw new ZipException("Entry is outside of the destination: " + entry.getName());
+		return f;
+	}
+	
+	/**
+	 * Extract a zip archive while it is being read from a stream, without
+	 * having the whole archive on disk first.
+	 * <br><br>
+	 * The stream is read until the last entry, it is not closed.
+	 * Entries that would be written outside of the destination are rejected.
+	 * 
+	 * @param in The stream of the zip archive
+	 * @param destination The location to extract the contents to
+	 * @param flags Bits to specify how the observer status should be followed
+	 * @param observer The async observer to watch the status, counted in uncompressed bytes
+	 * @param throttle The transfer limit of the operation
+	 * @return The status code <code>COMPLETE, CANCELLED, FAILED</code>
+	 * 
+	 * @throws IOException 
+	 * @throws ZipException 
+	 * @throws InterruptedException 
+	 */
+	public static int extract( InputStream in, File destination, int flags, AsyncObserver observer, int throttle ) throws ZipException, IOException, InterruptedException
+	{
+		if( in == null || destination == null )
+			throw new NullPointerException("InputStream or Destination File is null");
+		
+		assert in != null;
+		assert destination != null;
+		
+		if( destination.exists() && (flags & OVERWRITE) == 0 )
+			throw new FileAlreadyExistsException(destination.getAbsolutePath());
+		
+		int n, limit = 0;
+		long cancelLongNew = 0L, cancelLongOld = System.currentTimeMillis();
+		byte[] buf = new byte[EXTRACT_BUFFER_SIZE];
+		String root = destination.getCanonicalPath() + File.separator;
+		ZipInputStream zin = new ZipInputStream(in);
+		ZipEntry zipEntry = null;
+		File outputFile = null;
+		TransferProgress progress = new TransferProgress(observer, observer != null ? observer.info.max : 0, 0);
+		
+		while( (zipEntry = zin.getNextEntry()) != null )
+		{
+			outputFile = resolve(destination, root, zipEntry);
+			
+			if( zipEntry.isDirectory() )
+			{
+				if( !outputFile.exists() )	outputFile.mkdirs();
+				continue;
+			}
+			
+			if( !outputFile.getParentFile().exists() )
+				outputFile.getParentFile().mkdirs();
+			
+			OutputStream out = new FileOutputStream(outputFile);
+			try {
+				while( (n = zin.read(buf)) > 0 )
+				{
+					out.write(buf, 0, n);
+					progress.add(n);
+					
+					cancelLongNew = System.currentTimeMillis();
+					if( cancelLongNew - cancelLongOld > 200 ) {
+						cancelLongOld = cancelLongNew;
+						if( Settings.transferCancelled == true )
+							return CANCELLED;
+					}
+					
+					if( throttle > 0 ) {
+						limit += n;
+						if( limit >= ( throttle / 10 )) {
+							limit = 0;
+							Thread.sleep(100);
+						}
+					}
+				}
+			} finally {
+				out.close();
+			}
+		}
+		return COMPLETE;
+	}
 
 	public static List<String> getZipEntries(File zipFile) throws ZipException, IOException
 	{
@@ -296,3 +523,82 @@ public class ZipUtils extends TransferUtils
 		return length;
 	}
 }
+
+/**
+ * Pulls file entries off a shared queue and inflates them through
+ * its own handle on the zip file until the queue is empty.
+ */
+class ExtractWorker implements Callable<Integer>
+{
+	private File zipFile = null;
+	private File destination = null;
+	private String root = null;
+	private Queue<ZipEntry> queue = null;
+	private TransferProgress progress = null;
+	private int throttle = 0;
+	
+	public ExtractWorker(File z, File d, String r, Queue<ZipEntry> q, TransferProgress p, int t)
+	{
+		zipFile = z;
+		destination = d;
+		root = r;
+		queue = q;
+		progress = p;
+		throttle = t;
+	}
+	
+	@Override
+	public Integer call() throws IOException, InterruptedException
+	{
+		int n, limit = 0;
+		long cancelLongNew = 0L, cancelLongOld = System.currentTimeMillis();
+		byte[] buf = new byte[ZipUtils.EXTRACT_BUFFER_SIZE];
+		ZipFile zip = new ZipFile(zipFile);
+		ZipEntry entry = null;
+		
+		try {
+			while( (entry = queue.poll()) != null )
+			{
+				File target = ZipUtils.resolve(destination, root, entry);
+				InputStream in = zip.getInputStream(entry);
+				OutputStream out = new FileOutputStream(target);
+				
+				try {
+					while( (n = in.read(buf)) > 0 )
+					{
+						out.write(buf, 0, n);
+						progress.add(n);
+						
+						// Stop early if another worker has already failed
+						if( progress.aborted )
+							return TransferUtils.FAILED;
+						
+						cancelLongNew = System.currentTimeMillis();
+						if( cancelLongNew - cancelLongOld > 200 ) {
+							cancelLongOld = cancelLongNew;
+							if( Settings.transferCancelled == true )
+								return TransferUtils.CANCELLED;
+						}
+						
+						if( throttle > 0 ) {
+							limit += n;
+							if( limit >= ( throttle / 10 )) {
+								limit = 0;
+								Thread.sleep(100);
+							}
+						}
+					}
+				} finally {
+					in.close();
+					out.close();
+				}
+			}
+		} catch (IOException e) {
+			progress.aborted = true;
+			throw e;
+		} finally {
+			zip.close();
+		}
+		return TransferUtils.COMPLETE;
+	}
+}
@@ -71,10 +71,12 @@ import weave.utils.IdentityUtils;
 import weave.utils.ImageUtils;
 import weave.utils.LaunchUtils;
 import weave.utils.RemoteUtils;
+import weave.utils.RevisionStore;
 import weave.utils.StatsUtils;
 import weave.utils.StringUtils;
 import weave.utils.TransferUtils;
 import weave.utils.UpdateUtils;
+import weave.utils.UpdateUtils.UpdateCheck;
 
 import com.jtattoo.plaf.fast.FastLookAndFeel;
 
@@ -496,7 +498,7 @@ public class Server extends JFrame
 			
 			if( Settings.SETUP_COMPLETE )
 				setProgress(15);
-			else if( FileUtils.getNumberOfFilesInDirectory(Settings.WEAVE_BINARIES_DIRECTORY, false) > 0 )
+			else if( FileUtils.getNumberOfFilesInDirectory(Settings.WEAVE_BINARIES_DIRECTORY, false) > 0 || !RevisionStore.getStore().getRevisions().isEmpty() )
 				setProgress(7);
 			else if( servlet != null && database != null )
 				setProgress(3);
@@ -720,7 +722,9 @@ public class Server extends JFrame
 		new Timer().schedule(new TimerTask() {
 			@Override 
 			public void run() {
-				UpdateUtils.checkForServerUpdate(UpdateUtils.FROM_EVENT);
+				UpdateCheck check = UpdateUtils.checkForUpdates(UpdateUtils.FROM_EVENT, false);
+				if( SP_home != null )
+					SP_home.refreshUpdateStatus(check);
 			}
 		}, 60 * 60 * 1000, 60 * 60 * 1000); // Every hour
 		
@@ -762,7 +762,7 @@ public class ConfigSetupPanel extends SetupPanel
 				Object o = TransferUtils.FAILED;
 				try {
 					observer.init(url);
-					o = DownloadUtils.download(url, destination, observer, 3 * TransferUtils.MB);
+					o = DownloadUtils.download(url, destination, observer, 3 * TransferUtils.MB, DownloadUtils.DEFAULT_CONNECTIONS);
 				} catch (IOException e) {
 					trace(STDERR, e);
 					BugReportUtils.showBugReportDialog(e);
@@ -784,7 +784,7 @@ public class ConfigSetupPanel extends SetupPanel
 			trace(STDERR, e);
 			BugReportUtils.showBugReportDialog(e);
 		}
-		task.addCallback(callback).call();
+		task.setLongRunning(true).addCallback(callback).call();
 	}
 	
 	private void extract(final File source, final IConfig config)
@@ -821,7 +821,7 @@ public class ConfigSetupPanel extends SetupPanel
 				Object o = TransferUtils.FAILED;
 				try {
 					observer.init(source);
-					o = ZipUtils.extract(source, destination, TransferUtils.MULTIPLE_FILES | TransferUtils.OVERWRITE, observer);
+					o = ZipUtils.extract(source, destination, TransferUtils.MULTIPLE_FILES | TransferUtils.OVERWRITE, observer, 0, ZipUtils.DEFAULT_THREADS);
 				} catch (ZipException e) {
 					trace(STDERR, e);
 					BugReportUtils.showBugReportDialog(e);
@@ -848,7 +848,7 @@ public class ConfigSetupPanel extends SetupPanel
 			BugReportUtils.showBugReportDialog(e);
 		}
 		
-		task.addCallback(callback).call();
+		task.setLongRunning(true).addCallback(callback).call();
 	}
 	
 	/////////////////////////////////////////////////////////////////////////////////////
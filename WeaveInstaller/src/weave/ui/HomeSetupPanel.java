@@ -40,7 +40,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
-import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileFilter;
@@ -87,7 +86,10 @@ import javax.swing.text.html.HTMLDocument;
 import weave.Globals;
 import weave.Settings;
 import weave.Settings.INSTALL_ENUM;
+import weave.async.AsyncCallback;
+import weave.async.AsyncFunction;
 import weave.comparables.FileSize;
+import weave.configs.Config;
 import weave.configs.IConfig;
 import weave.core.Function;
 import weave.inc.SetupPanel;
@@ -102,11 +104,15 @@ import weave.utils.ImageUtils;
 import weave.utils.LaunchUtils;
 import weave.utils.ObjectUtils;
 import weave.utils.RemoteUtils;
+import weave.utils.RevisionStore;
+import weave.utils.RevisionStore.Revision;
 import weave.utils.Revisions;
 import weave.utils.StringUtils;
 import weave.utils.TransferUtils;
 import weave.utils.URLRequestUtils;
 import weave.utils.UpdateUtils;
+import weave.utils.UpdateUtils.UpdateCheck;
+import weave.utils.ZipUtils;
 
 @SuppressWarnings("serial")
 public class HomeSetupPanel extends SetupPanel 
@@ -176,11 +182,13 @@ public class HomeSetupPanel extends SetupPanel
 		new Timer().schedule(new TimerTask() {
 			@Override
 			public void run() {
+				// Archives left in the binaries directory by older versions
+				Revisions.importRevisions();
+				
+				// One check of the server tools and the Weave binaries on startup
+				setButtonsEnabled(false);
 				refreshProgramatically = true;
-				refreshButton.dispatchEvent(new MouseEvent(refreshButton, MouseEvent.MOUSE_RELEASED,
-															System.currentTimeMillis(), 0,
-															refreshButton.getX(), refreshButton.getY(),
-															1, false));
+				refreshInterface(UpdateUtils.checkForUpdates(UpdateUtils.FROM_EVENT, false));
 			}
 		}, 1000);
 		
@@ -401,6 +409,7 @@ public class HomeSetupPanel extends SetupPanel
 						.downloadFrom(urlStr)
 						.extractTo(zip.getAbsolutePath())
 						.installTo(cfgWebapps.getAbsolutePath())
+						.pipelined(true)
 						.callback(onDownloadCompleteCallback)
 						.start();
 					
@@ -468,7 +477,7 @@ public class HomeSetupPanel extends SetupPanel
 					
 					setButtonsEnabled(false);
 					
-					String file = Revisions.getRevisionsList().get(index).getAbsolutePath();
+					String revision = Revisions.getRevisionsList().get(index).getName();
 	
 					// Get the active servlet container
 					IConfig actvContainer = ConfigManager.getConfigManager().getActiveContainer();
@@ -494,7 +503,7 @@ public class HomeSetupPanel extends SetupPanel
 					DownloadManager.init("update")
 						.setLabel(downloadLabel)
 						.setProgressbar(progressbar)
-						.extractTo(file)
+						.deploy(revision)
 						.installTo(cfgWebapps.getAbsolutePath())
 						.callback(onDownloadCompleteCallback)
 						.start();
@@ -530,8 +539,7 @@ public class HomeSetupPanel extends SetupPanel
 						JOptionPane.QUESTION_MESSAGE) == JOptionPane.NO_OPTION )
 					return;
 				
-				File selectedFile = Revisions.getRevisionsList().get(index);
-				FileUtils.recursiveDelete(selectedFile);
+				Revisions.deleteRevision(Revisions.getRevisionsList().get(index).getName());
 
 				new Timer().schedule(new TimerTask() {
 					@Override
@@ -609,25 +617,13 @@ public class HomeSetupPanel extends SetupPanel
 				
 				Transferable transferable = dtde.getTransferable();
 				DataFlavor[] flavors = transferable.getTransferDataFlavors();
-				File REV = null, destination = null;
 				
 				for( DataFlavor flavor : flavors )
 				{
 					if( flavor.isFlavorJavaFileListType() )
 					{
 						try {
-							List<File> files = (List<File>) transferable.getTransferData(flavor);
-							REV = Settings.WEAVE_BINARIES_DIRECTORY;
-							if( REV == null || !REV.exists() )
-								return;
-							
-							for( File file : files )
-							{
-								destination = new File(REV, file.getName());
-								if( file.equals(destination) )
-									continue;
-								FileUtils.copy(file, destination, TransferUtils.SINGLE_FILE | TransferUtils.OVERWRITE | TransferUtils.PRESERVE);
-							}
+							importRevisions((List<File>) transferable.getTransferData(flavor));
 						} catch (Exception e) {
 							trace(STDERR, e);
 							BugReportUtils.showBugReportDialog(e);
@@ -676,7 +672,7 @@ public class HomeSetupPanel extends SetupPanel
 				ZipFile zip = null;
 				
 				try {
-					WEBAPPS = (File) ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), "getWebappsDirectory", null);
+					WEBAPPS = ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), Config.GET_WEBAPPS_DIRECTORY, null);
 					if( WEBAPPS == null || !WEBAPPS.exists() )
 						return;
 					
@@ -748,7 +744,7 @@ public class HomeSetupPanel extends SetupPanel
 					{
 						try {
 							List<File> files = (List<File>) transferable.getTransferData(flavor);
-							WEBAPPS = (File) ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), "getWebappsDirectory", null);
+							WEBAPPS = ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), Config.GET_WEBAPPS_DIRECTORY, null);
 							if( WEBAPPS == null || !WEBAPPS.exists() )
 								return;
 							
@@ -808,7 +804,7 @@ public class HomeSetupPanel extends SetupPanel
 				File WEBAPPS, ROOT, sessionState;
 				
 				try {
-					WEBAPPS = (File) ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), "getWebappsDirectory", null);
+					WEBAPPS = ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), Config.GET_WEBAPPS_DIRECTORY, null);
 					if( WEBAPPS == null )
 						return;
 					ROOT = new File(WEBAPPS, "ROOT");
@@ -1020,6 +1016,9 @@ public class HomeSetupPanel extends SetupPanel
 					BugReportUtils.showBugReportDialog(e);
 				}
 			}
+			// This runs after the download task, off the event dispatch thread
+			Revisions.importRevisions();
+			
 			try {
 				Settings.cleanUp();
 				Thread.sleep(1000);
@@ -1032,22 +1031,56 @@ public class HomeSetupPanel extends SetupPanel
 		}
 	};
 	
+	/**
+	 * Add dropped zip archives to the revision store in the background,
+	 * then show them in the revision table.
+	 */
+	private void importRevisions(final List<File> files)
+	{
+		AsyncCallback callback = new AsyncCallback() {
+			@Override
+			public void run(Object o) {
+				refreshProgramatically = true;
+				refreshInterface();
+			}
+		};
+		AsyncFunction task = new AsyncFunction() {
+			@Override
+			public Object doInBackground() {
+				for( File file : files )
+				{
+					try {
+						if( ZipUtils.isZip(file) )
+							RevisionStore.getStore().add(file);
+					} catch (IOException e) {
+						trace(STDERR, e);
+						BugReportUtils.showBugReportDialog(e);
+					}
+				}
+				return null;
+			}
+		};
+		
+		setButtonsEnabled(false);
+		task.setLongRunning(true).addCallback(callback).call();
+	}
+	
 	private void refreshRevisionTable() throws Exception
 	{
-		ArrayList<File> revisionList = Revisions.getRevisionsList();
+		ArrayList<Revision> revisionList = Revisions.getRevisionsList();
 		Object[][] revisionData = new Object[revisionList.size()][2];
-		File file = null;
+		Revision revision = null;
 		Date date = null;
 		String revisionName = "";
 		
 		for( int i = 0; i < revisionList.size(); i++ )
 		{
 			date = new Date();
-			file = revisionList.get(i);
-			revisionName = Revisions.getRevisionVersion(file.getName());
-			date.setTime(file.lastModified());
+			revision = revisionList.get(i);
+			revisionName = Revisions.getRevisionVersion(revision.getName());
+			date.setTime(revision.getDate());
 
-			String configVer = (String)ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), "getInstallVersion", "");
+			String configVer = ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), Config.GET_INSTALL_VERSION, "");
 			revisionData[i][0] = revisionName + ((revisionName.equals(configVer)) ? "  (current)" : "" );
 			revisionData[i][1] = date; //new SimpleDateFormat("MM/dd/yyyy h:mm a").format(date);
 		}
@@ -1058,7 +1091,7 @@ public class HomeSetupPanel extends SetupPanel
 	{
 		File WEBAPPS, ROOT;
 	
-		WEBAPPS = (File) ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), "getWebappsDirectory", null);
+		WEBAPPS = ObjectUtils.ternary(ConfigManager.getConfigManager().getActiveContainer(), Config.GET_WEBAPPS_DIRECTORY, null);
 		if( WEBAPPS != null && WEBAPPS.exists() )
 		{
 			ROOT = new File(WEBAPPS, "ROOT");
@@ -1094,7 +1127,24 @@ public class HomeSetupPanel extends SetupPanel
 			data[i][0] = plugins.get(i).getPluginName();
 		pluginsTable.setData(data).refreshTable();
 	}
+	/**
+	 * Show the Weave part of an update check that ran elsewhere.
+	 * 
+	 * @param check The result of the check
+	 */
+	public void refreshUpdateStatus(UpdateCheck check)
+	{
+		weaveStats.refresh(check.getWeaveStatus());
+		installButton.setEnabled(check.getWeaveStatus() == UpdateUtils.UPDATE_AVAILABLE && !Settings.transferLocked);
+	}
 	private void refreshInterface()
+	{
+		refreshInterface(null);
+	}
+	/**
+	 * @param check The result of an update check that already ran, or <code>null</code> to check for a Weave update now
+	 */
+	private void refreshInterface(UpdateCheck check)
 	{
 		traceln(STDOUT, INFO, StringUtils.rpad("Refreshing User Interface", ".", Settings.LOG_PADDING_LENGTH));
 
@@ -1102,10 +1152,15 @@ public class HomeSetupPanel extends SetupPanel
 		
 		setButtonsEnabled(false);
 		int updateAvailable = UpdateUtils.UPDATE_ERROR;
-		try {
-			updateAvailable = UpdateUtils.checkForWeaveUpdate(!refreshProgramatically);
-		} catch (Exception e) {
-			trace(STDERR, e);
+		if( check != null )
+			updateAvailable = check.getWeaveStatus();
+		else
+		{
+			try {
+				updateAvailable = UpdateUtils.checkForWeaveUpdate(!refreshProgramatically);
+			} catch (Exception e) {
+				trace(STDERR, e);
+			}
 		}
 		weaveStats.refresh(updateAvailable);
 		refreshProgramatically = false;
@@ -24,7 +24,6 @@ import static weave.utils.TraceUtils.trace;
 
 import java.awt.Font;
 import java.awt.GridLayout;
-import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -35,8 +34,10 @@ import javax.swing.JTable;
 import javax.swing.table.DefaultTableModel;
 
 import weave.Settings;
+import weave.configs.Config;
 import weave.managers.ConfigManager;
 import weave.utils.ObjectUtils;
+import weave.utils.RevisionStore.Revision;
 import weave.utils.Revisions;
 
 @SuppressWarnings("serial")
@@ -72,21 +73,21 @@ public class RevisionTable extends JPanel
 	
 	public void updateTableData()
 	{
-		ArrayList<File> sortedFiles = Revisions.getRevisionsList();
+		ArrayList<Revision> sortedFiles = Revisions.getRevisionsList();
 		Object[][] data = new Object[sortedFiles.size()][columnNames.length];
-		File file = null;
+		Revision revision = null;
 		Date date = new Date();
 		String revisionName = "";
 		
 		try {
 			for( int i = 0; i < sortedFiles.size(); i++ )
 			{
-				file = sortedFiles.get(i);
-				revisionName = Revisions.getRevisionVersion(file.getName());
-				date.setTime(file.lastModified());
+				revision = sortedFiles.get(i);
+				revisionName = Revisions.getRevisionVersion(revision.getName());
+				date.setTime(revision.getDate());
 
-				String configVer = (String)ObjectUtils.ternary(
-										ConfigManager.getConfigManager().getActiveContainer(), "getInstallVersion", "");
+				String configVer = ObjectUtils.ternary(
+										ConfigManager.getConfigManager().getActiveContainer(), Config.GET_INSTALL_VERSION, "");
 				data[i][0] = revisionName + ((revisionName.equals(configVer)) ? "  (current)" : "" );
 				data[i][1] = new SimpleDateFormat("MM/dd/yyyy h:mm a").format(date);
 			}
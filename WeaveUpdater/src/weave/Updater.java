@@ -56,6 +56,7 @@ import weave.async.AsyncFunction;
 import weave.async.AsyncObserver;
 import weave.managers.ResourceManager;
 import weave.utils.BugReportUtils;
+import weave.utils.DownloadJournal;
 import weave.utils.DownloadUtils;
 import weave.utils.FileUtils;
 import weave.utils.IdentityUtils;
@@ -311,9 +312,9 @@ public class Updater extends JFrame
 		if( !Settings.DOWNLOADS_TMP_DIRECTORY.exists() ) 
 			Settings.DOWNLOADS_TMP_DIRECTORY.mkdirs();
 		
-		if( destination.exists() ) 
+		// Keep a partial download around if it can be resumed
+		if( destination.exists() && !DownloadJournal.isJournaled(destination) ) 
 			destination.delete();
-		destination.createNewFile();
 		
 		final AsyncObserver observer = new AsyncObserver() {
 			@Override
@@ -389,7 +390,7 @@ public class Updater extends JFrame
 				Object o = TransferUtils.FAILED;
 				try {
 					observer.init(url);
-					o = DownloadUtils.download(url, destination, observer, 2 * DownloadUtils.MB);
+					o = DownloadUtils.download(url, destination, observer, 2 * DownloadUtils.MB, DownloadUtils.DEFAULT_CONNECTIONS);
 				} catch (IOException e) {
 					trace(STDERR, e);
 					BugReportUtils.showBugReportDialog(e);
@@ -409,7 +410,7 @@ public class Updater extends JFrame
 		Settings.transferLocked = true;
 		Settings.transferCancelled = false;
 		
-		task.addCallback(callback).call();
+		task.setLongRunning(true).addCallback(callback).call();
 	}
 	
 	private void installUpdate(final File zipFile)
@@ -440,7 +441,7 @@ public class Updater extends JFrame
 				Object o = TransferUtils.FAILED;
 				try {
 					observer.init(zipFile);
-					o = ZipUtils.extract(zipFile, Settings.WEAVE_ROOT_DIRECTORY, ZipUtils.OVERWRITE, observer);
+					o = ZipUtils.extract(zipFile, Settings.WEAVE_ROOT_DIRECTORY, ZipUtils.OVERWRITE, observer, 0, ZipUtils.DEFAULT_THREADS);
 				} catch (ZipException e) {
 					trace(STDERR, e);
 					BugReportUtils.showBugReportDialog(e);
@@ -460,7 +461,7 @@ public class Updater extends JFrame
 		Settings.canQuit = false;
 		statusProgress.setIndeterminate(false);
 		
-		task.addCallback(callback).call();
+		task.setLongRunning(true).addCallback(callback).call();
 	}
 	
 	private void finish()